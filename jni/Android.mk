@@ -4,6 +4,6 @@ LOCAL_PATH := $(call my-dir)
 
    LOCAL_MODULE    := colortransform
    LOCAL_SRC_FILES := colortransform.c
-   LOCAL_LDLIBS    += -ljnigraphics -llog
+   LOCAL_LDLIBS    += -ljnigraphics -llog -lm
 
 include $(BUILD_SHARED_LIBRARY)
@@ -17,37 +17,169 @@ extern "C" {
 #define ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_INTENSIFY_DIFFERENCE 3L
 #undef ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_DALTONIZE
 #define ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_DALTONIZE 4L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_POSTERIZE
+#define ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_POSTERIZE 5L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_LUT
+#define ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_LUT 6L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_PATTERN
+#define ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_PATTERN 7L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_OUTLINE
+#define ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_OUTLINE 8L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_STAGE_NOISE_REDUCTION
+#define ch_hsr_eyecam_colormodel_ColorTransform_STAGE_NOISE_REDUCTION 0L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_STAGE_WHITE_BALANCE
+#define ch_hsr_eyecam_colormodel_ColorTransform_STAGE_WHITE_BALANCE 1L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_STAGE_CONTRAST
+#define ch_hsr_eyecam_colormodel_ColorTransform_STAGE_CONTRAST 2L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_STAGE_HIGHLIGHT
+#define ch_hsr_eyecam_colormodel_ColorTransform_STAGE_HIGHLIGHT 3L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_INPUT_FORMAT_NV21
+#define ch_hsr_eyecam_colormodel_ColorTransform_INPUT_FORMAT_NV21 0L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_INPUT_FORMAT_YV12
+#define ch_hsr_eyecam_colormodel_ColorTransform_INPUT_FORMAT_YV12 1L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_INPUT_FORMAT_I420
+#define ch_hsr_eyecam_colormodel_ColorTransform_INPUT_FORMAT_I420 2L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_OUTPUT_FORMAT_RGB_565
+#define ch_hsr_eyecam_colormodel_ColorTransform_OUTPUT_FORMAT_RGB_565 0L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_OUTPUT_FORMAT_RGBA_8888
+#define ch_hsr_eyecam_colormodel_ColorTransform_OUTPUT_FORMAT_RGBA_8888 1L
+#undef ch_hsr_eyecam_colormodel_ColorTransform_OUTPUT_FORMAT_ARGB_8888
+#define ch_hsr_eyecam_colormodel_ColorTransform_OUTPUT_FORMAT_ARGB_8888 2L
 /*
  * Class:     ch_hsr_eyecam_colormodel_ColorTransform
- * Method:    setEffect
- * Signature: (I)V
+ * Method:    nativeCreate
+ * Signature: ()J
  */
-JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_setEffect
-  (JNIEnv *, jclass, jint);
+JNIEXPORT jlong JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeCreate
+  (JNIEnv *, jclass);
 
 /*
  * Class:     ch_hsr_eyecam_colormodel_ColorTransform
- * Method:    setPartialEffect
- * Signature: (I)V
+ * Method:    nativeDestroy
+ * Signature: (J)V
  */
-JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_setPartialEffect
-  (JNIEnv *, jclass, jint);
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeDestroy
+  (JNIEnv *, jclass, jlong);
 
 /*
  * Class:     ch_hsr_eyecam_colormodel_ColorTransform
- * Method:    transformImageToBitmap
- * Signature: ([BIILandroid/graphics/Bitmap;)V
+ * Method:    nativeSetEffect
+ * Signature: (JIZ)V
  */
-JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_transformImageToBitmap
-  (JNIEnv *, jclass, jbyteArray, jint, jint, jobject);
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetEffect
+  (JNIEnv *, jclass, jlong, jint, jboolean);
 
 /*
  * Class:     ch_hsr_eyecam_colormodel_ColorTransform
- * Method:    transformImageToBuffer
- * Signature: ([BII[B)V
+ * Method:    nativeSetAccurate
+ * Signature: (JZ)V
  */
-JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_transformImageToBuffer
-  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray);
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetAccurate
+  (JNIEnv *, jclass, jlong, jboolean);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeSetDithering
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetDithering
+  (JNIEnv *, jclass, jlong, jboolean);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeSetHighlight
+ * Signature: (J[I)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetHighlight
+  (JNIEnv *, jclass, jlong, jintArray);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeSetStages
+ * Signature: (J[I)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetStages
+  (JNIEnv *, jclass, jlong, jintArray);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeGetChromaOffsetU
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeGetChromaOffsetU
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeGetChromaOffsetV
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeGetChromaOffsetV
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeTransformColors
+ * Signature: (J[I[I)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformColors
+  (JNIEnv *, jclass, jlong, jintArray, jintArray);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeSetPalette
+ * Signature: (J[B[I)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetPalette
+  (JNIEnv *, jclass, jlong, jbyteArray, jintArray);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeSetLut
+ * Signature: (JI[I)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetLut
+  (JNIEnv *, jclass, jlong, jint, jintArray);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeTransformImageToBitmap
+ * Signature: (J[BIIIIILandroid/graphics/Bitmap;)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformImageToBitmap
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jint, jobject);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeTransformRegionToBitmap
+ * Signature: (J[BIIIIIIILandroid/graphics/Bitmap;)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformRegionToBitmap
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jint, jint, jint, jobject);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeTransformMosaicToBitmap
+ * Signature: (J[BIIIII[ILandroid/graphics/Bitmap;)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformMosaicToBitmap
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jint, jintArray, jobject);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeTransformImageToBuffer
+ * Signature: (J[BIIIIII[B)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformImageToBuffer
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jint, jint, jbyteArray);
+
+/*
+ * Class:     ch_hsr_eyecam_colormodel_ColorTransform
+ * Method:    nativeTransformImageToPixels
+ * Signature: (J[BIIIII[I)V
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformImageToPixels
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jint, jintArray);
 
 #ifdef __cplusplus
 }
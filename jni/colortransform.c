@@ -11,9 +11,20 @@
 #include "ch_hsr_eyecam_colormodel_ColorTransform.h"
 #include <android/bitmap.h>
 #include <android/log.h>
+#include <math.h>
+#include <pthread.h>
 #include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
 
-void transformYuv2Rgb(uint8_t *data, int32_t width, int32_t height, uint16_t *buffer);
+typedef struct transformContext transformContext;
+typedef struct frameInfo frameInfo;
+typedef struct pixelRow pixelRow;
+typedef struct outputInfo outputInfo;
+
+void transformYuv2Rgb(transformContext *ctx, frameInfo *frame, outputInfo *output);
+void transformRegion(transformContext *ctx, frameInfo *frame, int32_t left, int32_t top, int32_t regionWidth, int32_t regionHeight, outputInfo *output);
+void transformMosaic(transformContext *ctx, frameInfo *frame, int* effects, int panes, outputInfo *output);
 
 #undef LOG_TAG
 #define LOG_TAG "libcolortransform"
@@ -23,6 +34,65 @@ void transformYuv2Rgb(uint8_t *data, int32_t width, int32_t height, uint16_t *bu
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
 #define SQR(x) ((x)*(x))
+#define MOSAIC_MAX_PANES 4
+
+/**
+ * Quantization of YUV values used for the lookup tables. Each of Y, U and V
+ * is reduced to 5 bits. This needs to match ColorTable.indexOf() on the
+ * Java side.
+ */
+#define TABLE_BITS 5
+#define TABLE_SIZE (1 << (3 * TABLE_BITS))
+#define TABLE_INDEX(y,u,v) ((((y) >> 3) << 10) | ((((u) + 128) >> 3) << 5) | (((v) + 128) >> 3))
+#define PALETTE_MAX 256
+#define MAX_STAGES 8
+
+typedef struct transformParams transformParams;
+typedef struct lutTable lutTable;
+typedef void (*effectKernel)(const transformParams*,pixelRow*);
+
+/**
+ * the parameters of a transformation. Each context holds two copies: the
+ * pending parameters written by the setters and the active parameters used
+ * while transforming, which are only replaced at the start of a frame.
+ *
+ * effectId, partial and accurate hold the settings the effect kernel was
+ * chosen from, see selectEffect.
+ *
+ * stages holds the ids of the pipeline stages in the order they run.
+ *
+ * highlightTable is a bitset of the quantized YUV values to highlight.
+ * Pixels not contained get desaturated and darkened by the highlight stage.
+ *
+ * paletteTable holds the palette index of each quantized YUV value used by
+ * effectPosterize, paletteRgb the rgb values of the palette already scaled
+ * to the range used by the effect functions.
+ *
+ * lut is the table used by effectLut. Tables are never modified, a new one
+ * replaces the old one, which is freed as soon as neither the pending nor
+ * the active parameters use it.
+ *
+ * dither enables the ordered dithering of RGB565 output.
+ */
+struct transformParams {
+	effectKernel kernel;
+	int effectId;
+	int partial;
+	int accurate;
+	int stages[MAX_STAGES];
+	int stageCount;
+	int highlightEnabled;
+	int paletteSet;
+	uint32_t highlightTable[TABLE_SIZE / 32];
+	uint8_t paletteTable[TABLE_SIZE];
+	int paletteRgb[PALETTE_MAX * 3];
+	lutTable *lut;
+	int dither;
+};
+
+void selectEffect(transformParams *params);
+
+#define IS_HIGHLIGHTED(params,y,u,v) ((params)->highlightTable[TABLE_INDEX(y,u,v) >> 5] & (1u << (TABLE_INDEX(y,u,v) & 31)))
 
 typedef enum colortransform_Effects {
 	COLOR_EFFECT_NONE = ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_NONE,
@@ -30,11 +100,76 @@ typedef enum colortransform_Effects {
 	COLOR_EFFECT_FALSE_COLORS = ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_FALSE_COLORS,
 	COLOR_EFFECT_INTENSIFY_DIFFERENCE = ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_INTENSIFY_DIFFERENCE,
 	COLOR_EFFECT_DALTONIZE = ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_DALTONIZE,
+	COLOR_EFFECT_POSTERIZE = ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_POSTERIZE,
+	COLOR_EFFECT_LUT = ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_LUT,
+	COLOR_EFFECT_PATTERN = ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_PATTERN,
+	COLOR_EFFECT_OUTLINE = ch_hsr_eyecam_colormodel_ColorTransform_COLOR_EFFECT_OUTLINE,
 } colortransform_Effects;
 
+typedef enum colortransform_Stages {
+	STAGE_NOISE_REDUCTION = ch_hsr_eyecam_colormodel_ColorTransform_STAGE_NOISE_REDUCTION,
+	STAGE_WHITE_BALANCE = ch_hsr_eyecam_colormodel_ColorTransform_STAGE_WHITE_BALANCE,
+	STAGE_CONTRAST = ch_hsr_eyecam_colormodel_ColorTransform_STAGE_CONTRAST,
+	STAGE_HIGHLIGHT = ch_hsr_eyecam_colormodel_ColorTransform_STAGE_HIGHLIGHT,
+	STAGE_COUNT
+} colortransform_Stages;
+
+typedef enum colortransform_Formats {
+	INPUT_FORMAT_NV21 = ch_hsr_eyecam_colormodel_ColorTransform_INPUT_FORMAT_NV21,
+	INPUT_FORMAT_YV12 = ch_hsr_eyecam_colormodel_ColorTransform_INPUT_FORMAT_YV12,
+	INPUT_FORMAT_I420 = ch_hsr_eyecam_colormodel_ColorTransform_INPUT_FORMAT_I420,
+} colortransform_Formats;
+
+/**
+ * a frame to transform. All supported formats store a Y plane followed by
+ * chroma subsampled by 2 in both directions, they only differ in where the
+ * chroma samples are: NV21 interleaves V and U in a single plane, YV12 and
+ * I420 store a V and a U plane after each other in different order.
+ *
+ * u and v point to the first chroma sample of the frame and uvStep is the
+ * distance between two samples of a chroma row, so the sample of pixel x
+ * in chroma row n is u[n * uvStride + (x >> 1) * uvStep]. Odd sizes have an
+ * extra chroma column and row covering the last pixel.
+ *
+ * decode reads a chunk of a row with the kernel specialized for the
+ * layout, so no conversion of the frame is ever needed.
+ */
+struct frameInfo {
+	const uint8_t *y, *u, *v;
+	int32_t yStride;
+	int32_t uvStride;
+	int uvStep;
+	int32_t width;
+	int32_t height;
+	int32_t chromaWidth;
+	int32_t chromaHeight;
+	int fullFrame;
+	void (*decode)(pixelRow *row);
+};
+
+typedef enum colortransform_OutputFormats {
+	OUTPUT_FORMAT_RGB_565 = ch_hsr_eyecam_colormodel_ColorTransform_OUTPUT_FORMAT_RGB_565,
+	OUTPUT_FORMAT_RGBA_8888 = ch_hsr_eyecam_colormodel_ColorTransform_OUTPUT_FORMAT_RGBA_8888,
+	OUTPUT_FORMAT_ARGB_8888 = ch_hsr_eyecam_colormodel_ColorTransform_OUTPUT_FORMAT_ARGB_8888,
+} colortransform_OutputFormats;
+
 /**
- * start definitions of the transformation functions. These get called for each
- * pixel through the global yuvTransPtr function pointer.
+ * the destination of a transformation. stride is the number of bytes
+ * between two rows. The writer packing the pixels is chosen once per frame
+ * from the format, see getRowWriter.
+ */
+struct outputInfo {
+	uint8_t *pixels;
+	int32_t stride;
+	int format;
+	int bytesPerPixel;
+};
+
+/**
+ * start definitions of the transformation functions. These are never called
+ * through a pointer, each one is inlined into the loop of its effect kernels,
+ * see EFFECT_KERNEL. EFFECT_INLINE forces this also for the -Os the NDK
+ * compiles thumb code with.
  *
  * Due to performance and polymorphic reasons each of the effect functions need
  * to perform the yuv to rgb transformation. Refer to effectNone to see an example
@@ -42,43 +177,46 @@ typedef enum colortransform_Effects {
  * [2^16, 2^24].
  *
  * The transformation functions need to confirm to the following contract:
- * @pre:	y, u, v, integers with yuv values
+ * @pre:	params, the active parameters of the transformation
+ * 			y, u, v, integers with yuv values, which are not modified
  * 			r, g, b, integers with rgb values
- * @post:	in-place integer value transformation form yuv to rgb
+ * @post:	integer value transformation form yuv to rgb
  */
-void effectNone(int* y, int* u, int* v, int* r, int* g, int* b){
+#define EFFECT_INLINE static inline __attribute__((always_inline))
+
+EFFECT_INLINE void effectNone(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
 	int yMax = 65536 * *y;
 	*r = (yMax + 92250 * *v);
 	*g = (yMax - 22644 * *u - 46990 * *v);
 	*b = (yMax + 116596 * *u);
 }
 
-void effectSimulate(int* y, int* u, int* v, int* r, int* g, int* b){
+EFFECT_INLINE void effectSimulate(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
 	int yMax = 65536 * *y;
 	*r = (yMax - 20099 * *u - 31341 * *v);
 	*g = (yMax - 20099 * *u - 31341 * *v);
 	*b = (yMax + 116690 * *u + 558 * *v);
 }
 
-void effectIntesify(int* y, int* u, int* v, int* r, int* g, int* b){
+EFFECT_INLINE void effectIntesify(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
 	*r = (60000 * *y + 92250 * *v);
 	*g = (70000 * *y - 22644 * *u - 46990 * *v);
 	*b = (65536 * *y + 116596 * *u);
 }
 
-void effectFalseColors(int* y, int* u, int* v, int* r, int* g, int* b){
+EFFECT_INLINE void effectFalseColors(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
 	int yMax = 65536 * *y;
 	*r = (yMax + 92250 * *u);
 	*g = (yMax - 22644 * *v - 46990 * *u);
 	*b = (yMax + 116596 * *v);
 }
 
-void effectDaltonize(int* y, int* u, int* v, int* r, int* g, int* b){
+EFFECT_INLINE void effectDaltonize(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
 	int rSim, gSim, bSim;
 	int rDiff,gDiff,bDiff;
 
-	effectNone(y,u,v,r,g,b);
-	effectSimulate(y,u,v,&rSim,&gSim,&bSim);
+	effectNone(params,y,u,v,r,g,b);
+	effectSimulate(params,y,u,v,&rSim,&gSim,&bSim);
 	rDiff = *r - rSim;
 	gDiff = *g - gSim;
 	bDiff = *b - bSim;
@@ -87,159 +225,1953 @@ void effectDaltonize(int* y, int* u, int* v, int* r, int* g, int* b){
 	*b = *b + (7*rDiff)/10 + bDiff;
 }
 
-void (*effectPtr)(int*,int*,int*,int*,int*,int*) = &effectNone;
-void (*partialEffectPtr)(int*,int*,int*,int*,int*,int*) = &effectNone;
+EFFECT_INLINE void effectPosterize(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	if (!params->paletteSet){
+		effectNone(params,y,u,v,r,g,b);
+		return;
+	}
+	const int* rgb = params->paletteRgb + 3 * params->paletteTable[TABLE_INDEX(*y,*u,*v)];
+	*r = rgb[0];
+	*g = rgb[1];
+	*b = rgb[2];
+}
 
-void partialEffect(int* y, int* u, int* v, int* r, int* g, int* b){
-	static int THRESHOLD = SQR(50);
-	int rSim, gSim, bSim;
-	int rDiff,gDiff,bDiff;
+/**
+ * 3D lookup table used by effectLut. The nodes hold the rgb values of the
+ * table in the order of the .cube format (red changes fastest) scaled to
+ * [0, 4080], i.e. 4 fractional bits. offset and weight map an 8 bit color
+ * channel to the offset of its lower node on the red axis and the weight
+ * of the upper node in [0, 256].
+ *
+ * Tables of up to LUT_GRID_MAX_SIZE nodes per axis are resampled into
+ * yuvGrid, which is indexed by YUV directly with nodes every 8 values. The
+ * grid replaces the yuv to rgb conversion and the offset lookups by a few
+ * shifts, while bigger tables keep their full resolution.
+ */
+#define LUT_MIN_SIZE 2
+#define LUT_MAX_SIZE 65
+#define LUT_GRID_MAX_SIZE 33
+#define LUT_GRID_NODES 33
+
+typedef struct lutTable {
+	int size;
+	int16_t *nodes;
+	int16_t *yuvGrid;
+	int offset[256];
+	int weight[256];
+} lutTable;
 
-	effectNone(y,u,v,r,g,b);
-	effectSimulate(y,u,v,&rSim,&gSim,&bSim);
-	rDiff = *r - rSim; rDiff >>= 16;
-	gDiff = *g - gSim; gDiff >>= 16;
-	bDiff = *b - bSim; bDiff >>= 16;
+/**
+ * tetrahedral interpolation between the 8 nodes of a cube. c points to the
+ * node at the origin of the cube, dx, dy and dz are the distances to the
+ * next node on each axis and fx, fy, fz the weights in [0, 256]. The cube
+ * is split into 6 tetrahedra along its diagonal, the weights choose the one
+ * containing the point and only its 4 nodes are used.
+ *
+ * @post:	rgb filled with the interpolated values scaled by 256
+ */
+static inline void tetrahedral(const int16_t *c, int dx, int dy, int dz, int fx, int fy, int fz, int *rgb){
+	int o1, o2, w1, w2, w3, k;
+	int o3 = dx + dy + dz;
 
-	int deltaE = 2*SQR(rDiff)+4*SQR(gDiff);
-	if (deltaE > THRESHOLD){
-		partialEffectPtr(y,u,v,r,g,b);
+	if (fx >= fy){
+		if (fy >= fz)		{ o1 = dx; o2 = dx + dy; w1 = fx; w2 = fy; w3 = fz; }
+		else if (fx >= fz)	{ o1 = dx; o2 = dx + dz; w1 = fx; w2 = fz; w3 = fy; }
+		else				{ o1 = dz; o2 = dz + dx; w1 = fz; w2 = fx; w3 = fy; }
+	} else {
+		if (fz >= fy)		{ o1 = dz; o2 = dz + dy; w1 = fz; w2 = fy; w3 = fx; }
+		else if (fz >= fx)	{ o1 = dy; o2 = dy + dz; w1 = fy; w2 = fz; w3 = fx; }
+		else				{ o1 = dy; o2 = dy + dx; w1 = fy; w2 = fx; w3 = fz; }
+	}
+	for (k = 0; k < 3; k++){
+		rgb[k] = (c[k] << 8) + w1 * (c[o1 + k] - c[k]) + w2 * (c[o2 + k] - c[o1 + k]) + w3 * (c[o3 + k] - c[o2 + k]);
 	}
 }
 
 /**
- * start definitions of the JNI binding functions
+ * looks up 8 bit rgb values in the full resolution table.
  */
+static inline void lookupRgb(const lutTable *lut, int r, int g, int b, int *rgb){
+	int dy = 3 * lut->size;
+	int dz = dy * lut->size;
+	const int16_t *c = lut->nodes + lut->offset[r] + lut->offset[g] * lut->size + lut->offset[b] * lut->size * lut->size;
+	tetrahedral(c, 3, dy, dz, lut->weight[r], lut->weight[g], lut->weight[b], rgb);
+}
 
-JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_setEffect
-  (JNIEnv * env, jclass cl, jint effect){
-	switch (effect){
-	case COLOR_EFFECT_NONE:
-		effectPtr = &effectNone;
-		break;
-	case COLOR_EFFECT_SIMULATE:
-		effectPtr = &effectSimulate;
-		break;
-	case COLOR_EFFECT_INTENSIFY_DIFFERENCE:
-		effectPtr = &effectIntesify;
-		break;
-	case COLOR_EFFECT_FALSE_COLORS:
-		effectPtr = &effectFalseColors;
-		break;
-	case COLOR_EFFECT_DALTONIZE:
-		effectPtr = &effectDaltonize;
-		break;
+static inline int clampByte(int value){
+	return value < 0 ? 0 : (value > 255 ? 255 : value);
+}
+
+EFFECT_INLINE void effectLut(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	const lutTable *lut = params->lut;
+	int rgb[3];
+
+	if (lut == NULL){
+		effectNone(params,y,u,v,r,g,b);
+		return;
+	}
+	if (lut->yuvGrid != NULL){
+		int nU = *u + 128, nV = *v + 128;
+		const int16_t *c = lut->yuvGrid + 3 * (((nV >> 3) * LUT_GRID_NODES + (nU >> 3)) * LUT_GRID_NODES + (*y >> 3));
+		tetrahedral(c, 3, 3 * LUT_GRID_NODES, 3 * LUT_GRID_NODES * LUT_GRID_NODES,
+				(*y & 7) << 5, (nU & 7) << 5, (nV & 7) << 5, rgb);
+	} else {
+		effectNone(params,y,u,v,r,g,b);
+		lookupRgb(lut, clampByte(*r >> 16), clampByte(*g >> 16), clampByte(*b >> 16), rgb);
 	}
+	// nodes have 4 fractional bits and the interpolation adds another 8.
+	*r = rgb[0] << 4;
+	*g = rgb[1] << 4;
+	*b = rgb[2] << 4;
 }
 
-JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_setPartialEffect
-  (JNIEnv * env, jclass cl, jint effect){
-	Java_ch_hsr_eyecam_colormodel_ColorTransform_setEffect(env,cl,effect);
+void freeLut(lutTable *lut){
+	if (lut == NULL)
+		return;
+	free(lut->nodes);
+	free(lut->yuvGrid);
+	free(lut);
+}
 
-	if (	effect == COLOR_EFFECT_NONE ||
-				effect == COLOR_EFFECT_SIMULATE ||
-				effect == COLOR_EFFECT_DALTONIZE)
-			return;
+/**
+ * creates a table from rgb values packed as 0xRRGGBB.
+ *
+ * @return the table or NULL if out of memory
+ */
+lutTable* createLut(int size, const jint *colors){
+	int i, j, k, c;
+	int count = size * size * size;
+	lutTable *lut = (lutTable*) calloc(1, sizeof(lutTable));
+	if (lut == NULL)
+		return NULL;
+
+	lut->size = size;
+	lut->nodes = (int16_t*) malloc(3 * count * sizeof(int16_t));
+	if (lut->nodes == NULL){
+		freeLut(lut);
+		return NULL;
+	}
+	for (i = 0; i < count; i++){
+		lut->nodes[3 * i] = ((colors[i] >> 16) & 0xff) << 4;
+		lut->nodes[3 * i + 1] = ((colors[i] >> 8) & 0xff) << 4;
+		lut->nodes[3 * i + 2] = (colors[i] & 0xff) << 4;
+	}
+	for (c = 0; c < 256; c++){
+		int position = c * (size - 1) * 256 / 255;
+		int node = position >> 8;
+		// the last value lies on the last node, use the cube below it.
+		if (node == size - 1)
+			node--;
+		lut->offset[c] = 3 * node;
+		lut->weight[c] = position - (node << 8);
+	}
 
-	partialEffectPtr = effectPtr;
-	effectPtr = &partialEffect;
+	if (size > LUT_GRID_MAX_SIZE)
+		return lut;
+	lut->yuvGrid = (int16_t*) malloc(3 * LUT_GRID_NODES * LUT_GRID_NODES * LUT_GRID_NODES * sizeof(int16_t));
+	if (lut->yuvGrid == NULL)
+		return lut;
+	int16_t *node = lut->yuvGrid;
+	for (k = 0; k < LUT_GRID_NODES; k++){
+		for (j = 0; j < LUT_GRID_NODES; j++){
+			for (i = 0; i < LUT_GRID_NODES; i++){
+				// the last nodes lie beyond the yuv range, the rgb values are clamped.
+				int nY = 8 * i, nU = 8 * j - 128, nV = 8 * k - 128;
+				int nR, nG, nB, rgb[3];
+				effectNone(NULL, &nY, &nU, &nV, &nR, &nG, &nB);
+				lookupRgb(lut, clampByte(nR >> 16), clampByte(nG >> 16), clampByte(nB >> 16), rgb);
+				node[0] = (rgb[0] + 128) >> 8;
+				node[1] = (rgb[1] + 128) >> 8;
+				node[2] = (rgb[2] + 128) >> 8;
+				node += 3;
+			}
+		}
+	}
+	return lut;
 }
 
-JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_transformImageToBitmap
-  (JNIEnv * env, jclass cl, jbyteArray jarray, jint width, jint height, jobject bitmap){
-	int 				ret;
-	void* 				pixels;
-	jboolean 			isCopy;
-	jbyte* 				jdata = (*env)->GetByteArrayElements(env, jarray, &isCopy);
-	uint8_t* 			data = (uint8_t*) jdata;
+/**
+ * accurate simulation of deuteranopia following Viénot, Brettel and Mollon
+ * (1999). Their model projects the LMS response of the normal observer onto
+ * the plane of colors a dichromat can tell apart. Since the model only
+ * holds for linear light, the gamma of the sRGB values is removed with
+ * srgbDecode and reapplied with srgbEncode. For deuteranopia the projection
+ * collapses to a single matrix in linear RGB, rounded to LINEAR_BITS
+ * fractional bits below. Linear values are in [0, LINEAR_ONE].
+ *
+ * The tables are shared by all contexts and filled by initGammaTables when
+ * the first context is created, see initTables. Only the table setup uses
+ * floating point.
+ *
+ * Both tables have a guard band on either side that repeats the value at
+ * the border, so that no value needs to be clamped before the lookup.
+ * effectNone yields bytes in [-DECODE_GUARD, 255 + DECODE_GUARD] for any
+ * yuv value and the linear results of the effects below stay within
+ * ENCODE_GUARD of [0, LINEAR_ONE].
+ */
+#define LINEAR_BITS 12
+#define LINEAR_ONE ((1 << LINEAR_BITS) - 1)
+#define VIENOT_RG 1189
+#define VIENOT_GG 2907
+#define VIENOT_BR (-90)
+#define VIENOT_BG 90
+#define DALTONIZE_SHIFT 2867
+#define DECODE_GUARD 256
+#define ENCODE_GUARD (LINEAR_ONE + 1)
 
-	if ((ret = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
-		LOGE("AndroidBitmap_lockPixels() failed ! error=%d", ret);
-		//TODO: throw exception
+static uint16_t srgbDecodeTable[256 + 2 * DECODE_GUARD];
+static uint8_t srgbEncodeTable[LINEAR_ONE + 1 + 2 * ENCODE_GUARD];
+static const uint16_t *srgbDecode = srgbDecodeTable + DECODE_GUARD;
+static const uint8_t *srgbEncode = srgbEncodeTable + ENCODE_GUARD;
+
+static void initGammaTables(){
+	int i;
+
+	for (i = -DECODE_GUARD; i < 256 + DECODE_GUARD; i++){
+		double c = clampByte(i) / 255.0;
+		double linear = c <= 0.04045 ? c / 12.92 : pow((c + 0.055) / 1.055, 2.4);
+		srgbDecodeTable[i + DECODE_GUARD] = (uint16_t) (linear * LINEAR_ONE + 0.5);
 	}
+	for (i = -ENCODE_GUARD; i <= LINEAR_ONE + ENCODE_GUARD; i++){
+		double linear = (double) (i < 0 ? 0 : (i > LINEAR_ONE ? LINEAR_ONE : i)) / LINEAR_ONE;
+		double c = linear <= 0.0031308 ? 12.92 * linear : 1.055 * pow(linear, 1 / 2.4) - 0.055;
+		srgbEncodeTable[i + ENCODE_GUARD] = (uint8_t) (c * 255 + 0.5);
+	}
+}
 
-	uint16_t* buffer = (uint16_t*) pixels;
-    transformYuv2Rgb(data, (int32_t) width, (int32_t) height, buffer);
+static inline void decodeLinear(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectNone(params,y,u,v,r,g,b);
+	*r = srgbDecode[*r >> 16];
+	*g = srgbDecode[*g >> 16];
+	*b = srgbDecode[*b >> 16];
+}
 
-    AndroidBitmap_unlockPixels(env, bitmap);
-	(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+static inline int encodeLinear(int linear){
+	return srgbEncode[linear] << 16;
 }
 
-JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_transformImageToBuffer
-  (JNIEnv * env, jclass cl, jbyteArray jarray, jint width, jint height, jbyteArray buffer){
-	jboolean 			isCopy;
-	jbyte* 				jdata = (*env)->GetByteArrayElements(env, jarray, &isCopy);
-	uint8_t* 			data = (uint8_t*) jdata;
-	jbyte* 				jbuffer = (*env)->GetByteArrayElements(env, buffer, &isCopy);
+static inline void simulateLinear(int r, int g, int b, int* rSim, int* gSim, int* bSim){
+	*rSim = (VIENOT_RG * r + VIENOT_GG * g) >> LINEAR_BITS;
+	*gSim = *rSim;
+	*bSim = b + ((VIENOT_BR * r + VIENOT_BG * g) >> LINEAR_BITS);
+}
 
-    transformYuv2Rgb(data, (int32_t) width, (int32_t) height, buffer);
+EFFECT_INLINE void effectSimulateAccurate(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	int rSim, gSim, bSim;
 
-	(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
-	(*env)->ReleaseByteArrayElements(env, buffer, jbuffer, JNI_ABORT);
+	decodeLinear(params,y,u,v,r,g,b);
+	simulateLinear(*r, *g, *b, &rSim, &gSim, &bSim);
+	*r = encodeLinear(rSim);
+	*g = encodeLinear(gSim);
+	*b = encodeLinear(bSim);
 }
 
 /**
- * start of the transformation methods.
- *
- * We get the data in yuv420sp aka NV21 format from the camera.
- * The data representation looks something like this:
+ * daltonize in linear light: the error of the accurate simulation is
+ * shifted to the green and blue channels the same way effectDaltonize does.
+ */
+EFFECT_INLINE void effectDaltonizeAccurate(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	int rSim, gSim, bSim;
+	int rDiff;
+
+	decodeLinear(params,y,u,v,r,g,b);
+	simulateLinear(*r, *g, *b, &rSim, &gSim, &bSim);
+	rDiff = *r - rSim;
+
+	*g = encodeLinear(2 * *g - gSim + ((DALTONIZE_SHIFT * rDiff) >> LINEAR_BITS));
+	*b = encodeLinear(2 * *b - bSim + ((DALTONIZE_SHIFT * rDiff) >> LINEAR_BITS));
+	*r = encodeLinear(*r);
+}
+
+/**
+ * pattern effect. Pixels whose chroma falls into the zone isConfusable
+ * considers confusable are marked with a pattern instead of changed colors:
+ * colors that lose red in the simulation get a diagonal hatching, colors
+ * that lose green get dots. Since the difference between a color and its
+ * simulation does not depend on Y, the classification only needs U and V.
+ * The classes are looked up in patternClasses, which holds the class of
+ * every chroma value quantized to 6 bits, so classifying a pixel costs a
+ * single load.
  *
- * <-----------width------------>
- * | y0 | y1 | y2 |........|yW-2|  ^
- * |yW-1| yW |..................|  |
- * |............................|  | height
- * |............................|  |
- * |____________________________|  v
- * |v0,1|u0,1|v2,3|u2,3|........|  ^
- * |............................|  | height/2
- * |____________________________|  v
+ * The tiles hold one bitmask per row of PATTERN_TILE_SIZE pixels and are
+ * indexed by the frame coordinates modulo the tile size, so the patterns
+ * stay in place while the colors change. A pixel covered by the pattern is
+ * offset by patternOffset of its class and divided by 4: hatching darkens
+ * it to a quarter, dots move it three quarters towards white.
+ */
+#define PATTERN_TILE_SIZE 8
+#define PATTERN_TILE_MASK (PATTERN_TILE_SIZE - 1)
+#define PATTERN_NONE 0
+#define PATTERN_HATCH 1
+#define PATTERN_DOTS 2
+#define PATTERN_CLASS_SHIFT 2
+#define PATTERN_CLASS_BITS (8 - PATTERN_CLASS_SHIFT)
+#define PATTERN_CLASS(u,v) (patternClasses[(((u) + 128) >> PATTERN_CLASS_SHIFT) << PATTERN_CLASS_BITS | (((v) + 128) >> PATTERN_CLASS_SHIFT)])
+
+static const uint8_t patternTiles[3][PATTERN_TILE_SIZE] = {
+	{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 },
+	{ 0x03, 0x81, 0xc0, 0x60, 0x30, 0x18, 0x0c, 0x06 },
+	{ 0x00, 0x00, 0x0c, 0x0c, 0x00, 0x00, 0xc0, 0xc0 },
+};
+static const int patternOffset[3] = { 0, 0, 3 * 16777215 };
+static uint8_t patternClasses[1 << (2 * PATTERN_CLASS_BITS)];
+
+/**
+ * classifies a chroma sample the same way isConfusable does. The
+ * coefficients are the differences between the coefficients of effectNone
+ * and effectSimulate.
+ */
+static inline int patternOf(int u, int v){
+	static const int THRESHOLD = SQR(50);
+	int rDiff = (20099 * u + 123591 * v) >> 16;
+	int gDiff = (-2545 * u - 15649 * v) >> 16;
+
+	if (2 * SQR(rDiff) + 4 * SQR(gDiff) <= THRESHOLD)
+		return PATTERN_NONE;
+	return rDiff > 0 ? PATTERN_HATCH : PATTERN_DOTS;
+}
+
+static void initPatternClasses(){
+	int i, j;
+	int half = 1 << (PATTERN_CLASS_SHIFT - 1);
+
+	for (i = 0; i < (1 << PATTERN_CLASS_BITS); i++){
+		for (j = 0; j < (1 << PATTERN_CLASS_BITS); j++)
+			patternClasses[i << PATTERN_CLASS_BITS | j] = patternOf((i << PATTERN_CLASS_SHIFT) + half - 128, (j << PATTERN_CLASS_SHIFT) + half - 128);
+	}
+}
+
+/**
+ * draws the pattern over a pixel: hatching darkens, dots lighten. mask is
+ * the row of the tile of the pattern.
+ */
+static inline void patternPixel(int pattern, int mask, int x, int* r, int* g, int* b){
+	if ((mask >> (x & PATTERN_TILE_MASK)) & 1){
+		int offset = patternOffset[pattern];
+		*r = (*r + offset) >> 2;
+		*g = (*g + offset) >> 2;
+		*b = (*b + offset) >> 2;
+	}
+}
+
+/**
+ * fills the tables shared by all contexts. Called once, when the first
+ * context is created.
+ */
+static pthread_once_t tablesOnce = PTHREAD_ONCE_INIT;
+
+static void initTables(){
+	initGammaTables();
+	initPatternClasses();
+}
+
+/**
+ * tells the colors a partial effect changes from the ones it keeps: those
+ * that look clearly different in effectSimulate. r, g and b are the values
+ * of effectNone.
+ */
+static inline int isConfusable(const transformParams* params, int y, int u, int v, int r, int g, int b){
+	static const int THRESHOLD = SQR(50);
+	int rSim, gSim, bSim;
+	int rDiff,gDiff;
+
+	effectSimulate(params,&y,&u,&v,&rSim,&gSim,&bSim);
+	rDiff = r - rSim; rDiff >>= 16;
+	gDiff = g - gSim; gDiff >>= 16;
+
+	return 2*SQR(rDiff)+4*SQR(gDiff) > THRESHOLD;
+}
+
+/**
+ * temporal noise reduction. The accumulators hold the smoothed Y and VU
+ * planes of the previous frames as fixed point values with 8 fractional
+ * bits. The smoothing strength depends on the difference between the new
+ * value and the accumulator: small differences are considered noise and get
+ * smoothed strongly, large differences are considered motion and are taken
+ * over immediately to avoid ghosting.
+ */
+#define DENOISE_NOISE_LEVEL 4
+#define DENOISE_MOTION_LEVEL 24
+
+/**
+ * adaptive contrast enhancement. While a frame is transformed, the
+ * histogram of its luma is collected. At the start of the next frame the
+ * histogram is turned into a tone curve by clipped histogram equalization
+ * (the global variant of CLAHE), which is then applied to Y as a lookup
+ * table. The curve is blended with the identity and with the curve of the
+ * previous frame to keep the enhancement gentle and free of flicker.
+ */
+#define CONTRAST_CLIP_FACTOR 3
+
+/**
+ * gray-world white balance. While a frame is transformed, the chroma of a
+ * sparse grid of pixels is summed up, skipping pixels that are too dark,
+ * too bright or too colorful to be part of a gray surface. At the start of
+ * the next frame the average chroma moves the chroma offset towards zero
+ * average, i.e. a gray world. Offsets are kept in 8.8 fixed point.
+ */
+#define WHITE_BALANCE_GRID_SHIFT 3
+#define WHITE_BALANCE_MAX_CHROMA 48
+#define WHITE_BALANCE_MAX_OFFSET (32 * 256)
+#define WHITE_BALANCE_ADAPTION_SHIFT 3
+#define CLAMP_OFFSET(x) ((x) > WHITE_BALANCE_MAX_OFFSET ? WHITE_BALANCE_MAX_OFFSET : ((x) < -WHITE_BALANCE_MAX_OFFSET ? -WHITE_BALANCE_MAX_OFFSET : (x)))
+
+/**
+ * window of rows around the current row for stages that need the
+ * neighbourhood of a pixel. The window keeps the values the stage derives
+ * from the frame, computed by its project function, for the last
+ * 2 * radius + 1 rows in a ring buffer. loadRowWindow projects each row of
+ * the frame once as long as the rows are requested in ascending order,
+ * while its frame data is still in the cache, and repeats the border rows
+ * beyond the top and the bottom of the frame.
+ */
+#define ROW_WINDOW_MAX_RADIUS 2
+
+typedef void (*rowProjection)(const frameInfo *frame, int row, int16_t *values);
+
+typedef struct rowWindow {
+	rowProjection project;
+	int radius;
+	int width, height;
+	int16_t* ring;
+	int loaded;
+	int center;
+	const int16_t* rows[2 * ROW_WINDOW_MAX_RADIUS + 1];
+} rowWindow;
+
+/**
+ * chroma edge outlines. The chroma of each sample is projected onto the
+ * axis effectSimulate collapses, i.e. the difference between the red of a
+ * color and the red of its simulation. A 3x3 Sobel kernel on the chroma
+ * planes finds the borders between colors that differ along that axis and
+ * the pixels of these samples are painted black.
  *
- * The transformYuv2Rgb function takes the data frames, applies
- * the function yuvTransPtr points to on the elements of YUV
- * colorspace, the function rgbTransPtr points to no the elements
- * of the RGB colorspace  and converts them to the RGB565 format.
- * Each pixel in the RGB565 format looks like the following:
- *  _______________________________________________
- * |R4,R3,R2,R1,R0|G5,G4,G3,G2,G1,G0|B4,B3,B2,B1,B0|
- *  -----------------------------------------------
- *  15 14 13 12 11 10  9  8  7  6  5  4  3  2  1  0  Bitnumber
+ * The kernel keeps the projections of the last 3 chroma rows in a
+ * rowWindow, so every chroma row is read and projected once per frame. The
+ * edges are computed chunk by chunk while the first of the two luma rows
+ * sharing a chroma row is transformed, and reused for the second one.
+ */
+#define OUTLINE_THRESHOLD 160
+#define OUTLINE_AXIS(u,v) ((20099 * (u) + 123591 * (v)) >> 16)
+
+/**
+ * state that needs to be reset at the next frame boundary.
+ */
+#define RESET_DENOISE 1
+#define RESET_CONTRAST 2
+#define RESET_WHITE_BALANCE 4
+
+/**
+ * everything a ColorTransform instance needs to transform frames. The
+ * setters may be called from any thread, they only write the pending
+ * parameters while holding the lock. The thread transforming takes them
+ * over in beginFrame, so parameter changes become visible as a whole at
+ * the start of a frame and never in the middle of one.
  *
- * @pre:	data in yuv420sp (NV21) format
- * 			width, height > 0
- * @post:	buffer filled with RGB565 values
+ * The remaining state belongs to the thread transforming and must not be
+ * touched by anyone else. A context must therefore not transform on
+ * several threads at the same time.
  */
+struct transformContext {
+	pthread_mutex_t lock;
+	transformParams pending;
+	int pendingChanged;
+	int pendingResets;
+	int publishedOffsetU, publishedOffsetV;
 
-void transformYuv2Rgb(uint8_t *data, int32_t width, int32_t height, uint16_t *buffer)
-{
-	static int bytes_per_pixel = 2;
-	int nY,nU,nV,nR,nG,nB;
-    int frameSize = width * height;
+	transformParams active;
+	uint16_t denoiseStrength[256];
+	uint16_t* denoiseAccumulators;
+	int denoiseSize;
+	int denoiseFresh;
+	uint32_t contrastHistogram[256];
+	uint32_t contrastSamples;
+	int contrastCurve[256];
+	uint8_t contrastLut[256];
+	int whiteBalanceOffsetU, whiteBalanceOffsetV;
+	int32_t whiteBalanceSumU, whiteBalanceSumV, whiteBalanceCount;
+	int collectHistogram;
+	int collectWhiteBalance;
+	rowWindow outlineWindow;
+	uint8_t* outlineEdges;
+	int outlineEdgeRow;
+};
+
+void resetContrastCurve(transformContext *ctx){
+	int i;
+	for (i = 0; i < 256; i++){
+		ctx->contrastCurve[i] = i << 8;
+		ctx->contrastLut[i] = i;
+	}
+	memset(ctx->contrastHistogram, 0, sizeof(ctx->contrastHistogram));
+	ctx->contrastSamples = 0;
+}
+
+/**
+ * @return a new context without any effect or NULL if out of memory
+ */
+transformContext* createContext(){
+	int diff;
+	transformContext *ctx = (transformContext*) calloc(1, sizeof(transformContext));
+	if (ctx == NULL)
+		return NULL;
+
+	pthread_once(&tablesOnce, &initTables);
+	pthread_mutex_init(&ctx->lock, NULL);
+	ctx->pending.effectId = COLOR_EFFECT_NONE;
+	selectEffect(&ctx->pending);
+	ctx->active = ctx->pending;
+	for (diff = 0; diff < 256; diff++){
+		if (diff <= DENOISE_NOISE_LEVEL)
+			ctx->denoiseStrength[diff] = 64;
+		else if (diff >= DENOISE_MOTION_LEVEL)
+			ctx->denoiseStrength[diff] = 256;
+		else
+			ctx->denoiseStrength[diff] = 64 + 192 * (diff - DENOISE_NOISE_LEVEL) / (DENOISE_MOTION_LEVEL - DENOISE_NOISE_LEVEL);
+	}
+	ctx->denoiseFresh = 1;
+	resetContrastCurve(ctx);
+	return ctx;
+}
+
+void destroyContext(transformContext *ctx){
+	if (ctx->active.lut != ctx->pending.lut)
+		freeLut(ctx->active.lut);
+	freeLut(ctx->pending.lut);
+	pthread_mutex_destroy(&ctx->lock);
+	free(ctx->denoiseAccumulators);
+	free(ctx->outlineWindow.ring);
+	free(ctx->outlineEdges);
+	free(ctx);
+}
+
+/**
+ * locks the context and returns the pending parameters for modification.
+ * Every call needs to be followed by a call to commitPending.
+ */
+transformParams* editPending(transformContext *ctx){
+	pthread_mutex_lock(&ctx->lock);
+	return &ctx->pending;
+}
+
+/**
+ * marks the pending parameters as changed, requests the given state to be
+ * reset at the next frame boundary and unlocks the context.
+ */
+void commitPending(transformContext *ctx, int resets){
+	ctx->pendingChanged = 1;
+	ctx->pendingResets |= resets;
+	pthread_mutex_unlock(&ctx->lock);
+}
+
+/**
+ * takes over the pending parameters if they have changed. Called by the
+ * thread transforming at the start of each frame.
+ */
+void beginFrame(transformContext *ctx){
+	int resets = 0;
+	lutTable *retiredLut = NULL;
+
+	pthread_mutex_lock(&ctx->lock);
+	if (ctx->pendingChanged){
+		if (ctx->active.lut != ctx->pending.lut)
+			retiredLut = ctx->active.lut;
+		ctx->active = ctx->pending;
+		resets = ctx->pendingResets;
+		ctx->pendingChanged = 0;
+		ctx->pendingResets = 0;
+	}
+	pthread_mutex_unlock(&ctx->lock);
+
+	freeLut(retiredLut);
+
+	if (resets & RESET_DENOISE)
+		ctx->denoiseFresh = 1;
+	if (resets & RESET_CONTRAST)
+		resetContrastCurve(ctx);
+	if (resets & RESET_WHITE_BALANCE){
+		ctx->whiteBalanceOffsetU = ctx->whiteBalanceOffsetV = 0;
+		ctx->whiteBalanceSumU = ctx->whiteBalanceSumV = ctx->whiteBalanceCount = 0;
+	}
+}
+
+/**
+ * makes sure the accumulators fit the frame size. The accumulators are
+ * only allocated if the frame size changes and are filled with the given
+ * frame in that case, as well as after the noise reduction was enabled.
+ * They always use the NV21 layout without padding, whatever the layout of
+ * the frame is.
+ *
+ * @return 1 if the accumulators are ready, 0 if out of memory
+ */
+int prepareDenoise(transformContext *ctx, const frameInfo *frame){
 	int i, j;
-	uint8_t *pY = data, *pUV = data + frameSize;
-	int offset = 0;
+	int lumaSize = frame->width * frame->height;
+	int chromaRowSize = 2 * frame->chromaWidth;
+	int size = lumaSize + chromaRowSize * frame->chromaHeight;
+
+	if (ctx->denoiseSize != size){
+		free(ctx->denoiseAccumulators);
+		ctx->denoiseAccumulators = (uint16_t*) malloc(size * sizeof(uint16_t));
+		ctx->denoiseSize = ctx->denoiseAccumulators != NULL ? size : 0;
+		ctx->denoiseFresh = 1;
+	}
+	if (ctx->denoiseAccumulators == NULL)
+		return 0;
+	if (ctx->denoiseFresh){
+		uint16_t *aY = ctx->denoiseAccumulators;
+		uint16_t *aUV = ctx->denoiseAccumulators + lumaSize;
+		for (i = 0; i < frame->height; i++){
+			const uint8_t *pY = frame->y + i * frame->yStride;
+			for (j = 0; j < frame->width; j++)
+				aY[i * frame->width + j] = pY[j] << 8;
+		}
+		for (i = 0; i < frame->chromaHeight; i++){
+			const uint8_t *pU = frame->u + i * frame->uvStride;
+			const uint8_t *pV = frame->v + i * frame->uvStride;
+			for (j = 0; j < frame->chromaWidth; j++){
+				aUV[i * chromaRowSize + 2 * j] = pV[j * frame->uvStep] << 8;
+				aUV[i * chromaRowSize + 2 * j + 1] = pU[j * frame->uvStep] << 8;
+			}
+		}
+		ctx->denoiseFresh = 0;
+	}
+	return 1;
+}
+
+/**
+ * sets up the window for a frame of the given number of rows, which are
+ * width values wide once projected. The ring buffer is only reallocated if
+ * the width or the radius changes. The rows of the previous frame are
+ * forgotten.
+ *
+ * @return 0 if out of memory
+ */
+int prepareRowWindow(rowWindow *window, int width, int height, int radius, rowProjection project){
+	if (window->width != width || window->radius != radius){
+		free(window->ring);
+		window->ring = (int16_t*) malloc((2 * radius + 1) * width * sizeof(int16_t));
+		window->width = window->ring != NULL ? width : 0;
+		window->radius = radius;
+		if (window->ring == NULL)
+			return 0;
+	}
+	window->height = height;
+	window->project = project;
+	window->loaded = -1;
+	window->center = -1;
+	return 1;
+}
+
+/**
+ * moves the window to the given row: projects the rows up to row + radius
+ * that are not loaded yet and points rows at the rows from row - radius to
+ * row + radius.
+ */
+void loadRowWindow(rowWindow *window, const frameInfo *frame, int row){
+	int size = 2 * window->radius + 1;
+	int first = row - window->radius > 0 ? row - window->radius : 0;
+	int last = row + window->radius < window->height ? row + window->radius : window->height - 1;
+	int i, n;
+
+	if (window->loaded < first - 1)
+		window->loaded = first - 1;
+	for (n = window->loaded + 1; n <= last; n++)
+		window->project(frame, n, window->ring + (n % size) * window->width);
+	if (last > window->loaded)
+		window->loaded = last;
+
+	for (i = 0; i < size; i++){
+		n = row - window->radius + i;
+		n = n < first ? first : (n > last ? last : n);
+		window->rows[i] = window->ring + (n % size) * window->width;
+	}
+	window->center = row;
+}
+
+/**
+ * projects a chroma row onto the outline axis.
+ */
+static void projectOutlineRow(const frameInfo *frame, int row, int16_t *axis){
+	const uint8_t *pU = frame->u + row * frame->uvStride;
+	const uint8_t *pV = frame->v + row * frame->uvStride;
+	int step = frame->uvStep;
+	int j;
+
+	for (j = 0; j < frame->chromaWidth; j++)
+		axis[j] = OUTLINE_AXIS(pU[j * step] - 128, pV[j * step] - 128);
+}
+
+/**
+ * allocates the outline buffers for the chroma width of the frame and
+ * forgets the rows of the previous frame.
+ *
+ * @return 0 if out of memory
+ */
+int prepareOutline(transformContext *ctx, const frameInfo *frame){
+	int chromaWidth = frame->chromaWidth;
+
+	if (ctx->outlineEdges == NULL || ctx->outlineWindow.width != chromaWidth){
+		free(ctx->outlineEdges);
+		ctx->outlineEdges = (uint8_t*) malloc(chromaWidth);
+		if (ctx->outlineEdges == NULL)
+			return 0;
+	}
+	ctx->outlineEdgeRow = -1;
+	return prepareRowWindow(&ctx->outlineWindow, chromaWidth, frame->chromaHeight, 1, &projectOutlineRow);
+}
+
+/**
+ * computes the edges of the chroma samples in [first, last) of the chroma
+ * row the outline window was moved to last. The Sobel kernel is
+ * separated: the vertical sum and difference of every column are computed
+ * once and slide through the three columns the horizontal part needs.
+ */
+void updateOutlineEdges(transformContext *ctx, int first, int last){
+	const int16_t *above = ctx->outlineWindow.rows[0];
+	const int16_t *center = ctx->outlineWindow.rows[1];
+	const int16_t *below = ctx->outlineWindow.rows[2];
+	int chromaWidth = ctx->outlineWindow.width;
+	int l = first > 0 ? first - 1 : 0;
+	int sumL = above[l] + 2 * center[l] + below[l];
+	int diffL = below[l] - above[l];
+	int sumC = above[first] + 2 * center[first] + below[first];
+	int diffC = below[first] - above[first];
+	int j;
+
+	for (j = first; j < last; j++){
+		int r = j + 1 < chromaWidth ? j + 1 : chromaWidth - 1;
+		int sumR = above[r] + 2 * center[r] + below[r];
+		int diffR = below[r] - above[r];
+		int gx = sumR - sumL;
+		int gy = diffL + 2 * diffC + diffR;
+		ctx->outlineEdges[j] = abs(gx) + abs(gy) > OUTLINE_THRESHOLD;
+		sumL = sumC;
+		diffL = diffC;
+		sumC = sumR;
+		diffC = diffR;
+	}
+}
+
+static inline int smooth(const uint16_t* strength, uint16_t* accumulator, int value){
+	int diff = (value << 8) - *accumulator;
+	*accumulator += (diff * strength[abs(diff) >> 8]) >> 8;
+	return (*accumulator + 128) >> 8;
+}
+
+/**
+ * builds the lookup table from the histogram collected during the previous
+ * frame and clears the histogram for the current frame.
+ */
+void updateContrastLut(transformContext *ctx){
+	int i;
+	uint32_t clip, excess = 0, cdf = 0;
+	uint32_t *histogram = ctx->contrastHistogram;
+
+	if (ctx->contrastSamples == 0)
+		return;
+
+	clip = CONTRAST_CLIP_FACTOR * ctx->contrastSamples / 256;
+	for (i = 0; i < 256; i++){
+		if (histogram[i] > clip){
+			excess += histogram[i] - clip;
+			histogram[i] = clip;
+		}
+	}
+	for (i = 0; i < 256; i++){
+		cdf += histogram[i] + excess / 256;
+		int equalized = (int) ((uint64_t) cdf * 255 / ctx->contrastSamples);
+		int target = ((equalized + i) << 8) / 2;
+		ctx->contrastCurve[i] += (target - ctx->contrastCurve[i]) / 4;
+		ctx->contrastLut[i] = (uint8_t) ((ctx->contrastCurve[i] + 128) >> 8);
+	}
+	memset(histogram, 0, sizeof(ctx->contrastHistogram));
+	ctx->contrastSamples = 0;
+}
 
-	for (i = 0; i < height; i++)
-    {
-      for (j = 0; j < width; j++)
-      {
-        nY = *(pY + i * width + j);
-        nU = *(pUV + (i / 2) * width + bytes_per_pixel * (j / 2) + 1);
-        nV = *(pUV + (i / 2) * width + bytes_per_pixel * (j / 2));
+/**
+ * moves the chroma offset towards the average chroma collected during the
+ * previous frame and publishes the rounded offset for getChromaOffset.
+ */
+void updateWhiteBalance(transformContext *ctx){
+	if (ctx->whiteBalanceCount > 0){
+		int targetU = -ctx->whiteBalanceSumU * 256 / ctx->whiteBalanceCount;
+		int targetV = -ctx->whiteBalanceSumV * 256 / ctx->whiteBalanceCount;
+		ctx->whiteBalanceOffsetU += (targetU - ctx->whiteBalanceOffsetU) / (1 << WHITE_BALANCE_ADAPTION_SHIFT);
+		ctx->whiteBalanceOffsetV += (targetV - ctx->whiteBalanceOffsetV) / (1 << WHITE_BALANCE_ADAPTION_SHIFT);
+		ctx->whiteBalanceOffsetU = CLAMP_OFFSET(ctx->whiteBalanceOffsetU);
+		ctx->whiteBalanceOffsetV = CLAMP_OFFSET(ctx->whiteBalanceOffsetV);
+	}
+	ctx->whiteBalanceSumU = ctx->whiteBalanceSumV = ctx->whiteBalanceCount = 0;
 
-        nU -= 128;
-        nV -= 128;
+	pthread_mutex_lock(&ctx->lock);
+	ctx->publishedOffsetU = (ctx->whiteBalanceOffsetU + 128) >> 8;
+	ctx->publishedOffsetV = (ctx->whiteBalanceOffsetV + 128) >> 8;
+	pthread_mutex_unlock(&ctx->lock);
+}
 
-        if (nY < 0) nY = 0;
+/**
+ * start definitions of the pipeline stages. A frame is processed row by
+ * row in chunks of PIPELINE_CHUNK pixels: each chunk is decoded into the
+ * YUV arrays of a pixelRow, runs through the YUV stages, the effect and the
+ * RGB stages and is finally packed into the output. The chunk stays in the
+ * cache the whole time, so a stage only costs its own arithmetic instead of
+ * another pass over the frame.
+ *
+ * Stages are point operations on the arrays of a pixelRow. A stage that
+ * needs the neighbourhood of a pixel keeps a rowWindow with what it needs
+ * of the rows around the current one, and computes its result for the
+ * columns of the chunk at hand, see runOutline.
+ *
+ * The begin function of a stage is called once per frame and returns 0 if
+ * the stage has nothing to do for that frame. Statistics are only collected
+ * from full frames, regions just use them.
+ */
+#define PIPELINE_CHUNK 256
+#define STAGE_DOMAIN_YUV 0
+#define STAGE_DOMAIN_RGB 1
 
-        effectPtr(&nY,&nU,&nV,&nR,&nG,&nB);
+/**
+ * a chunk of a row. y holds values in [0, 255], u and v in [-128, 127] and
+ * r, g, b are in the range used by the effect functions.
+ */
+struct pixelRow {
+	int y[PIPELINE_CHUNK], u[PIPELINE_CHUNK], v[PIPELINE_CHUNK];
+	int r[PIPELINE_CHUNK], g[PIPELINE_CHUNK], b[PIPELINE_CHUNK];
+	const frameInfo *frame;
+	int x;
+	int row;
+	int count;
+};
 
-        if (nR < 0) nR = 0; else if (nR > 16777215) nR = 16777215;
-        if (nG < 0) nG = 0; else if (nG > 16777215) nG = 16777215;
-        if (nB < 0) nB = 0; else if (nB > 16777215) nB = 16777215;
+/**
+ * start definitions of the effect kernels. A kernel runs an effect over the
+ * y, u and v arrays of a chunk and fills its r, g and b arrays. Every
+ * effect and every partial effect gets a kernel of its own with the effect
+ * function inlined into the loop, so the values of a pixel stay in
+ * registers and the only indirect call is the one per chunk through the
+ * kernel pointer, which selectEffect chooses whenever the effect changes.
+ *
+ * A partial kernel keeps the colors of effectNone and only applies its
+ * effect to the colors isConfusable picks.
+ */
+#define EFFECT_KERNEL(name, effect) \
+	void name(const transformParams *params, pixelRow *row){ \
+		int k; \
+		for (k = 0; k < row->count; k++){ \
+			int y = row->y[k], u = row->u[k], v = row->v[k], r, g, b; \
+			effect(params, &y, &u, &v, &r, &g, &b); \
+			row->r[k] = r; \
+			row->g[k] = g; \
+			row->b[k] = b; \
+		} \
+	}
 
-        buffer[offset++] = 	((nR >> 8) & 0xf800) |
-							((nG >> 13) & 0x07e0) |
-							((nB >> 19) & 0x001f);
-      }
-   }
+#define PARTIAL_KERNEL(name, effect) \
+	void name(const transformParams *params, pixelRow *row){ \
+		int k; \
+		for (k = 0; k < row->count; k++){ \
+			int y = row->y[k], u = row->u[k], v = row->v[k], r, g, b; \
+			effectNone(params, &y, &u, &v, &r, &g, &b); \
+			if (isConfusable(params, y, u, v, r, g, b)) \
+				effect(params, &y, &u, &v, &r, &g, &b); \
+			row->r[k] = r; \
+			row->g[k] = g; \
+			row->b[k] = b; \
+		} \
+	}
+
+EFFECT_KERNEL(kernelNone, effectNone)
+EFFECT_KERNEL(kernelSimulate, effectSimulate)
+EFFECT_KERNEL(kernelSimulateAccurate, effectSimulateAccurate)
+EFFECT_KERNEL(kernelIntensify, effectIntesify)
+EFFECT_KERNEL(kernelFalseColors, effectFalseColors)
+EFFECT_KERNEL(kernelDaltonize, effectDaltonize)
+EFFECT_KERNEL(kernelDaltonizeAccurate, effectDaltonizeAccurate)
+EFFECT_KERNEL(kernelPosterize, effectPosterize)
+EFFECT_KERNEL(kernelLut, effectLut)
+PARTIAL_KERNEL(kernelPartialIntensify, effectIntesify)
+PARTIAL_KERNEL(kernelPartialFalseColors, effectFalseColors)
+PARTIAL_KERNEL(kernelPartialPosterize, effectPosterize)
+PARTIAL_KERNEL(kernelPartialLut, effectLut)
+
+/**
+ * the kernel of the pattern effect: the colors of effectNone with the
+ * pattern of their class drawn over them. The pattern depends on the
+ * position of the pixel, which an effect function does not know, so it
+ * has a kernel of its own instead of an EFFECT_KERNEL.
+ */
+void kernelPattern(const transformParams *params, pixelRow *row){
+	int masks[3];
+	int k;
+
+	for (k = 0; k < 3; k++)
+		masks[k] = patternTiles[k][row->row & PATTERN_TILE_MASK];
+	for (k = 0; k < row->count; k++){
+		int y = row->y[k], u = row->u[k], v = row->v[k], r, g, b;
+		int pattern = PATTERN_CLASS(u, v);
+		effectNone(params, &y, &u, &v, &r, &g, &b);
+		patternPixel(pattern, masks[pattern], row->x + k, &r, &g, &b);
+		row->r[k] = r;
+		row->g[k] = g;
+		row->b[k] = b;
+	}
+}
+
+/**
+ * returns the kernel for the given effect constant or NULL if the effect is
+ * unknown. With accurate set, the linear light versions of the simulation
+ * and daltonize are returned.
+ *
+ * Partial effects are not available for the effects showing the whole
+ * picture anyway, nor for the patterns and outlines, which only cover the
+ * confusable colors by themselves. The outlines keep the original colors
+ * and are drawn by their overlay, see getEffectOverlay.
+ */
+effectKernel getEffectKernel(int effect, int partial, int accurate){
+	switch (effect){
+	case COLOR_EFFECT_NONE:
+	case COLOR_EFFECT_OUTLINE:
+		return &kernelNone;
+	case COLOR_EFFECT_PATTERN:
+		return &kernelPattern;
+	case COLOR_EFFECT_SIMULATE:
+		return accurate ? &kernelSimulateAccurate : &kernelSimulate;
+	case COLOR_EFFECT_DALTONIZE:
+		return accurate ? &kernelDaltonizeAccurate : &kernelDaltonize;
+	case COLOR_EFFECT_INTENSIFY_DIFFERENCE:
+		return partial ? &kernelPartialIntensify : &kernelIntensify;
+	case COLOR_EFFECT_FALSE_COLORS:
+		return partial ? &kernelPartialFalseColors : &kernelFalseColors;
+	case COLOR_EFFECT_POSTERIZE:
+		return partial ? &kernelPartialPosterize : &kernelPosterize;
+	case COLOR_EFFECT_LUT:
+		return partial ? &kernelPartialLut : &kernelLut;
+	}
+	return NULL;
+}
+
+/**
+ * sets the kernel according to effectId, partial and accurate.
+ */
+void selectEffect(transformParams *params){
+	params->kernel = getEffectKernel(params->effectId, params->partial, params->accurate);
+}
+
+typedef struct stageDefinition {
+	int domain;
+	int resets;
+	int (*begin)(transformContext *ctx, const frameInfo *frame);
+	void (*run)(transformContext *ctx, pixelRow *row);
+} stageDefinition;
+
+int beginDenoise(transformContext *ctx, const frameInfo *frame){
+	// the accumulators follow whole frames, regions only get the raw data.
+	return frame->fullFrame && prepareDenoise(ctx, frame);
+}
+
+void runDenoise(transformContext *ctx, pixelRow *row){
+	int k;
+	int width = row->frame->width;
+	uint16_t *aY = ctx->denoiseAccumulators + row->row * width + row->x;
+	uint16_t *aUV = ctx->denoiseAccumulators + width * row->frame->height + (row->row / 2) * 2 * row->frame->chromaWidth;
+	const uint16_t *strength = ctx->denoiseStrength;
+	int chromaRow = (row->row & 1) == 0;
+
+	for (k = 0; k < row->count; k++){
+		int j = row->x + k;
+		int uvIndex = j & ~1;
+		row->y[k] = smooth(strength, aY + k, row->y[k]);
+		// each chroma sample is shared by 2x2 pixels and smoothed once.
+		if (chromaRow && (j & 1) == 0){
+			row->v[k] = smooth(strength, aUV + uvIndex, row->v[k] + 128) - 128;
+			row->u[k] = smooth(strength, aUV + uvIndex + 1, row->u[k] + 128) - 128;
+		} else {
+			row->v[k] = ((aUV[uvIndex] + 128) >> 8) - 128;
+			row->u[k] = ((aUV[uvIndex + 1] + 128) >> 8) - 128;
+		}
+	}
+}
+
+int beginWhiteBalance(transformContext *ctx, const frameInfo *frame){
+	if (frame->fullFrame)
+		updateWhiteBalance(ctx);
+	ctx->collectWhiteBalance = frame->fullFrame;
+	return 1;
+}
+
+void runWhiteBalance(transformContext *ctx, pixelRow *row){
+	int k;
+	int gridMask = (1 << WHITE_BALANCE_GRID_SHIFT) - 1;
+	int offsetU = (ctx->whiteBalanceOffsetU + 128) >> 8;
+	int offsetV = (ctx->whiteBalanceOffsetV + 128) >> 8;
+
+	// the statistics only use every 8th row and column.
+	if (ctx->collectWhiteBalance && (row->row & gridMask) == 0){
+		for (k = (-row->x) & gridMask; k < row->count; k += gridMask + 1){
+			if (row->y[k] > 32 && row->y[k] < 224 &&
+					abs(row->u[k]) < WHITE_BALANCE_MAX_CHROMA && abs(row->v[k]) < WHITE_BALANCE_MAX_CHROMA){
+				ctx->whiteBalanceSumU += row->u[k];
+				ctx->whiteBalanceSumV += row->v[k];
+				ctx->whiteBalanceCount++;
+			}
+		}
+	}
+	for (k = 0; k < row->count; k++){
+		int u = row->u[k] + offsetU;
+		int v = row->v[k] + offsetV;
+		row->u[k] = u < -128 ? -128 : (u > 127 ? 127 : u);
+		row->v[k] = v < -128 ? -128 : (v > 127 ? 127 : v);
+	}
+}
+
+int beginContrast(transformContext *ctx, const frameInfo *frame){
+	if (frame->fullFrame){
+		updateContrastLut(ctx);
+		ctx->contrastSamples = frame->width * frame->height;
+	}
+	ctx->collectHistogram = frame->fullFrame;
+	return 1;
+}
+
+void runContrast(transformContext *ctx, pixelRow *row){
+	int k;
+	const uint8_t *lut = ctx->contrastLut;
+
+	if (ctx->collectHistogram){
+		for (k = 0; k < row->count; k++)
+			ctx->contrastHistogram[row->y[k]]++;
+	}
+	for (k = 0; k < row->count; k++)
+		row->y[k] = lut[row->y[k]];
+}
+
+int beginHighlight(transformContext *ctx, const frameInfo *frame){
+	return ctx->active.highlightEnabled;
+}
+
+void runHighlight(transformContext *ctx, pixelRow *row){
+	int k;
+	const transformParams *params = &ctx->active;
+
+	for (k = 0; k < row->count; k++){
+		if (!IS_HIGHLIGHTED(params, row->y[k], row->u[k], row->v[k]))
+			row->r[k] = row->g[k] = row->b[k] = 32768 * row->y[k];
+	}
+}
+
+/**
+ * overlays of the effects that depend on the neighbours of a pixel. They are
+ * not available as stages of their own, but run after the RGB stages
+ * while their effect is active, so they are drawn over the final colors.
+ */
+int beginOutline(transformContext *ctx, const frameInfo *frame){
+	return prepareOutline(ctx, frame);
+}
+
+void runOutline(transformContext *ctx, pixelRow *row){
+	int first = row->x >> 1;
+	int last = (row->x + row->count - 1) >> 1;
+	int c, k;
+
+	if (ctx->outlineWindow.center != row->row / 2){
+		loadRowWindow(&ctx->outlineWindow, row->frame, row->row / 2);
+		ctx->outlineEdgeRow = row->row;
+	}
+	if (ctx->outlineEdgeRow == row->row)
+		updateOutlineEdges(ctx, first, last + 1);
+	// edges are rare, so the test runs once per chroma sample.
+	for (c = first; c <= last; c++){
+		if (!ctx->outlineEdges[c])
+			continue;
+		int from = 2 * c - row->x;
+		int to = from + 2;
+		for (k = from < 0 ? 0 : from; k < to && k < row->count; k++)
+			row->r[k] = row->g[k] = row->b[k] = 0;
+	}
+}
+
+const stageDefinition outlineOverlay = { STAGE_DOMAIN_RGB, 0, &beginOutline, &runOutline };
+
+/**
+ * @return the overlay of the given effect or NULL if it has none
+ */
+const stageDefinition* getEffectOverlay(int effect){
+	switch (effect){
+	case COLOR_EFFECT_OUTLINE:
+		return &outlineOverlay;
+	}
+	return NULL;
+}
+
+/**
+ * the definitions of the stages, indexed by the stage constants.
+ */
+const stageDefinition stageDefinitions[STAGE_COUNT] = {
+	{ STAGE_DOMAIN_YUV, RESET_DENOISE, &beginDenoise, &runDenoise },
+	{ STAGE_DOMAIN_YUV, RESET_WHITE_BALANCE, &beginWhiteBalance, &runWhiteBalance },
+	{ STAGE_DOMAIN_YUV, RESET_CONTRAST, &beginContrast, &runContrast },
+	{ STAGE_DOMAIN_RGB, 0, &beginHighlight, &runHighlight },
+};
+
+int hasStage(const transformParams *params, int stage){
+	int k;
+	for (k = 0; k < params->stageCount; k++){
+		if (params->stages[k] == stage)
+			return 1;
+	}
+	return 0;
+}
+
+/**
+ * start definitions of the decode kernels. Each layout gets its own copy
+ * of the loop with the chroma step as a constant, the layouts only differ
+ * in the plane pointers set up by initFrame.
+ */
+static inline void decodeRowWithStep(pixelRow *row, const int step){
+	int k;
+	const frameInfo *frame = row->frame;
+	const uint8_t *pY = frame->y + row->row * frame->yStride + row->x;
+	const uint8_t *pU = frame->u + (row->row / 2) * frame->uvStride;
+	const uint8_t *pV = frame->v + (row->row / 2) * frame->uvStride;
+
+	for (k = 0; k < row->count; k++){
+		int uvIndex = ((row->x + k) >> 1) * step;
+		row->y[k] = pY[k];
+		row->v[k] = pV[uvIndex] - 128;
+		row->u[k] = pU[uvIndex] - 128;
+	}
+}
+
+void decodeRowSemiPlanar(pixelRow *row){
+	decodeRowWithStep(row, 2);
+}
+
+void decodeRowPlanar(pixelRow *row){
+	decodeRowWithStep(row, 1);
+}
+
+/**
+ * describes the frame in data with the given layout. A stride of 0 stands
+ * for rows without padding.
+ *
+ * @return 0 if the layout is not supported
+ */
+int initFrame(frameInfo *frame, uint8_t *data, int32_t width, int32_t height, int format, int32_t yStride, int32_t uvStride){
+	int32_t chromaWidth = (width + 1) / 2;
+	int32_t chromaHeight = (height + 1) / 2;
+	int planar = format != INPUT_FORMAT_NV21;
+
+	if (width <= 0 || height <= 0 || yStride < 0 || uvStride < 0)
+		return 0;
+	if (yStride == 0)
+		yStride = width;
+	if (uvStride == 0)
+		uvStride = planar ? chromaWidth : 2 * chromaWidth;
+	if (yStride < width || uvStride < (planar ? chromaWidth : 2 * chromaWidth))
+		return 0;
+
+	const uint8_t *chroma = data + yStride * height;
+	switch (format){
+	case INPUT_FORMAT_NV21:
+		frame->v = chroma;
+		frame->u = chroma + 1;
+		break;
+	case INPUT_FORMAT_YV12:
+		frame->v = chroma;
+		frame->u = chroma + uvStride * chromaHeight;
+		break;
+	case INPUT_FORMAT_I420:
+		frame->u = chroma;
+		frame->v = chroma + uvStride * chromaHeight;
+		break;
+	default:
+		return 0;
+	}
+	frame->y = data;
+	frame->yStride = yStride;
+	frame->uvStride = uvStride;
+	frame->uvStep = planar ? 1 : 2;
+	frame->decode = planar ? &decodeRowPlanar : &decodeRowSemiPlanar;
+	frame->width = width;
+	frame->height = height;
+	frame->chromaWidth = chromaWidth;
+	frame->chromaHeight = chromaHeight;
+	frame->fullFrame = 1;
+	return 1;
+}
+
+/**
+ * @return the number of bytes the data of the frame needs at least
+ */
+int64_t getFrameSize(const frameInfo *frame){
+	int planes = frame->uvStep == 1 ? 2 : 1;
+	return (int64_t) frame->yStride * frame->height + (int64_t) planes * frame->uvStride * frame->chromaHeight;
+}
+
+/**
+ * start definitions of the row writers. A writer clamps the rgb values of
+ * a chunk and packs them into the destination pixels. There is one writer
+ * per output format, so the format is never tested per pixel.
+ *
+ * The dithering adds a threshold of the 4x4 Bayer matrix of the pixel,
+ * scaled to one step of the channel, before the channel is truncated. It
+ * spreads the rounding error of RGB565 over neighbouring pixels, which
+ * removes the banding of smooth gradients.
+ */
+typedef void (*rowWriter)(const pixelRow *row, uint8_t *pixels);
+
+static const uint8_t ditherMatrix[4][4] = {
+	{ 0, 8, 2, 10 },
+	{ 12, 4, 14, 6 },
+	{ 3, 11, 1, 9 },
+	{ 15, 7, 13, 5 },
+};
+
+static inline int clampRgb(int value){
+	return value < 0 ? 0 : (value > 16777215 ? 16777215 : value);
+}
+
+void writeRgb565(const pixelRow *row, uint8_t *pixels){
+	int k;
+	uint16_t *out = (uint16_t*) pixels;
+
+	for (k = 0; k < row->count; k++){
+		int nR = clampRgb(row->r[k]), nG = clampRgb(row->g[k]), nB = clampRgb(row->b[k]);
+
+		out[k] = ((nR >> 8) & 0xf800) |
+				((nG >> 13) & 0x07e0) |
+				((nB >> 19) & 0x001f);
+	}
+}
+
+void writeRgb565Dithered(const pixelRow *row, uint8_t *pixels){
+	int k;
+	uint16_t *out = (uint16_t*) pixels;
+	const uint8_t *thresholds = ditherMatrix[row->row & 3];
+
+	for (k = 0; k < row->count; k++){
+		int threshold = thresholds[(row->x + k) & 3];
+		int nR = clampRgb(row->r[k] + (threshold << 15));
+		int nG = clampRgb(row->g[k] + (threshold << 14));
+		int nB = clampRgb(row->b[k] + (threshold << 15));
+
+		out[k] = ((nR >> 8) & 0xf800) |
+				((nG >> 13) & 0x07e0) |
+				((nB >> 19) & 0x001f);
+	}
+}
+
+/**
+ * bytes in the order R, G, B, A as used by ARGB_8888 bitmaps and GL_RGBA
+ * textures.
+ */
+void writeRgba8888(const pixelRow *row, uint8_t *pixels){
+	int k;
+
+	for (k = 0; k < row->count; k++){
+		pixels[4 * k] = clampRgb(row->r[k]) >> 16;
+		pixels[4 * k + 1] = clampRgb(row->g[k]) >> 16;
+		pixels[4 * k + 2] = clampRgb(row->b[k]) >> 16;
+		pixels[4 * k + 3] = 0xff;
+	}
+}
+
+/**
+ * native ints 0xAARRGGBB as used by the colors on the Java side.
+ */
+void writeArgb8888(const pixelRow *row, uint8_t *pixels){
+	int k;
+	uint32_t *out = (uint32_t*) pixels;
+
+	for (k = 0; k < row->count; k++){
+		out[k] = 0xff000000u |
+				(clampRgb(row->r[k]) & 0xff0000) |
+				((clampRgb(row->g[k]) >> 8) & 0x00ff00) |
+				(clampRgb(row->b[k]) >> 16);
+	}
+}
+
+/**
+ * @return the number of bytes per pixel of the format or 0 if unknown
+ */
+int getBytesPerPixel(int format){
+	switch (format){
+	case OUTPUT_FORMAT_RGB_565:
+		return 2;
+	case OUTPUT_FORMAT_RGBA_8888:
+	case OUTPUT_FORMAT_ARGB_8888:
+		return 4;
+	}
+	return 0;
+}
+
+/**
+ * describes the destination pixels. A stride of 0 stands for rows of
+ * width pixels without padding.
+ *
+ * @return 0 if the format is not supported
+ */
+int initOutput(outputInfo *output, void *pixels, int32_t width, int32_t stride, int format){
+	int bytesPerPixel = getBytesPerPixel(format);
+
+	if (bytesPerPixel == 0)
+		return 0;
+	output->pixels = (uint8_t*) pixels;
+	output->stride = stride != 0 ? stride : width * bytesPerPixel;
+	output->format = format;
+	output->bytesPerPixel = bytesPerPixel;
+	return 1;
+}
+
+rowWriter getRowWriter(const outputInfo *output, const transformParams *params){
+	switch (output->format){
+	case OUTPUT_FORMAT_RGBA_8888:
+		return &writeRgba8888;
+	case OUTPUT_FORMAT_ARGB_8888:
+		return &writeArgb8888;
+	}
+	return params->dither ? &writeRgb565Dithered : &writeRgb565;
+}
+
+/**
+ * start definitions of the JNI binding functions. The context handle is
+ * the address of the transformContext.
+ */
+#define CONTEXT(handle) ((transformContext*) (intptr_t) (handle))
+
+static void throwIllegalArgument(JNIEnv * env, const char* message){
+	jclass exception = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+	(*env)->ThrowNew(env, exception, message);
+}
+
+/**
+ * describes the frame in the given array and throws an
+ * IllegalArgumentException if the layout is not supported or the array is
+ * too small for it.
+ *
+ * @return 1 if the frame may be transformed
+ */
+static int describeFrame(JNIEnv * env, jbyteArray jarray, jbyte* jdata, jint width, jint height, jint format, jint yStride, jint uvStride, frameInfo *frame){
+	if (!initFrame(frame, (uint8_t*) jdata, (int32_t) width, (int32_t) height, (int) format, (int32_t) yStride, (int32_t) uvStride)){
+		throwIllegalArgument(env, "unsupported frame layout");
+		return 0;
+	}
+	if (getFrameSize(frame) > (*env)->GetArrayLength(env, jarray)){
+		throwIllegalArgument(env, "frame data too small for its layout");
+		return 0;
+	}
+	return 1;
+}
+
+JNIEXPORT jlong JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeCreate
+  (JNIEnv * env, jclass cl){
+	return (jlong) (intptr_t) createContext();
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeDestroy
+  (JNIEnv * env, jclass cl, jlong handle){
+	destroyContext(CONTEXT(handle));
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetEffect
+  (JNIEnv * env, jclass cl, jlong handle, jint effect, jboolean partial){
+	transformContext *ctx = CONTEXT(handle);
+	if (getEffectKernel(effect, 0, 0) == NULL)
+		return;
+
+	transformParams *params = editPending(ctx);
+	params->effectId = effect;
+	params->partial = partial;
+	selectEffect(params);
+	commitPending(ctx, 0);
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetAccurate
+  (JNIEnv * env, jclass cl, jlong handle, jboolean accurate){
+	transformContext *ctx = CONTEXT(handle);
+
+	transformParams *params = editPending(ctx);
+	params->accurate = accurate;
+	selectEffect(params);
+	commitPending(ctx, 0);
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetDithering
+  (JNIEnv * env, jclass cl, jlong handle, jboolean dither){
+	transformContext *ctx = CONTEXT(handle);
+
+	transformParams *params = editPending(ctx);
+	params->dither = dither;
+	commitPending(ctx, 0);
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetHighlight
+  (JNIEnv * env, jclass cl, jlong handle, jintArray membership){
+	transformContext *ctx = CONTEXT(handle);
+	transformParams *params;
+
+	if (membership == NULL){
+		params = editPending(ctx);
+		params->highlightEnabled = 0;
+		commitPending(ctx, 0);
+		return;
+	}
+	if ((*env)->GetArrayLength(env, membership) < TABLE_SIZE / 32){
+		throwIllegalArgument(env, "membership bitset too small");
+		return;
+	}
+	params = editPending(ctx);
+	(*env)->GetIntArrayRegion(env, membership, 0, TABLE_SIZE / 32, (jint*) params->highlightTable);
+	params->highlightEnabled = 1;
+	commitPending(ctx, 0);
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetStages
+  (JNIEnv * env, jclass cl, jlong handle, jintArray jstages){
+	transformContext *ctx = CONTEXT(handle);
+	jint stages[MAX_STAGES];
+	jsize count = jstages != NULL ? (*env)->GetArrayLength(env, jstages) : 0;
+	int k, l, resets = 0;
+
+	if (count > MAX_STAGES){
+		throwIllegalArgument(env, "too many stages");
+		return;
+	}
+	if (count > 0)
+		(*env)->GetIntArrayRegion(env, jstages, 0, count, stages);
+	for (k = 0; k < count; k++){
+		if (stages[k] < 0 || stages[k] >= STAGE_COUNT){
+			throwIllegalArgument(env, "unknown stage");
+			return;
+		}
+		for (l = 0; l < k; l++){
+			if (stages[l] == stages[k]){
+				throwIllegalArgument(env, "stage used twice");
+				return;
+			}
+		}
+	}
+
+	transformParams *params = editPending(ctx);
+	// stages that have not been running start over with fresh state.
+	for (k = 0; k < count; k++){
+		if (!hasStage(params, stages[k]))
+			resets |= stageDefinitions[stages[k]].resets;
+	}
+	if (resets & RESET_WHITE_BALANCE)
+		ctx->publishedOffsetU = ctx->publishedOffsetV = 0;
+	for (k = 0; k < count; k++)
+		params->stages[k] = stages[k];
+	params->stageCount = count;
+	commitPending(ctx, resets);
+}
+
+/**
+ * applies the effect of the pending parameters to single colors. The
+ * stages are not applied, since they depend on the surrounding frames.
+ * Colors are packed as 0xYYUUVV with U and V offset by 128 and returned
+ * as 0xRRGGBB.
+ */
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformColors
+  (JNIEnv * env, jclass cl, jlong handle, jintArray yuvColors, jintArray rgbColors){
+	transformContext *ctx = CONTEXT(handle);
+	jsize count = (*env)->GetArrayLength(env, yuvColors);
+	int i, k;
+	pixelRow row;
+
+	if ((*env)->GetArrayLength(env, rgbColors) < count){
+		throwIllegalArgument(env, "output array too small");
+		return;
+	}
+	jint *yuv = (*env)->GetIntArrayElements(env, yuvColors, NULL);
+	jint *rgb = (*env)->GetIntArrayElements(env, rgbColors, NULL);
+
+	pthread_mutex_lock(&ctx->lock);
+	const transformParams *params = &ctx->pending;
+	// the colors are laid out like the first row of a frame, which is
+	// where kernelPattern takes the position of its pattern from.
+	row.frame = NULL;
+	row.row = 0;
+	for (i = 0; i < count; i += PIPELINE_CHUNK){
+		row.x = i;
+		row.count = count - i < PIPELINE_CHUNK ? count - i : PIPELINE_CHUNK;
+		for (k = 0; k < row.count; k++){
+			row.y[k] = (yuv[i + k] >> 16) & 0xff;
+			row.u[k] = ((yuv[i + k] >> 8) & 0xff) - 128;
+			row.v[k] = (yuv[i + k] & 0xff) - 128;
+		}
+		params->kernel(params, &row);
+		for (k = 0; k < row.count; k++)
+			rgb[i + k] = (clampByte(row.r[k] >> 16) << 16) | (clampByte(row.g[k] >> 16) << 8) | clampByte(row.b[k] >> 16);
+	}
+	pthread_mutex_unlock(&ctx->lock);
+
+	(*env)->ReleaseIntArrayElements(env, yuvColors, yuv, JNI_ABORT);
+	(*env)->ReleaseIntArrayElements(env, rgbColors, rgb, 0);
+}
+
+JNIEXPORT jint JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeGetChromaOffsetU
+  (JNIEnv * env, jclass cl, jlong handle){
+	transformContext *ctx = CONTEXT(handle);
+	pthread_mutex_lock(&ctx->lock);
+	jint offset = hasStage(&ctx->pending, STAGE_WHITE_BALANCE) ? ctx->publishedOffsetU : 0;
+	pthread_mutex_unlock(&ctx->lock);
+	return offset;
+}
+
+JNIEXPORT jint JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeGetChromaOffsetV
+  (JNIEnv * env, jclass cl, jlong handle){
+	transformContext *ctx = CONTEXT(handle);
+	pthread_mutex_lock(&ctx->lock);
+	jint offset = hasStage(&ctx->pending, STAGE_WHITE_BALANCE) ? ctx->publishedOffsetV : 0;
+	pthread_mutex_unlock(&ctx->lock);
+	return offset;
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetPalette
+  (JNIEnv * env, jclass cl, jlong handle, jbyteArray colorIndices, jintArray rgb){
+	transformContext *ctx = CONTEXT(handle);
+	int i;
+	jint colors[PALETTE_MAX];
+	jsize count = (*env)->GetArrayLength(env, rgb);
+
+	if ((*env)->GetArrayLength(env, colorIndices) < TABLE_SIZE || count > PALETTE_MAX){
+		throwIllegalArgument(env, "wrong palette size");
+		return;
+	}
+	(*env)->GetIntArrayRegion(env, rgb, 0, count, colors);
+
+	transformParams *params = editPending(ctx);
+	(*env)->GetByteArrayRegion(env, colorIndices, 0, TABLE_SIZE, (jbyte*) params->paletteTable);
+	for (i = 0; i < count; i++){
+		params->paletteRgb[3 * i] = ((colors[i] >> 16) & 0xff) << 16;
+		params->paletteRgb[3 * i + 1] = ((colors[i] >> 8) & 0xff) << 16;
+		params->paletteRgb[3 * i + 2] = (colors[i] & 0xff) << 16;
+	}
+	for (i = 0; i < TABLE_SIZE; i++){
+		if (params->paletteTable[i] >= count)
+			params->paletteTable[i] = 0;
+	}
+	params->paletteSet = 1;
+	commitPending(ctx, 0);
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeSetLut
+  (JNIEnv * env, jclass cl, jlong handle, jint size, jintArray rgb){
+	transformContext *ctx = CONTEXT(handle);
+
+	if (size < LUT_MIN_SIZE || size > LUT_MAX_SIZE || (*env)->GetArrayLength(env, rgb) < size * size * size){
+		throwIllegalArgument(env, "wrong lookup table size");
+		return;
+	}
+	jint *colors = (*env)->GetIntArrayElements(env, rgb, NULL);
+	lutTable *lut = createLut(size, colors);
+	(*env)->ReleaseIntArrayElements(env, rgb, colors, JNI_ABORT);
+	if (lut == NULL){
+		jclass exception = (*env)->FindClass(env, "java/lang/OutOfMemoryError");
+		(*env)->ThrowNew(env, exception, "unable to allocate the lookup table");
+		return;
+	}
+
+	transformParams *params = editPending(ctx);
+	// a table that never became active can be freed right away.
+	lutTable *replaced = params->lut != ctx->active.lut ? params->lut : NULL;
+	params->lut = lut;
+	commitPending(ctx, 0);
+	freeLut(replaced);
+}
+
+/**
+ * locks the pixels of the bitmap and describes them as output. Throws an
+ * IllegalArgumentException if the format of the bitmap is not supported or
+ * the bitmap is smaller than the given size.
+ *
+ * @return 1 if the pixels are locked and need to be unlocked
+ */
+static int lockBitmap(JNIEnv * env, jobject bitmap, int32_t width, int32_t height, outputInfo *output){
+	int 				ret;
+	int 				format;
+	void* 				pixels;
+	AndroidBitmapInfo	info;
+
+	if ((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0) {
+		LOGE("AndroidBitmap_getInfo() failed ! error=%d", ret);
+		return 0;
+	}
+	switch (info.format){
+	case ANDROID_BITMAP_FORMAT_RGB_565:
+		format = OUTPUT_FORMAT_RGB_565;
+		break;
+	case ANDROID_BITMAP_FORMAT_RGBA_8888:
+		format = OUTPUT_FORMAT_RGBA_8888;
+		break;
+	default:
+		throwIllegalArgument(env, "unsupported bitmap format");
+		return 0;
+	}
+	if ((int32_t) info.width < width || (int32_t) info.height < height){
+		throwIllegalArgument(env, "bitmap smaller than the frame");
+		return 0;
+	}
+	if ((ret = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
+		LOGE("AndroidBitmap_lockPixels() failed ! error=%d", ret);
+		return 0;
+	}
+	initOutput(output, pixels, (int32_t) info.width, (int32_t) info.stride, format);
+	return 1;
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformImageToBitmap
+  (JNIEnv * env, jclass cl, jlong handle, jbyteArray jarray, jint width, jint height, jint format, jint yStride, jint uvStride, jobject bitmap){
+	frameInfo			frame;
+	outputInfo			output;
+	jboolean 			isCopy;
+	jbyte* 				jdata = (*env)->GetByteArrayElements(env, jarray, &isCopy);
+
+	if (!describeFrame(env, jarray, jdata, width, height, format, yStride, uvStride, &frame)
+			|| !lockBitmap(env, bitmap, (int32_t) width, (int32_t) height, &output)){
+		(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+		return;
+	}
+
+	transformYuv2Rgb(CONTEXT(handle), &frame, &output);
+
+	AndroidBitmap_unlockPixels(env, bitmap);
+	(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformImageToBuffer
+  (JNIEnv * env, jclass cl, jlong handle, jbyteArray jarray, jint width, jint height, jint format, jint yStride, jint uvStride, jint outputFormat, jbyteArray buffer){
+	frameInfo			frame;
+	outputInfo			output;
+	jboolean 			isCopy;
+
+	// native ints only make sense in an int array.
+	if (outputFormat == OUTPUT_FORMAT_ARGB_8888 || getBytesPerPixel(outputFormat) == 0){
+		throwIllegalArgument(env, "unsupported output format");
+		return;
+	}
+	if ((int64_t) width * height * getBytesPerPixel(outputFormat) > (*env)->GetArrayLength(env, buffer)){
+		throwIllegalArgument(env, "buffer too small");
+		return;
+	}
+	jbyte* 				jdata = (*env)->GetByteArrayElements(env, jarray, &isCopy);
+
+	if (!describeFrame(env, jarray, jdata, width, height, format, yStride, uvStride, &frame)){
+		(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+		return;
+	}
+	jbyte* 				jbuffer = (*env)->GetByteArrayElements(env, buffer, &isCopy);
+
+	initOutput(&output, jbuffer, (int32_t) width, 0, (int) outputFormat);
+	transformYuv2Rgb(CONTEXT(handle), &frame, &output);
+
+	(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+	(*env)->ReleaseByteArrayElements(env, buffer, jbuffer, 0);
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformImageToPixels
+  (JNIEnv * env, jclass cl, jlong handle, jbyteArray jarray, jint width, jint height, jint format, jint yStride, jint uvStride, jintArray jpixels){
+	frameInfo			frame;
+	outputInfo			output;
+	jboolean 			isCopy;
+
+	if ((int64_t) width * height > (*env)->GetArrayLength(env, jpixels)){
+		throwIllegalArgument(env, "pixel array too small");
+		return;
+	}
+	jbyte* 				jdata = (*env)->GetByteArrayElements(env, jarray, &isCopy);
+
+	if (!describeFrame(env, jarray, jdata, width, height, format, yStride, uvStride, &frame)){
+		(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+		return;
+	}
+	jint* 				pixels = (*env)->GetIntArrayElements(env, jpixels, &isCopy);
+
+	initOutput(&output, pixels, (int32_t) width, 0, OUTPUT_FORMAT_ARGB_8888);
+	transformYuv2Rgb(CONTEXT(handle), &frame, &output);
+
+	(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+	(*env)->ReleaseIntArrayElements(env, jpixels, pixels, 0);
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformMosaicToBitmap
+  (JNIEnv * env, jclass cl, jlong handle, jbyteArray jarray, jint width, jint height, jint format, jint yStride, jint uvStride, jintArray jeffects, jobject bitmap){
+	frameInfo			frame;
+	outputInfo			output;
+	jint				effects[MOSAIC_MAX_PANES];
+	jsize				panes = (*env)->GetArrayLength(env, jeffects);
+
+	if (panes != 2 && panes != MOSAIC_MAX_PANES){
+		throwIllegalArgument(env, "mosaic needs 2 or 4 effects");
+		return;
+	}
+	(*env)->GetIntArrayRegion(env, jeffects, 0, panes, effects);
+
+	jboolean 			isCopy;
+	jbyte* 				jdata = (*env)->GetByteArrayElements(env, jarray, &isCopy);
+
+	if (!describeFrame(env, jarray, jdata, width, height, format, yStride, uvStride, &frame)
+			|| !lockBitmap(env, bitmap, (int32_t) width, (int32_t) height, &output)){
+		(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+		return;
+	}
+
+	transformMosaic(CONTEXT(handle), &frame, (int*) effects, panes, &output);
+
+	AndroidBitmap_unlockPixels(env, bitmap);
+	(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL Java_ch_hsr_eyecam_colormodel_ColorTransform_nativeTransformRegionToBitmap
+  (JNIEnv * env, jclass cl, jlong handle, jbyteArray jarray, jint width, jint height, jint format, jint yStride, jint uvStride, jint left, jint top, jobject bitmap){
+	int 				ret;
+	frameInfo			frame;
+	outputInfo			output;
+	AndroidBitmapInfo	info;
+
+	if ((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0) {
+		LOGE("AndroidBitmap_getInfo() failed ! error=%d", ret);
+		return;
+	}
+	if ((int32_t) info.width > width || (int32_t) info.height > height){
+		throwIllegalArgument(env, "bitmap bigger than the frame");
+		return;
+	}
+	// move the region inside the frame instead of failing at the borders.
+	if (left < 0) left = 0;
+	else if (left > width - (int32_t) info.width) left = width - info.width;
+	if (top < 0) top = 0;
+	else if (top > height - (int32_t) info.height) top = height - info.height;
+
+	jboolean 			isCopy;
+	jbyte* 				jdata = (*env)->GetByteArrayElements(env, jarray, &isCopy);
+
+	if (!describeFrame(env, jarray, jdata, width, height, format, yStride, uvStride, &frame)
+			|| !lockBitmap(env, bitmap, (int32_t) info.width, (int32_t) info.height, &output)){
+		(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+		return;
+	}
+
+	transformRegion(CONTEXT(handle), &frame, (int32_t) left, (int32_t) top,
+			(int32_t) info.width, (int32_t) info.height, &output);
+
+	AndroidBitmap_unlockPixels(env, bitmap);
+	(*env)->ReleaseByteArrayElements(env, jarray, jdata, JNI_ABORT);
+}
+
+/**
+ * start of the transformation methods.
+ *
+ * Most cameras deliver the data in yuv420sp aka NV21 format.
+ * The data representation looks something like this:
+ *
+ * <-----------width------------>
+ * | y0 | y1 | y2 |........|yW-2|  ^
+ * |yW-1| yW |..................|  |
+ * |............................|  | height
+ * |............................|  |
+ * |____________________________|  v
+ * |v0,1|u0,1|v2,3|u2,3|........|  ^
+ * |............................|  | height/2
+ * |____________________________|  v
+ *
+ * YV12 and I420 frames store the V and the U samples in planes of their
+ * own instead, see frameInfo. Rows of all planes may be padded.
+ *
+ * The transformYuv2Rgb function takes the data frames, runs them
+ * through the pipeline of the active parameters of the context, i.e.
+ * the YUV stages, the effect function and the RGB stages, and converts
+ * them to the format of the output, see the row writers.
+ * Each pixel in the RGB565 format looks like the following:
+ *  _______________________________________________
+ * |R4,R3,R2,R1,R0|G5,G4,G3,G2,G1,G0|B4,B3,B2,B1,B0|
+ *  -----------------------------------------------
+ *  15 14 13 12 11 10  9  8  7  6  5  4  3  2  1  0  Bitnumber
+ *
+ * @pre:	frame set up by initFrame
+ * 			output set up by initOutput, of the size of the frame
+ * @post:	output filled with the transformed pixels
+ */
+
+void transformYuv2Rgb(transformContext *ctx, frameInfo *frame, outputInfo *output)
+{
+	transformRegion(ctx, frame, 0, 0, frame->width, frame->height, output);
+}
+
+/**
+ * Same as transformYuv2Rgb, but only transforms the given region of the
+ * frame. The output receives regionWidth * regionHeight pixels.
+ *
+ * @pre:	frame set up by initFrame
+ * 			region lies completely inside of the frame
+ * 			output set up by initOutput, of the size of the region
+ * @post:	output filled with the transformed pixels of the region
+ */
+void transformRegion(transformContext *ctx, frameInfo *frame, int32_t left, int32_t top, int32_t regionWidth, int32_t regionHeight, outputInfo *output)
+{
+	const stageDefinition *yuvStages[MAX_STAGES], *rgbStages[MAX_STAGES + 1];
+	int yuvCount = 0, rgbCount = 0;
+	int i, j, k;
+	pixelRow row;
+
+	frame->fullFrame = regionWidth == frame->width && regionHeight == frame->height;
+	beginFrame(ctx);
+	const transformParams *params = &ctx->active;
+	rowWriter write = getRowWriter(output, params);
+	for (k = 0; k < params->stageCount; k++){
+		const stageDefinition *stage = &stageDefinitions[params->stages[k]];
+		if (!stage->begin(ctx, frame))
+			continue;
+		if (stage->domain == STAGE_DOMAIN_YUV)
+			yuvStages[yuvCount++] = stage;
+		else
+			rgbStages[rgbCount++] = stage;
+	}
+	const stageDefinition *overlay = getEffectOverlay(params->effectId);
+	if (overlay != NULL && overlay->begin(ctx, frame))
+		rgbStages[rgbCount++] = overlay;
+
+	row.frame = frame;
+	for (i = top; i < top + regionHeight; i++)
+	{
+		uint8_t *pixels = output->pixels + (i - top) * output->stride;
+		row.row = i;
+		for (j = left; j < left + regionWidth; j += PIPELINE_CHUNK)
+		{
+			row.x = j;
+			row.count = left + regionWidth - j < PIPELINE_CHUNK ? left + regionWidth - j : PIPELINE_CHUNK;
+
+			frame->decode(&row);
+			for (k = 0; k < yuvCount; k++)
+				yuvStages[k]->run(ctx, &row);
+			params->kernel(params, &row);
+			for (k = 0; k < rgbCount; k++)
+				rgbStages[k]->run(ctx, &row);
+			write(&row, pixels);
+			pixels += row.count * output->bytesPerPixel;
+		}
+	}
+}
+
+/**
+ * fills the rows in [first, last) of the output with black. The writer
+ * takes care of the alpha of the formats that have one.
+ */
+static void clearRows(outputInfo *output, rowWriter write, int32_t width, int first, int last){
+	int i, j;
+	pixelRow black;
+
+	memset(black.r, 0, sizeof(black.r));
+	memset(black.g, 0, sizeof(black.g));
+	memset(black.b, 0, sizeof(black.b));
+	for (i = first; i < last; i++){
+		black.row = i;
+		for (j = 0; j < width; j += PIPELINE_CHUNK){
+			black.x = j;
+			black.count = width - j < PIPELINE_CHUNK ? width - j : PIPELINE_CHUNK;
+			write(&black, output->pixels + i * output->stride + j * output->bytesPerPixel);
+		}
+	}
+}
+
+/**
+ * Renders the frame with several effects at once. Each pane has half the
+ * width and half the height of the frame. With 4 panes the panes fill the
+ * frame as a 2x2 grid, with 2 panes they are placed side by side in the
+ * middle of the frame and the rest is cleared to black.
+ *
+ * The frame is decoded at chroma resolution, so every chroma sample and the
+ * luma sample at its upper left are read once and fed to the effect of
+ * every pane. The total number of effect evaluations equals one full
+ * resolution transformation.
+ *
+ * Unknown effects are rendered without any effect and the highlighting is
+ * not applied. The patterns and outlines are drawn at pane resolution.
+ *
+ * @pre:	frame set up by initFrame
+ * 			width, height even
+ * 			panes either 2 or 4
+ * 			output set up by initOutput, of the size of the frame
+ * @post:	output filled with the panes
+ */
+void transformMosaic(transformContext *ctx, frameInfo *frame, int* effects, int panes, outputInfo *output)
+{
+	effectKernel kernels[MOSAIC_MAX_PANES];
+	uint8_t* paneOrigins[MOSAIC_MAX_PANES];
+	int32_t width = frame->width;
+	int32_t height = frame->height;
+	int paneWidth = width / 2;
+	int paneHeight = height / 2;
+	int step = frame->uvStep;
+	int i, j, k, c;
+	pixelRow source;
+
+	int outline = 0;
+
+	beginFrame(ctx);
+	const transformParams *params = &ctx->active;
+	rowWriter write = getRowWriter(output, params);
+
+	for (k = 0; k < panes; k++){
+		if (effects[k] == COLOR_EFFECT_OUTLINE)
+			outline = 1;
+		kernels[k] = getEffectKernel(effects[k], 0, params->accurate);
+		if (kernels[k] == NULL)
+			kernels[k] = &kernelNone;
+		if (panes == MOSAIC_MAX_PANES)
+			paneOrigins[k] = output->pixels + (k >> 1) * paneHeight * output->stride + (k & 1) * paneWidth * output->bytesPerPixel;
+		else
+			paneOrigins[k] = output->pixels + (paneHeight / 2) * output->stride + k * paneWidth * output->bytesPerPixel;
+	}
+
+	if (panes != MOSAIC_MAX_PANES){
+		clearRows(output, write, width, 0, paneHeight / 2);
+		clearRows(output, write, width, paneHeight / 2 + paneHeight, height);
+	}
+
+	if (outline)
+		outline = prepareOutline(ctx, frame);
+
+	source.frame = frame;
+	for (i = 0; i < paneHeight; i++)
+	{
+		const uint8_t *rowY = frame->y + 2 * i * frame->yStride;
+		const uint8_t *rowU = frame->u + i * frame->uvStride;
+		const uint8_t *rowV = frame->v + i * frame->uvStride;
+
+		if (outline)
+			loadRowWindow(&ctx->outlineWindow, frame, i);
+
+		source.row = i;
+		for (j = 0; j < paneWidth; j += PIPELINE_CHUNK)
+		{
+			int count = paneWidth - j < PIPELINE_CHUNK ? paneWidth - j : PIPELINE_CHUNK;
+
+			for (c = 0; c < count; c++){
+				source.y[c] = rowY[2 * (j + c)];
+				source.u[c] = rowU[(j + c) * step] - 128;
+				source.v[c] = rowV[(j + c) * step] - 128;
+			}
+			source.x = j;
+			source.count = count;
+			if (outline)
+				updateOutlineEdges(ctx, j, j + count);
+
+			for (k = 0; k < panes; k++)
+			{
+				// the kernels only read y, u and v, every pane starts from the same chunk.
+				kernels[k](params, &source);
+
+				if (effects[k] == COLOR_EFFECT_OUTLINE && outline){
+					for (c = 0; c < count; c++){
+						if (ctx->outlineEdges[j + c])
+							source.r[c] = source.g[c] = source.b[c] = 0;
+					}
+				}
+				write(&source, paneOrigins[k] + i * output->stride + j * output->bytesPerPixel);
+			}
+		}
+	}
 }
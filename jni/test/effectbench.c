@@ -0,0 +1,233 @@
+/*
+ * effectbench.c
+ *
+ * Compares the effect kernels with the dispatch they replaced, which
+ * called the effect function through a pointer for every pixel and passed
+ * the values by pointer, with a second indirect call for partial effects.
+ * Both run the same effect functions on the same chunks, so only the
+ * dispatch differs. Each variant first has to produce the same colors as
+ * the other, then the best of a few runs is reported per VGA frame.
+ *
+ *   make -C jni/test bench JAVA_HOME=/path/to/jdk
+ */
+
+#include <time.h>
+#include "colortransform.c"
+#include "hoststubs.h"
+
+#define BENCH_ROWS 32
+#define BENCH_FRAME_PIXELS (640 * 480)
+#define BENCH_RUNS 15
+#define BENCH_LUT_SIZE 17
+
+typedef void (*effectFunction)(const transformParams*,int*,int*,int*,int*,int*,int*);
+
+typedef struct benchCase {
+	const char *name;
+	int effect;
+	int partial;
+	int accurate;
+	effectFunction function;
+} benchCase;
+
+static void pointerNone(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectNone(params, y, u, v, r, g, b);
+}
+
+static void pointerSimulate(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectSimulate(params, y, u, v, r, g, b);
+}
+
+static void pointerSimulateAccurate(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectSimulateAccurate(params, y, u, v, r, g, b);
+}
+
+static void pointerIntensify(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectIntesify(params, y, u, v, r, g, b);
+}
+
+static void pointerFalseColors(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectFalseColors(params, y, u, v, r, g, b);
+}
+
+static void pointerDaltonize(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectDaltonize(params, y, u, v, r, g, b);
+}
+
+static void pointerDaltonizeAccurate(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectDaltonizeAccurate(params, y, u, v, r, g, b);
+}
+
+static void pointerPosterize(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectPosterize(params, y, u, v, r, g, b);
+}
+
+static void pointerLut(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectLut(params, y, u, v, r, g, b);
+}
+
+/**
+ * the partial effect the way it was dispatched: the wrapper is called
+ * through the effect pointer and calls the effect through another one.
+ */
+static effectFunction partialFunction;
+
+static void pointerPartial(const transformParams* params, int* y, int* u, int* v, int* r, int* g, int* b){
+	effectNone(params, y, u, v, r, g, b);
+	if (isConfusable(params, *y, *u, *v, *r, *g, *b))
+		partialFunction(params, y, u, v, r, g, b);
+}
+
+static const benchCase cases[] = {
+	{ "none", COLOR_EFFECT_NONE, 0, 0, &pointerNone },
+	{ "simulate", COLOR_EFFECT_SIMULATE, 0, 0, &pointerSimulate },
+	{ "simulate accurate", COLOR_EFFECT_SIMULATE, 0, 1, &pointerSimulateAccurate },
+	{ "intensify", COLOR_EFFECT_INTENSIFY_DIFFERENCE, 0, 0, &pointerIntensify },
+	{ "false colors", COLOR_EFFECT_FALSE_COLORS, 0, 0, &pointerFalseColors },
+	{ "daltonize", COLOR_EFFECT_DALTONIZE, 0, 0, &pointerDaltonize },
+	{ "daltonize accurate", COLOR_EFFECT_DALTONIZE, 0, 1, &pointerDaltonizeAccurate },
+	{ "posterize", COLOR_EFFECT_POSTERIZE, 0, 0, &pointerPosterize },
+	{ "lut", COLOR_EFFECT_LUT, 0, 0, &pointerLut },
+	{ "partial intensify", COLOR_EFFECT_INTENSIFY_DIFFERENCE, 1, 0, &pointerIntensify },
+	{ "partial false colors", COLOR_EFFECT_FALSE_COLORS, 1, 0, &pointerFalseColors },
+	{ "partial posterize", COLOR_EFFECT_POSTERIZE, 1, 0, &pointerPosterize },
+	{ "partial lut", COLOR_EFFECT_LUT, 1, 0, &pointerLut },
+};
+
+static pixelRow rows[BENCH_ROWS];
+static pixelRow expected[BENCH_ROWS];
+
+/**
+ * the loop of the former effectRow. noinline keeps the compiler from
+ * specializing it for the pointer passed, as it could not in the library.
+ */
+static __attribute__((noinline)) void pointerRow(effectFunction effect, const transformParams *params, pixelRow *row){
+	int k;
+
+	for (k = 0; k < row->count; k++)
+		effect(params, row->y + k, row->u + k, row->v + k, row->r + k, row->g + k, row->b + k);
+}
+
+static double now(){
+	struct timespec time;
+	clock_gettime(CLOCK_MONOTONIC, &time);
+	return time.tv_sec * 1000.0 + time.tv_nsec / 1000000.0;
+}
+
+/**
+ * @return the best time of the runs in ms per frame
+ */
+static double measure(const transformParams *params, effectFunction function){
+	double best = 1e9;
+	int run, k;
+
+	for (run = 0; run < BENCH_RUNS; run++){
+		double start = now();
+		for (k = 0; k < BENCH_FRAME_PIXELS / PIPELINE_CHUNK; k++){
+			if (function != NULL)
+				pointerRow(function, params, &rows[k % BENCH_ROWS]);
+			else
+				params->kernel(params, &rows[k % BENCH_ROWS]);
+		}
+		double elapsed = now() - start;
+		if (elapsed < best)
+			best = elapsed;
+	}
+	return best;
+}
+
+/**
+ * smooth chroma with some noise and a few sharp borders, so that partial
+ * effects take both of their branches as on a real picture.
+ */
+static void fillRows(){
+	int i, k;
+
+	for (i = 0; i < BENCH_ROWS; i++){
+		rows[i].count = PIPELINE_CHUNK;
+		for (k = 0; k < PIPELINE_CHUNK; k++){
+			rows[i].y[k] = (i * 8 + k / 2 + (rand() & 15)) & 0xff;
+			rows[i].u[k] = ((k < PIPELINE_CHUNK / 2 ? -60 : 40) + i + (rand() & 7)) & 0xff;
+			rows[i].v[k] = (k * 255 / PIPELINE_CHUNK + i * 4 + (rand() & 7)) & 0xff;
+			rows[i].u[k] -= 128;
+			rows[i].v[k] -= 128;
+		}
+	}
+}
+
+static void initParams(transformParams *params, lutTable *lut){
+	int i;
+
+	memset(params, 0, sizeof(*params));
+	params->paletteSet = 1;
+	for (i = 0; i < TABLE_SIZE; i++)
+		params->paletteTable[i] = i % 16;
+	for (i = 0; i < 16 * 3; i++)
+		params->paletteRgb[i] = (rand() & 0xff) << 16;
+	params->lut = lut;
+}
+
+static lutTable* createBenchLut(){
+	jint colors[BENCH_LUT_SIZE * BENCH_LUT_SIZE * BENCH_LUT_SIZE];
+	int r, g, b, i = 0;
+
+	// a warm tint, so the table changes every color.
+	for (b = 0; b < BENCH_LUT_SIZE; b++)
+		for (g = 0; g < BENCH_LUT_SIZE; g++)
+			for (r = 0; r < BENCH_LUT_SIZE; r++)
+				colors[i++] = (r * 255 / (BENCH_LUT_SIZE - 1)) << 16 |
+						(g * 230 / (BENCH_LUT_SIZE - 1)) << 8 |
+						(b * 200 / (BENCH_LUT_SIZE - 1));
+	return createLut(BENCH_LUT_SIZE, colors);
+}
+
+int main(){
+	transformParams params;
+	lutTable *lut;
+	double totalPointer = 0, totalKernel = 0;
+	int c, i, failures = 0;
+
+	pthread_once(&tablesOnce, &initTables);
+	srand(1);
+	fillRows();
+	lut = createBenchLut();
+
+	printf("%-22s %10s %10s %8s\n", "effect", "pointer", "kernel", "speedup");
+	for (c = 0; c < sizeof(cases) / sizeof(cases[0]); c++){
+		const benchCase *bench = &cases[c];
+		effectFunction function = bench->function;
+
+		initParams(&params, lut);
+		params.effectId = bench->effect;
+		params.partial = bench->partial;
+		params.accurate = bench->accurate;
+		selectEffect(&params);
+		if (bench->partial){
+			partialFunction = function;
+			function = &pointerPartial;
+		}
+
+		for (i = 0; i < BENCH_ROWS; i++){
+			pointerRow(function, &params, &rows[i]);
+			expected[i] = rows[i];
+			params.kernel(&params, &rows[i]);
+			if (memcmp(rows[i].r, expected[i].r, sizeof(rows[i].r)) != 0 ||
+					memcmp(rows[i].g, expected[i].g, sizeof(rows[i].g)) != 0 ||
+					memcmp(rows[i].b, expected[i].b, sizeof(rows[i].b)) != 0){
+				fprintf(stderr, "FAILED: %s differs from the pointer dispatch\n", bench->name);
+				failures++;
+				break;
+			}
+		}
+
+		double pointer = measure(&params, function);
+		double kernel = measure(&params, NULL);
+		totalPointer += pointer;
+		totalKernel += kernel;
+		printf("%-22s %8.2fms %8.2fms %7.2fx\n", bench->name, pointer, kernel, pointer / kernel);
+	}
+	printf("%-22s %8.2fms %8.2fms %7.2fx\n", "all", totalPointer, totalKernel, totalPointer / totalKernel);
+
+	freeLut(lut);
+	return failures != 0;
+}
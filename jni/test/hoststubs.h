@@ -0,0 +1,33 @@
+/*
+ * Definitions of the NDK functions the library links against, so that the
+ * tests can include colortransform.c on the host.
+ */
+#ifndef HOST_STUBS_H
+#define HOST_STUBS_H
+
+#include <stdarg.h>
+#include <stdio.h>
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...){
+	va_list args;
+	va_start(args, fmt);
+	fprintf(stderr, "%s: ", tag);
+	vfprintf(stderr, fmt, args);
+	fputc('\n', stderr);
+	va_end(args);
+	return 0;
+}
+
+int AndroidBitmap_getInfo(JNIEnv* env, jobject jbitmap, AndroidBitmapInfo* info){
+	return -1;
+}
+
+int AndroidBitmap_lockPixels(JNIEnv* env, jobject jbitmap, void** addrPtr){
+	return -1;
+}
+
+int AndroidBitmap_unlockPixels(JNIEnv* env, jobject jbitmap){
+	return -1;
+}
+
+#endif
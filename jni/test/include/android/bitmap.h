@@ -0,0 +1,34 @@
+/*
+ * Minimal replacement of the NDK header for building the library on the
+ * host, see Makefile. The tests call the transformation functions directly,
+ * the bitmap functions are never used.
+ */
+#ifndef HOST_ANDROID_BITMAP_H
+#define HOST_ANDROID_BITMAP_H
+
+#include <jni.h>
+#include <stdint.h>
+
+#define ANDROID_BITMAP_RESULT_SUCCESS 0
+
+enum AndroidBitmapFormat {
+	ANDROID_BITMAP_FORMAT_NONE = 0,
+	ANDROID_BITMAP_FORMAT_RGBA_8888 = 1,
+	ANDROID_BITMAP_FORMAT_RGB_565 = 4,
+	ANDROID_BITMAP_FORMAT_RGBA_4444 = 7,
+	ANDROID_BITMAP_FORMAT_A_8 = 8
+};
+
+typedef struct {
+	uint32_t width;
+	uint32_t height;
+	uint32_t stride;
+	int32_t format;
+	uint32_t flags;
+} AndroidBitmapInfo;
+
+int AndroidBitmap_getInfo(JNIEnv* env, jobject jbitmap, AndroidBitmapInfo* info);
+int AndroidBitmap_lockPixels(JNIEnv* env, jobject jbitmap, void** addrPtr);
+int AndroidBitmap_unlockPixels(JNIEnv* env, jobject jbitmap);
+
+#endif
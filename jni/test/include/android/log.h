@@ -0,0 +1,18 @@
+/*
+ * Minimal replacement of the NDK header for building the library on the
+ * host, see Makefile. Log messages are printed to stderr.
+ */
+#ifndef HOST_ANDROID_LOG_H
+#define HOST_ANDROID_LOG_H
+
+enum {
+	ANDROID_LOG_DEBUG = 3,
+	ANDROID_LOG_INFO = 4,
+	ANDROID_LOG_WARN = 5,
+	ANDROID_LOG_WARNING = 5,
+	ANDROID_LOG_ERROR = 6
+};
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...);
+
+#endif
@@ -0,0 +1,263 @@
+/*
+ * layouttest.c
+ *
+ * Checks the decode kernels of every input format against a reference
+ * decoder. Each frame is written in the layout under test, with random
+ * bytes in the padding, read back sample by sample by the reference decoder
+ * into a packed NV21 frame and both frames are transformed. The outputs
+ * need to be identical for full frames, regions and the mosaic, with the
+ * stages and effects that read the frame data on their own enabled.
+ * The output formats are checked against each other on the same frames.
+ */
+
+#include "colortransform.c"
+#include "hoststubs.h"
+
+#define FRAMES 3
+#define ALIGN16(x) (((x) + 15) & ~15)
+
+static int checks;
+static int failures;
+
+static void check(int condition, const char *what, int format, int width, int height){
+	checks++;
+	if (!condition){
+		failures++;
+		fprintf(stderr, "FAILED: %s (format %d, %dx%d)\n", what, format, width, height);
+	}
+}
+
+/**
+ * reads the sample of pixel (x, y) the way the formats are specified,
+ * without any of the library code.
+ */
+static void referenceSample(const uint8_t *data, int format, int width, int height, int yStride, int uvStride,
+		int x, int y, int *sY, int *sU, int *sV){
+	int chromaHeight = (height + 1) / 2;
+	const uint8_t *chroma = data + yStride * height + (y / 2) * uvStride;
+
+	*sY = data[y * yStride + x];
+	switch (format){
+	case INPUT_FORMAT_NV21:
+		*sV = chroma[2 * (x / 2)];
+		*sU = chroma[2 * (x / 2) + 1];
+		break;
+	case INPUT_FORMAT_YV12:
+		*sV = chroma[x / 2];
+		*sU = chroma[uvStride * chromaHeight + x / 2];
+		break;
+	case INPUT_FORMAT_I420:
+		*sU = chroma[x / 2];
+		*sV = chroma[uvStride * chromaHeight + x / 2];
+		break;
+	default:
+		*sU = *sV = 128;
+	}
+}
+
+/**
+ * writes random planes in the given layout, the padding gets random bytes
+ * as well.
+ */
+static void writeFrame(uint8_t *data, int size, int format, int width, int height, int yStride, int uvStride){
+	int chromaWidth = (width + 1) / 2, chromaHeight = (height + 1) / 2;
+	uint8_t *chroma = data + yStride * height;
+	int i, j;
+
+	for (i = 0; i < size; i++)
+		data[i] = rand() & 0xff;
+	// smooth chroma with a few sharp borders, so the outlines find edges.
+	for (i = 0; i < chromaHeight; i++){
+		for (j = 0; j < chromaWidth; j++){
+			int u = (j * 255 / chromaWidth + (rand() & 7)) & 0xff;
+			int v = ((j < chromaWidth / 2 ? 64 : 192) + i + (rand() & 7)) & 0xff;
+			switch (format){
+			case INPUT_FORMAT_NV21:
+				chroma[i * uvStride + 2 * j] = v;
+				chroma[i * uvStride + 2 * j + 1] = u;
+				break;
+			case INPUT_FORMAT_YV12:
+				chroma[i * uvStride + j] = v;
+				chroma[(chromaHeight + i) * uvStride + j] = u;
+				break;
+			case INPUT_FORMAT_I420:
+				chroma[i * uvStride + j] = u;
+				chroma[(chromaHeight + i) * uvStride + j] = v;
+				break;
+			}
+		}
+	}
+}
+
+static transformContext* createTestContext(int effect, int stages){
+	transformContext *ctx = createContext();
+	transformParams *params = editPending(ctx);
+	params->effectId = effect;
+	params->partial = 0;
+	selectEffect(params);
+	params->stages[0] = STAGE_NOISE_REDUCTION;
+	params->stages[1] = STAGE_WHITE_BALANCE;
+	params->stages[2] = STAGE_CONTRAST;
+	params->stageCount = stages ? 3 : 0;
+	commitPending(ctx, RESET_DENOISE | RESET_CONTRAST | RESET_WHITE_BALANCE);
+	return ctx;
+}
+
+static void testLayout(int format, int width, int height, int yStride, int uvStride, int effect, int stages){
+	int chromaWidth = (width + 1) / 2, chromaHeight = (height + 1) / 2;
+	int planes = format == INPUT_FORMAT_NV21 ? 1 : 2;
+	int size = yStride * height + planes * uvStride * chromaHeight;
+	int referenceSize = width * height + 2 * chromaWidth * chromaHeight;
+	uint8_t *data = malloc(size);
+	uint8_t *reference = malloc(referenceSize);
+	uint16_t *out = malloc(width * height * sizeof(uint16_t));
+	uint16_t *expected = malloc(width * height * sizeof(uint16_t));
+	transformContext *ctx = createTestContext(effect, stages);
+	transformContext *referenceCtx = createTestContext(effect, stages);
+	frameInfo frame, referenceFrame;
+	outputInfo output, expectedOutput;
+	int f, x, y;
+
+	initOutput(&output, (uint8_t*) out, width, 0, OUTPUT_FORMAT_RGB_565);
+	initOutput(&expectedOutput, (uint8_t*) expected, width, 0, OUTPUT_FORMAT_RGB_565);
+
+	for (f = 0; f < FRAMES; f++){
+		writeFrame(data, size, format, width, height, yStride, uvStride);
+		for (y = 0; y < height; y++){
+			for (x = 0; x < width; x++){
+				int sY, sU, sV;
+				referenceSample(data, format, width, height, yStride, uvStride, x, y, &sY, &sU, &sV);
+				reference[y * width + x] = sY;
+				reference[width * height + (y / 2) * 2 * chromaWidth + 2 * (x / 2)] = sV;
+				reference[width * height + (y / 2) * 2 * chromaWidth + 2 * (x / 2) + 1] = sU;
+			}
+		}
+
+		check(initFrame(&frame, data, width, height, format, yStride, uvStride), "layout accepted", format, width, height);
+		check(getFrameSize(&frame) == size, "frame size", format, width, height);
+		initFrame(&referenceFrame, reference, width, height, INPUT_FORMAT_NV21, 0, 0);
+
+		transformYuv2Rgb(ctx, &frame, &output);
+		transformYuv2Rgb(referenceCtx, &referenceFrame, &expectedOutput);
+		check(memcmp(out, expected, width * height * sizeof(uint16_t)) == 0, "full frame", format, width, height);
+
+		initOutput(&output, (uint8_t*) out, width / 2, 0, OUTPUT_FORMAT_RGB_565);
+		initOutput(&expectedOutput, (uint8_t*) expected, width / 2, 0, OUTPUT_FORMAT_RGB_565);
+		transformRegion(ctx, &frame, width / 3, height / 3, width / 2, height / 2, &output);
+		transformRegion(referenceCtx, &referenceFrame, width / 3, height / 3, width / 2, height / 2, &expectedOutput);
+		initOutput(&output, (uint8_t*) out, width, 0, OUTPUT_FORMAT_RGB_565);
+		initOutput(&expectedOutput, (uint8_t*) expected, width, 0, OUTPUT_FORMAT_RGB_565);
+		check(memcmp(out, expected, (width / 2) * (height / 2) * sizeof(uint16_t)) == 0, "region", format, width, height);
+
+		if ((width & 1) == 0 && (height & 1) == 0){
+			int effects[MOSAIC_MAX_PANES] = { COLOR_EFFECT_NONE, COLOR_EFFECT_OUTLINE, COLOR_EFFECT_PATTERN, effect };
+			transformMosaic(ctx, &frame, effects, MOSAIC_MAX_PANES, &output);
+			transformMosaic(referenceCtx, &referenceFrame, effects, MOSAIC_MAX_PANES, &expectedOutput);
+			check(memcmp(out, expected, width * height * sizeof(uint16_t)) == 0, "mosaic", format, width, height);
+		}
+	}
+
+	destroyContext(ctx);
+	destroyContext(referenceCtx);
+	free(data);
+	free(reference);
+	free(out);
+	free(expected);
+}
+
+/**
+ * transforms a frame into every output format. The 32 bit formats need to
+ * agree, RGB565 needs to be their truncation and dithering may only round
+ * up, keeping the average of a channel.
+ */
+static void testOutputFormats(int width, int height){
+	int size = width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+	uint8_t *data = malloc(size);
+	uint16_t *rgb565 = malloc(width * height * sizeof(uint16_t));
+	uint16_t *dithered = malloc(width * height * sizeof(uint16_t));
+	uint8_t *rgba = malloc(width * height * 4);
+	uint32_t *argb = malloc(width * height * sizeof(uint32_t));
+	transformContext *ctx = createTestContext(COLOR_EFFECT_NONE, 0);
+	frameInfo frame;
+	outputInfo output;
+	long sumExact = 0, sumDithered = 0;
+	int i, rounding = 1, agreeing = 1, truncated = 1;
+
+	writeFrame(data, size, INPUT_FORMAT_NV21, width, height, width, 2 * ((width + 1) / 2));
+	initFrame(&frame, data, width, height, INPUT_FORMAT_NV21, 0, 0);
+	initOutput(&output, rgb565, width, 0, OUTPUT_FORMAT_RGB_565);
+	transformYuv2Rgb(ctx, &frame, &output);
+	initOutput(&output, rgba, width, 0, OUTPUT_FORMAT_RGBA_8888);
+	transformYuv2Rgb(ctx, &frame, &output);
+	initOutput(&output, argb, width, 0, OUTPUT_FORMAT_ARGB_8888);
+	transformYuv2Rgb(ctx, &frame, &output);
+	editPending(ctx)->dither = 1;
+	commitPending(ctx, 0);
+	initOutput(&output, dithered, width, 0, OUTPUT_FORMAT_RGB_565);
+	transformYuv2Rgb(ctx, &frame, &output);
+
+	for (i = 0; i < width * height; i++){
+		int red = rgba[4 * i], green = rgba[4 * i + 1], blue = rgba[4 * i + 2];
+		int ditheredRed = dithered[i] >> 11, ditheredGreen = (dithered[i] >> 5) & 0x3f;
+
+		agreeing &= argb[i] == (0xff000000u | red << 16 | green << 8 | blue) && rgba[4 * i + 3] == 0xff;
+		truncated &= rgb565[i] == ((red >> 3) << 11 | (green >> 2) << 5 | blue >> 3);
+		rounding &= (ditheredRed == red >> 3 || ditheredRed == (red >> 3) + 1);
+		rounding &= (ditheredGreen == green >> 2 || ditheredGreen == (green >> 2) + 1);
+		sumExact += green;
+		sumDithered += ditheredGreen * 4;
+	}
+	check(agreeing, "RGBA and ARGB output agree", INPUT_FORMAT_NV21, width, height);
+	check(truncated, "RGB565 output truncates", INPUT_FORMAT_NV21, width, height);
+	check(rounding, "dithering rounds to a neighbouring level", INPUT_FORMAT_NV21, width, height);
+	check(labs(sumDithered - sumExact) < width * height / 4, "dithering keeps the average", INPUT_FORMAT_NV21, width, height);
+
+	destroyContext(ctx);
+	free(data);
+	free(rgb565);
+	free(dithered);
+	free(rgba);
+	free(argb);
+}
+
+static void testRejectedLayouts(){
+	static uint8_t data[64 * 48 * 2];
+	frameInfo frame;
+
+	check(!initFrame(&frame, data, 64, 48, 3, 0, 0), "unknown format rejected", 3, 64, 48);
+	check(!initFrame(&frame, data, 64, 48, INPUT_FORMAT_NV21, 63, 0), "short Y stride rejected", INPUT_FORMAT_NV21, 64, 48);
+	check(!initFrame(&frame, data, 64, 48, INPUT_FORMAT_NV21, 0, 32), "short chroma stride rejected", INPUT_FORMAT_NV21, 64, 48);
+	check(!initFrame(&frame, data, 64, 48, INPUT_FORMAT_YV12, 0, 31), "short chroma stride rejected", INPUT_FORMAT_YV12, 64, 48);
+	check(!initFrame(&frame, data, 0, 48, INPUT_FORMAT_I420, 0, 0), "empty frame rejected", INPUT_FORMAT_I420, 0, 48);
+}
+
+int main(){
+	static const int sizes[][2] = { { 64, 48 }, { 34, 10 }, { 17, 9 }, { 300, 4 } };
+	static const int formats[] = { INPUT_FORMAT_NV21, INPUT_FORMAT_YV12, INPUT_FORMAT_I420 };
+	static const int effects[] = { COLOR_EFFECT_NONE, COLOR_EFFECT_OUTLINE, COLOR_EFFECT_PATTERN, COLOR_EFFECT_DALTONIZE };
+	int s, f, e, stages;
+
+	srand(1);
+	for (s = 0; s < sizeof(sizes) / sizeof(sizes[0]); s++){
+		int width = sizes[s][0], height = sizes[s][1];
+		int chromaWidth = (width + 1) / 2;
+		for (f = 0; f < sizeof(formats) / sizeof(formats[0]); f++){
+			int packedUV = formats[f] == INPUT_FORMAT_NV21 ? 2 * chromaWidth : chromaWidth;
+			for (e = 0; e < sizeof(effects) / sizeof(effects[0]); e++){
+				// the noise reduction reads the frame data on its own.
+				for (stages = 0; stages < 2; stages++){
+					testLayout(formats[f], width, height, width, packedUV, effects[e], stages);
+					// padded the way YV12 preview frames are.
+					testLayout(formats[f], width, height, ALIGN16(width), ALIGN16(packedUV), effects[e], stages);
+					testLayout(formats[f], width, height, width + 3, packedUV + 5, effects[e], stages);
+				}
+			}
+		}
+	}
+	testOutputFormats(64, 48);
+	testOutputFormats(17, 9);
+	testRejectedLayouts();
+
+	printf("layouttest: %d of %d checks passed\n", checks - failures, checks);
+	return failures != 0;
+}
@@ -1,11 +1,19 @@
 package ch.hsr.eyecam;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
@@ -20,8 +28,10 @@ import android.hardware.SensorManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -32,8 +42,11 @@ import android.view.OrientationEventListener;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
+import android.widget.Toast;
 import ch.hsr.eyecam.R.id;
 import ch.hsr.eyecam.colormodel.ColorTransform;
+import ch.hsr.eyecam.colormodel.CubeLut;
+import ch.hsr.eyecam.colormodel.FramePool;
 import ch.hsr.eyecam.view.ColorView;
 import ch.hsr.eyecam.view.ControlBar;
 import ch.hsr.eyecam.widget.MenuBubble;
@@ -51,19 +64,24 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 	private int mPrimaryFilter;
 	private int mSecondaryFilter;
 	private Camera mCamera;
-	private byte[] mCallBackBuffer;
+	private FramePool mFramePool;
 	private boolean mCamIsPreviewing;
 	private ColorView mColorView;
 	private ControlBar mControlBar;
 	private Orientation mOrientationCurrent = Orientation.UNKNOW;
-	private ShowLoadingScreenTask mShowLoadingScreenTask;
+	private OpenCameraTask mOpenCameraTask;
+	private LoadLutTask mLoadLutTask;
+	private String mLutPath;
+	private int mLutSize;
+	private PreviewSizeCalibrator mSizeCalibrator;
 	private View mLoadingScreen;
 	private SurfaceView mDummySurfaceView;
 	private MenuBubble mAppMenu;
 	private MenuBubble mPrimaryFilterMenu;
 	private MenuBubble mSecondaryFilterMenu;
 	private SharedPreferences mSharedPreferences;
-	private volatile boolean mIsCameraReady = false;
+	private long mLaunchTime;
+	private long mResumeTime;
 
 	private boolean mPrimaryPartial;
 	private boolean mSecondaryPartial;
@@ -88,10 +106,24 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 	public final static int SHOW_PRIMARY_FILTER_MENU = 6;
 	public final static int SHOW_SECONDARY_FILTER_MENU = 7;
 	public final static int SHOW_SETTINGS_MENU = 8;
+	public final static int CAMERA_FIRST_FRAME = 9;
 	public final static String PREFERENCE_FILE = "eyeCamPref";
 	private final static String LOG_TAG = "ch.hsr.eyecam.EyeCamActivity";
+	private final static double ASPECT_RATIO_TOLERANCE = 0.05;
+	/**
+	 * One buffer is held by the ColorView for the displayed frame, the others are queued with the camera.
+	 */
+	private final static int PREVIEW_BUFFER_COUNT = 3;
+	private final static Object CAMERA_LOCK = new Object();
+	/**
+	 * Directory on the external storage holding the .cube files of the custom filter.
+	 */
+	public final static String LUT_DIRECTORY = "EyeCam";
+	private final static String LUT_SUFFIX = ".cube";
 
 	private void setCameraLight(String cameraFlashMode) {
+		if (mCamera == null)
+			return;
 		Parameters parameters = mCamera.getParameters();
 		parameters.setFlashMode(cameraFlashMode);
 		mCamera.setParameters(parameters);
@@ -137,7 +169,7 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 	private void setEffects(int effect, boolean partial) {
 		mColorView.enablePartialEffects(partial);
 		mColorView.setEffect(effect);
-		if (!mCamIsPreviewing)
+		if (!mCamIsPreviewing && mCamera != null)
 			mColorView.refreshBitmap();
 	}
 
@@ -175,6 +207,36 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 				mColorView.setShowRGB(shPref.getBoolean(key, false));
 			} else if (key.equals(getResources().getString(R.string.key_color_hsv))) {
 				mColorView.setShowHSV(shPref.getBoolean(key, false));
+			} else if (key.equals(getResources().getString(R.string.key_color_summary))) {
+				mColorView.setShowSummary(shPref.getBoolean(key, false));
+			} else if (key.equals(getResources().getString(R.string.key_color_map))) {
+				mColorView.setShowRegions(shPref.getBoolean(key, false));
+			} else if (key.equals(getResources().getString(R.string.key_noise_reduction))) {
+				mColorView.setNoiseReduction(shPref.getBoolean(key, false));
+			} else if (key.equals(getResources().getString(R.string.key_contrast))) {
+				mColorView.setContrastEnhancement(shPref.getBoolean(key, false));
+			} else if (key.equals(getResources().getString(R.string.key_white_balance))) {
+				mColorView.setWhiteBalance(shPref.getBoolean(key, false));
+			} else if (key.equals(getResources().getString(R.string.key_accurate_simulation))) {
+				mColorView.setAccurateSimulation(shPref.getBoolean(key, false));
+				if (!mCamIsPreviewing && mCamera != null)
+					mColorView.refreshBitmap();
+			} else if (key.equals(getResources().getString(R.string.key_smooth_gradients))) {
+				mColorView.setSmoothGradients(shPref.getBoolean(key, false));
+				if (!mCamIsPreviewing && mCamera != null)
+					mColorView.refreshBitmap();
+			} else if (key.equals(getResources().getString(R.string.key_name_perceived))) {
+				mColorView.setNamePerceived(shPref.getBoolean(key, false));
+			} else if (key.equals(getResources().getString(R.string.key_lut_file))) {
+				loadLut(shPref.getString(key, null));
+			} else if (key.equals(getResources().getString(R.string.key_loupe))) {
+				mColorView.setShowLoupe(shPref.getBoolean(key, false));
+			} else if (key.equals(getResources().getString(R.string.key_mosaic))) {
+				mColorView.setMosaic(shPref.getInt(key, 0));
+				if (!mCamIsPreviewing && mCamera != null)
+					mColorView.refreshBitmap();
+			} else if (key.equals(getResources().getString(R.string.key_live_rate))) {
+				mColorView.setLiveRate(shPref.getInt(key, 0));
 			}
 		}
 	};
@@ -197,52 +259,132 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 			return R.string.filter_none;
 		case ColorTransform.COLOR_EFFECT_SIMULATE:
 			return R.string.filter_simulate;
+		case ColorTransform.COLOR_EFFECT_POSTERIZE:
+			return R.string.filter_posterize;
+		case ColorTransform.COLOR_EFFECT_LUT:
+			return R.string.filter_lut;
+		case ColorTransform.COLOR_EFFECT_PATTERN:
+			return R.string.filter_pattern;
+		case ColorTransform.COLOR_EFFECT_OUTLINE:
+			return R.string.filter_outline;
 		default:
 			return -1;
 		}
 	}
 
-	private class ShowLoadingScreenTask extends AsyncTask<Void, Void, Void> {
-
-		@Override
-		protected void onPreExecute() {
+	/**
+	 * Opens and configures the camera off the UI thread. Camera.open() and the parameter round trips can take several hundred milliseconds on some devices, which would
+	 * otherwise block the UI thread while the loading screen is showing.
+	 * 
+	 * Since the background thread has no Looper, the camera will deliver its preview callbacks on the main Looper, just as if it had been opened on the UI thread.
+	 * 
+	 * A cancelled task never leaves the camera to onCancelled(), which would release it too late for the next task: the camera is either released by the task itself before
+	 * doInBackground() returns, or, if it has already been handed over, by {@link #cancelOpenCamera()} right away. The tasks open the camera one after the other while holding
+	 * CAMERA_LOCK, so a task never opens the camera before the previous one has released it.
+	 */
+	private class OpenCameraTask extends AsyncTask<Void, Void, Camera> {
+		private final int mEffect;
+		private final boolean mPartial;
+		private volatile Camera mOpenedCamera;
+		private Parameters mParameters;
+		private Size mPreviewSize;
+		private FramePool mPool;
+
+		private OpenCameraTask(int effect, boolean partial) {
+			mEffect = effect;
+			mPartial = partial;
 		}
 
 		@Override
-		protected Void doInBackground(Void... params) {
-			Debug.msg(LOG_TAG, "showing Loading Screen ...");
-			synchronized (this) {
+		protected Camera doInBackground(Void... params) {
+			synchronized (CAMERA_LOCK) {
+				if (isCancelled())
+					return null;
+				Debug.msg(LOG_TAG, "opening camera in background ...");
+				Camera camera;
 				try {
-					while (!mIsCameraReady) {
-						if (isCancelled()) {
-							logLivecycleStatus("ShowLoadingScreenTask canceled");
-							break;
-						}
-						wait(800);
-						logLivecycleStatus("ShowLoadingScreenTask waited");
+					camera = Camera.open();
+				} catch (RuntimeException e) {
+					Log.e(LOG_TAG, "Unable to open camera", e);
+					return null;
+				}
+
+				if (!isCancelled()) {
+					mParameters = camera.getParameters();
+					mPreviewSize = configCameraParams(mParameters, mEffect, mPartial);
+					camera.setParameters(mParameters);
+					mPool = new FramePool(PREVIEW_BUFFER_COUNT, mPreviewSize.width, mPreviewSize.height);
+				}
+				synchronized (this) {
+					if (!isCancelled()) {
+						mOpenedCamera = camera;
+						return camera;
 					}
-				} catch (InterruptedException e) {
-					logLivecycleStatus("ShowLoadingScreenTask interrupted");
 				}
+				camera.release();
+				return null;
 			}
-			return null;
+		}
+
+		/**
+		 * Releases the camera if it has already been handed over. Called on the UI thread after the task has been cancelled.
+		 */
+		private void releaseOpenedCamera() {
+			Camera camera;
+			synchronized (this) {
+				camera = mOpenedCamera;
+				mOpenedCamera = null;
+			}
+			if (camera != null)
+				camera.release();
 		}
 
 		@Override
-		protected void onPostExecute(Void result) {
-			logLivecycleStatus("ShowLoadingScreenTask.onPostExecute");
-			Debug.msg(LOG_TAG, "finish opening camera...");
-			if (isCancelled())
+		protected void onCancelled() {
+			logLivecycleStatus("OpenCameraTask canceled");
+			releaseOpenedCamera();
+		}
+
+		@Override
+		protected void onPostExecute(Camera camera) {
+			logLivecycleStatus("OpenCameraTask.onPostExecute");
+			mOpenCameraTask = null;
+			if (camera == null)
 				return;
-			mColorView.setVisibility(View.VISIBLE);
-			mLoadingScreen.setVisibility(View.INVISIBLE);
-			mShowLoadingScreenTask = null;
+
+			mCamera = camera;
+			mFramePool = mPool;
+			configEnvByCameraParams(mParameters);
+			makeSureCameraPreviewStarts();
+
+			if (mControlBar.isPrimaryFilterRunning())
+				setPrimaryFilter();
+			else
+				setSecondaryFilter();
+			startCameraPreview();
+		}
+	}
+
+	/**
+	 * Called as soon as the first preview frame has been transformed into the ColorView. Since the message is handled before the next traversal, the loading screen is removed
+	 * in the same frame the preview is drawn for the first time.
+	 */
+	private void onFirstFrame() {
+		mColorView.setVisibility(View.VISIBLE);
+		mLoadingScreen.setVisibility(View.INVISIBLE);
+
+		long now = SystemClock.elapsedRealtime();
+		if (mLaunchTime != 0) {
+			Log.i(LOG_TAG, "Cold start to first frame: " + (now - mLaunchTime) + "ms");
+			mLaunchTime = 0;
 		}
+		Debug.msg(LOG_TAG, "Resume to first frame: " + (now - mResumeTime) + "ms");
 	}
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		logLivecycleStatus("onCreate");
+		mLaunchTime = SystemClock.elapsedRealtime();
 		super.onCreate(savedInstanceState);
 		initWrongOrientationFlag();
 		if (isInWrongOrientation) {
@@ -362,6 +504,7 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 		if (!mSharedPreferences.contains(introKey)) {
 			openIntro(null);
 		}
+		mSizeCalibrator = new PreviewSizeCalibrator(mSharedPreferences, versionInfo.versionCode);
 	}
 
 	private void showLoadingScreen() {
@@ -391,6 +534,18 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 
 		mColorView.setShowRGB(getBooleanSettingValue(shPref, R.string.key_color_rgb, false));
 		mColorView.setShowHSV(getBooleanSettingValue(shPref, R.string.key_color_hsv, false));
+		mColorView.setLiveRate(getIntSettingValue(shPref, R.string.key_live_rate, 0));
+		mColorView.setShowSummary(getBooleanSettingValue(shPref, R.string.key_color_summary, false));
+		mColorView.setShowRegions(getBooleanSettingValue(shPref, R.string.key_color_map, false));
+		mColorView.setMosaic(getIntSettingValue(shPref, R.string.key_mosaic, 0));
+		mColorView.setShowLoupe(getBooleanSettingValue(shPref, R.string.key_loupe, false));
+		mColorView.setNoiseReduction(getBooleanSettingValue(shPref, R.string.key_noise_reduction, false));
+		mColorView.setContrastEnhancement(getBooleanSettingValue(shPref, R.string.key_contrast, false));
+		mColorView.setWhiteBalance(getBooleanSettingValue(shPref, R.string.key_white_balance, false));
+		mColorView.setAccurateSimulation(getBooleanSettingValue(shPref, R.string.key_accurate_simulation, false));
+		mColorView.setNamePerceived(getBooleanSettingValue(shPref, R.string.key_name_perceived, false));
+		mColorView.setSmoothGradients(getBooleanSettingValue(shPref, R.string.key_smooth_gradients, false));
+		loadLut(shPref.getString(getResources().getString(R.string.key_lut_file), null));
 	}
 
 	private int getIntSettingValue(SharedPreferences shPref, int keyId, int defaultValue) {
@@ -421,14 +576,13 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 	 */
 	@Override
 	protected void onResume() {
-		logLivecycleStatus("onResume (starting ShowLoadingScreenTask)");
+		logLivecycleStatus("onResume");
 		super.onResume();
 		initWrongOrientationFlag();
 		if (isInWrongOrientation) {
 			return;
 		}
-		mShowLoadingScreenTask = new ShowLoadingScreenTask();
-		mShowLoadingScreenTask.execute();
+		mResumeTime = SystemClock.elapsedRealtime();
 		mOrientationEventListener.enable();
 
 		// make sure the surface is recreated.
@@ -447,62 +601,91 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 	}
 
 	private void openCamera() {
-		mCamera = Camera.open();
+		cancelOpenCamera();
+		if (mControlBar.isPrimaryFilterRunning())
+			mOpenCameraTask = new OpenCameraTask(mPrimaryFilter, mPrimaryPartial);
+		else
+			mOpenCameraTask = new OpenCameraTask(mSecondaryFilter, mSecondaryPartial);
+		mOpenCameraTask.execute();
 	}
 
-	private void configEnvByCameraParams() {
-		Debug.msg(LOG_TAG, "start init camera Pref...");
-		Camera.Parameters parameters = mCamera.getParameters();
+	private void cancelOpenCamera() {
+		if (mOpenCameraTask != null) {
+			logLivecycleStatus("canceling mOpenCameraTask");
+			mOpenCameraTask.cancel(false);
+			mOpenCameraTask.releaseOpenedCamera();
+			mOpenCameraTask = null;
+		}
+	}
 
-		Size optSize = getOptimalSize(parameters.getSupportedPreviewSizes());
+	/**
+	 * Chooses the preview size and writes it to the parameters. This is called from the OpenCameraTask and must therefore not touch any views.
+	 * 
+	 * The preview size is limited by the throughput the device reaches with the given effect.
+	 * 
+	 * @see PreviewSizeCalibrator
+	 */
+	private Size configCameraParams(Camera.Parameters parameters, int effect, boolean partial) {
+		Debug.msg(LOG_TAG, "start init camera Pref...");
+		List<Size> sizes = parameters.getSupportedPreviewSizes();
+		long pixelBudget = mSizeCalibrator.getPixelBudget(sizes, effect, partial);
+		Size optSize = getOptimalSize(sizes, pixelBudget);
 		for (Size s : parameters.getSupportedPreviewSizes()) {
 			Debug.msg(LOG_TAG, "Supported - H:" + s.height + "W:" + s.width);
 		}
 		parameters.setPreviewSize(optSize.width, optSize.height);
 		Debug.msg(LOG_TAG, "Chosen - H:" + optSize.height + "W:" + optSize.width);
 		Debug.msg(LOG_TAG, "Screen - H:" + mMetrics.heightPixels + "W:" + mMetrics.widthPixels);
+		return optSize;
+	}
 
+	private void configEnvByCameraParams(Camera.Parameters parameters) {
 		disableFlashIfUnsupported(parameters);
 
-		mCallBackBuffer = new byte[optSize.width * optSize.height * 2];
-		mColorView.setDataBuffer(mCallBackBuffer, optSize.width, optSize.height);
-		mCamera.setParameters(parameters);
+		mColorView.setFramePool(mFramePool);
 		mColorView.scaleBitmapToFillScreen(mMetrics.widthPixels, mMetrics.heightPixels);
 	}
 
-	private Size getOptimalSize(List<Size> sizeList) {
+	/**
+	 * Returns the biggest preview size within the pixel budget whose aspect ratio is close to the one of the screen. If no size fits into the budget, the smallest usable size
+	 * will be returned.
+	 */
+	private Size getOptimalSize(List<Size> sizeList, long pixelBudget) {
 		if (sizeList == null)
 			return null;
 
-		int targetWidth = mMetrics.widthPixels;
-		int targetHeight = mMetrics.heightPixels;
-		double diffSize = Double.MAX_VALUE;
+		double targetRatio = (double) mMetrics.widthPixels / mMetrics.heightPixels;
+		int lowerWidthBound = mMetrics.widthPixels / 2;
+		double minDiff = Double.MAX_VALUE;
 
-		// do not get higher then 1000 pixel width since
-		// even Galaxy Nexus has problem handling it.
-		int upperWidthBound = 1000;
-		int lowerWidthBound = targetWidth / 2;
+		for (Size size : sizeList) {
+			if (size.width < lowerWidthBound || getArea(size) > pixelBudget)
+				continue;
+			minDiff = Math.min(minDiff, Math.abs((double) size.width / size.height - targetRatio));
+		}
 
 		Size optSize = null;
-
 		for (Size size : sizeList) {
-			if (size.width > upperWidthBound || size.width < lowerWidthBound)
+			if (size.width < lowerWidthBound || getArea(size) > pixelBudget)
 				continue;
+			double diff = Math.abs((double) size.width / size.height - targetRatio);
+			if (diff <= minDiff + ASPECT_RATIO_TOLERANCE && (optSize == null || getArea(size) > getArea(optSize)))
+				optSize = size;
+		}
+		if (optSize != null)
+			return optSize;
 
-			double tmpRatio = (double) size.height / targetHeight;
-			double tmpDiff = tmpRatio * targetWidth - size.width;
-			tmpDiff = Math.abs(tmpDiff);
-
-			if (tmpDiff < diffSize) {
+		for (Size size : sizeList) {
+			if (optSize == null || getArea(size) < getArea(optSize))
 				optSize = size;
-				diffSize = tmpDiff;
-				if (diffSize == 0)
-					return optSize;
-			}
 		}
 		return optSize;
 	}
 
+	private static long getArea(Size size) {
+		return (long) size.width * size.height;
+	}
+
 	private void disableFlashIfUnsupported(Camera.Parameters parameters) {
 		if (parameters.getSupportedFlashModes() == null) {
 			mControlBar.enableLightButton(false);
@@ -522,11 +705,7 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 			super.onPause();
 			return;
 		}
-		if (mShowLoadingScreenTask != null) {
-			logLivecycleStatus("canceling mShowLoadingScreenTask");
-			mShowLoadingScreenTask.cancel(false);
-			mShowLoadingScreenTask = null;
-		}
+		cancelOpenCamera();
 		mOrientationEventListener.disable();
 
 		// make sure the preview is stopped if the screen gets locked
@@ -543,23 +722,26 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 	}
 
 	private void stopCameraPreview() {
+		if (mCamera == null)
+			return;
 		mCamera.setPreviewCallbackWithBuffer(null);
 		mCamera.stopPreview();
+		mFramePool.detach();
 		mCamIsPreviewing = false;
-		mIsCameraReady = false;
+		mColorView.setPreviewRunning(mCamIsPreviewing);
 
 		mControlBar.setButtonPlay(mCamIsPreviewing);
 	}
 
 	private void startCameraPreview() {
-		if (mCamIsPreviewing)
+		if (mCamIsPreviewing || mCamera == null)
 			return;
 
-		mCamera.addCallbackBuffer(mCallBackBuffer);
+		mFramePool.attach(mCamera);
 		mCamera.setPreviewCallbackWithBuffer(mColorView);
 		mCamera.startPreview();
-		mIsCameraReady = true;
 		mCamIsPreviewing = true;
+		mColorView.setPreviewRunning(mCamIsPreviewing);
 
 		mControlBar.setButtonPlay(mCamIsPreviewing);
 		mColorView.dismissPopup();
@@ -587,6 +769,9 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 	@Override
 	protected void onDestroy() {
 		logLivecycleStatus("onDestroy");
+		if (mLoadLutTask != null)
+			mLoadLutTask.cancel(false);
+		mColorView.release();
 		super.onDestroy();
 	}
 
@@ -658,13 +843,6 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 			return;
 		}
 		openCamera();
-		configEnvByCameraParams();
-		makeSureCameraPreviewStarts();
-
-		if (mControlBar.isPrimaryFilterRunning())
-			setPrimaryFilter();
-		else
-			setSecondaryFilter();
 	}
 
 	/**
@@ -676,6 +854,7 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 		if (isInWrongOrientation) {
 			return;
 		}
+		cancelOpenCamera();
 		setCameraLight(Camera.Parameters.FLASH_MODE_OFF);
 		releaseCamera();
 	}
@@ -706,6 +885,144 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 		startActivity(intent);
 	}
 
+	/**
+	 * Lets the user choose a color that will be highlighted in the preview. This is a callback function for the onClick XML attribute.
+	 * 
+	 * @param v
+	 *            the View that has been pressed
+	 */
+	public void openColorSearch(View v) {
+		dismissMenus();
+
+		final List<Integer> colorNames = mColorView.getSearchableColors();
+		CharSequence[] items = new CharSequence[colorNames.size() + 1];
+		items[0] = getString(R.string.search_off);
+		for (int i = 0; i < colorNames.size(); i++)
+			items[i + 1] = getString(colorNames.get(i));
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle(R.string.setting_search);
+		builder.setItems(items, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				mColorView.setSearchColor(which == 0 ? 0 : colorNames.get(which - 1));
+				if (!mCamIsPreviewing && mCamera != null)
+					mColorView.refreshBitmap();
+			}
+		});
+		builder.show();
+	}
+
+	/**
+	 * Lets the user choose the .cube file used by the custom filter. The files are looked up in the directory {@link #LUT_DIRECTORY} on the external storage. This is a callback
+	 * function for the onClick XML attribute.
+	 * 
+	 * @param v
+	 *            the View that has been pressed
+	 */
+	public void openLutChooser(View v) {
+		dismissMenus();
+
+		File directory = new File(Environment.getExternalStorageDirectory(), LUT_DIRECTORY);
+		final String[] files = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String filename) {
+				return filename.toLowerCase(Locale.US).endsWith(LUT_SUFFIX);
+			}
+		});
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle(R.string.setting_lut);
+		if (files == null || files.length == 0) {
+			builder.setMessage(getString(R.string.lut_none, directory.getPath()));
+			builder.show();
+			return;
+		}
+
+		Arrays.sort(files);
+		final File[] paths = new File[files.length];
+		for (int i = 0; i < files.length; i++)
+			paths[i] = new File(directory, files[i]);
+		builder.setItems(files, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				SharedPreferences.Editor editor = mSharedPreferences.edit();
+				editor.putString(getString(R.string.key_lut_file), paths[which].getPath());
+				editor.commit();
+			}
+		});
+		builder.show();
+	}
+
+	/**
+	 * Loads the table of the given file, unless it is the one already loaded or being loaded, so that reading the settings again does not parse the same file over and over.
+	 */
+	private void loadLut(String path) {
+		if (path == null || path.equals(mLutPath))
+			return;
+		if (mLoadLutTask != null)
+			mLoadLutTask.cancel(false);
+		mLutPath = path;
+		mLoadLutTask = new LoadLutTask(path);
+		mLoadLutTask.execute();
+	}
+
+	/**
+	 * Parses a .cube file in the background, since tables with many nodes take a while to read. The parsed table is handed to the ColorView on the UI thread.
+	 */
+	private class LoadLutTask extends AsyncTask<Void, Void, CubeLut> {
+		private final String mPath;
+
+		private LoadLutTask(String path) {
+			mPath = path;
+		}
+
+		@Override
+		protected CubeLut doInBackground(Void... params) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(mPath);
+				return CubeLut.parse(in);
+			} catch (IOException e) {
+				Log.w(LOG_TAG, "Unable to read lookup table " + mPath, e);
+				return null;
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						Log.w(LOG_TAG, "Unable to close " + mPath, e);
+					}
+				}
+			}
+		}
+
+		@Override
+		protected void onPostExecute(CubeLut lut) {
+			// before Honeycomb a cancelled task still gets here with null.
+			if (isCancelled())
+				return;
+			mLoadLutTask = null;
+			if (lut == null) {
+				// the next time the settings are loaded the file is read again.
+				mLutPath = null;
+				Toast.makeText(EyeCamActivity.this, R.string.lut_error, Toast.LENGTH_LONG).show();
+				return;
+			}
+			mColorView.setLut(lut);
+			mSizeCalibrator.setLut(lut);
+			if (!mCamIsPreviewing && mCamera != null)
+				mColorView.refreshBitmap();
+
+			boolean lutRunning = (mControlBar.isPrimaryFilterRunning() ? mPrimaryFilter : mSecondaryFilter) == ColorTransform.COLOR_EFFECT_LUT;
+			if (lut.getSize() != mLutSize && lutRunning && (mCamIsPreviewing || mOpenCameraTask != null)) {
+				// the preview size was chosen for a table of another size.
+				releaseCamera();
+				openCamera();
+			}
+			mLutSize = lut.getSize();
+		}
+	}
+
 	@Override
 	protected void onStop() {
 		logLivecycleStatus("onStop");
@@ -723,6 +1040,13 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 		@Override
 		public void handleMessage(Message msg) {
 			EyeCamActivity activity = activityRef.get();
+			if (activity == null)
+				return;
+			if (msg.what == CAMERA_FIRST_FRAME) {
+				if (activity.mCamera != null)
+					activity.onFirstFrame();
+				return;
+			}
 			if (activity.menuIsShowing()) {
 				activity.dismissMenus();
 				return;
@@ -730,9 +1054,12 @@ public class EyeCamActivity extends Activity implements SurfaceHolder.Callback {
 
 			switch (msg.what) {
 			case CAMERA_START_PREVIEW:
-				activity.startCameraPreview();
+				if (activity.mCamera != null)
+					activity.startCameraPreview();
 				break;
 			case CAMERA_STOP_PREVIEW:
+				if (activity.mCamera == null)
+					break;
 				activity.stopCameraPreview();
 				activity.mColorView.refreshBitmap();
 				activity.setCameraLight(Camera.Parameters.FLASH_MODE_OFF);
@@ -0,0 +1,154 @@
+package ch.hsr.eyecam;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.SharedPreferences;
+import android.hardware.Camera.Size;
+import android.os.Build;
+import ch.hsr.eyecam.colormodel.ColorTransform;
+import ch.hsr.eyecam.colormodel.CubeLut;
+
+/**
+ * This class measures how many pixels per second the current device is able to transform with a given effect and uses that throughput to limit the preview size.
+ *
+ * The measurement runs the effect on a few synthetic frames at each candidate preview size. Since this takes a moment, it is only done once per effect and the result is cached
+ * in the SharedPreferences. The cache key contains the device model and the version code of the application, so a new release with a changed transformation will recalibrate.
+ *
+ * The calibration uses a {@link ColorTransform} of its own, so it does not interfere with the effect of the preview and may run on a background thread. The custom filter is
+ * measured with the table set by {@link #setLut(CubeLut)}, since its speed depends on the size of the table.
+ */
+public class PreviewSizeCalibrator {
+	/**
+	 * The frame rate the preview should be able to reach with the chosen size.
+	 */
+	public static final int TARGET_FPS = 15;
+	/**
+	 * The transformation may only use this share (in percent) of the frame time, the rest is needed for drawing the bitmap.
+	 */
+	private static final int TRANSFORM_SHARE = 60;
+	private static final int FRAMES_PER_SIZE = 3;
+	private static final String KEY_PREFIX = "calibration_";
+	private static final String LOG_TAG = "ch.hsr.eyecam.PreviewSizeCalibrator";
+
+	private final SharedPreferences mSharedPreferences;
+	private final String mDeviceKey;
+	private volatile CubeLut mLut;
+
+	/**
+	 * @param sharedPreferences
+	 *            used to cache the measured throughput
+	 * @param versionCode
+	 *            of the application
+	 */
+	public PreviewSizeCalibrator(SharedPreferences sharedPreferences, int versionCode) {
+		mSharedPreferences = sharedPreferences;
+		mDeviceKey = KEY_PREFIX + Build.MANUFACTURER + '_' + Build.MODEL + '_' + versionCode + '_';
+	}
+
+	/**
+	 * Returns the number of pixels the transformation is allowed to process per frame in order to reach {@link #TARGET_FPS} with the given effect. The throughput will be
+	 * measured on the candidate sizes if it has not been cached yet.
+	 *
+	 * @param sizes
+	 *            the preview sizes supported by the camera
+	 * @param effect
+	 *            the effect that will be running
+	 * @param partial
+	 *            whether the effect will be a partial effect
+	 * @return the maximum number of pixels per frame
+	 */
+	public long getPixelBudget(List<Size> sizes, int effect, boolean partial) {
+		CubeLut lut = effect == ColorTransform.COLOR_EFFECT_LUT ? mLut : null;
+		String key = mDeviceKey + effect + (partial ? "_partial" : "") + (lut != null ? "_" + lut.getSize() : "");
+		long pixelsPerSecond = mSharedPreferences.getLong(key, 0);
+		if (pixelsPerSecond <= 0) {
+			pixelsPerSecond = measure(sizes, effect, partial, lut);
+			SharedPreferences.Editor editor = mSharedPreferences.edit();
+			editor.putLong(key, pixelsPerSecond);
+			editor.commit();
+		}
+		Debug.msg(LOG_TAG, "Throughput for effect " + effect + ": " + pixelsPerSecond + " pixels/s");
+		return pixelsPerSecond * TRANSFORM_SHARE / 100 / TARGET_FPS;
+	}
+
+	/**
+	 * Sets the table {@link ColorTransform#COLOR_EFFECT_LUT} is measured with. Without a table the effect costs as much as no effect at all. The throughput is cached per
+	 * table size, so a table of another size is measured again.
+	 * 
+	 * @param lut
+	 *            the table the preview uses
+	 */
+	public void setLut(CubeLut lut) {
+		mLut = lut;
+	}
+
+	private long measure(List<Size> sizes, int effect, boolean partial, CubeLut lut) {
+		ColorTransform colorTransform = new ColorTransform();
+		try {
+			if (lut != null)
+				colorTransform.setLut(lut.getSize(), lut.getRgb());
+			if (partial)
+				colorTransform.setPartialEffect(effect);
+			else
+				colorTransform.setEffect(effect);
+			return measure(colorTransform, sizes);
+		} finally {
+			colorTransform.release();
+		}
+	}
+
+	private long measure(ColorTransform colorTransform, List<Size> sizes) {
+
+		List<Size> sorted = new ArrayList<Size>(sizes);
+		Collections.sort(sorted, new Comparator<Size>() {
+			@Override
+			public int compare(Size lhs, Size rhs) {
+				return lhs.width * lhs.height - rhs.width * rhs.height;
+			}
+		});
+
+		long frameBudgetNanos = 1000000000L / TARGET_FPS;
+		long minPixelsPerSecond = Long.MAX_VALUE;
+		for (Size size : sorted) {
+			long pixels = (long) size.width * size.height;
+			byte[] frame = createSyntheticFrame(size.width, size.height);
+			byte[] buffer = new byte[size.width * size.height * 2];
+
+			// warm up caches and let the JIT settle before timing.
+			colorTransform.transformImageToBuffer(frame, size.width, size.height, buffer);
+
+			long start = System.nanoTime();
+			for (int i = 0; i < FRAMES_PER_SIZE; i++)
+				colorTransform.transformImageToBuffer(frame, size.width, size.height, buffer);
+			long elapsed = Math.max(1, System.nanoTime() - start);
+
+			long pixelsPerSecond = pixels * FRAMES_PER_SIZE * 1000000000L / elapsed;
+			minPixelsPerSecond = Math.min(minPixelsPerSecond, pixelsPerSecond);
+			Debug.msg(LOG_TAG, "Measured W:" + size.width + " H:" + size.height + " " + pixelsPerSecond + " pixels/s");
+
+			// bigger sizes will not reach the target frame rate either.
+			if (elapsed / FRAMES_PER_SIZE > 2 * frameBudgetNanos)
+				break;
+		}
+		return minPixelsPerSecond == Long.MAX_VALUE ? 0 : minPixelsPerSecond;
+	}
+
+	/**
+	 * Creates a NV21 frame with smooth luma and chroma gradients, so that partial effects take both of their branches as they would on a real picture.
+	 */
+	private static byte[] createSyntheticFrame(int width, int height) {
+		int frameSize = width * height;
+		byte[] frame = new byte[frameSize + frameSize / 2];
+		for (int i = 0; i < height; i++)
+			for (int j = 0; j < width; j++)
+				frame[i * width + j] = (byte) ((i + j) & 0xff);
+		for (int i = frameSize; i < frame.length; i += 2) {
+			frame[i] = (byte) ((i / 3) & 0xff);
+			frame[i + 1] = (byte) ((i / 7) & 0xff);
+		}
+		return frame;
+	}
+}
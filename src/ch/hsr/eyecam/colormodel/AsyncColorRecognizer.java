@@ -0,0 +1,182 @@
+package ch.hsr.eyecam.colormodel;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+import ch.hsr.eyecam.colormodel.namethatcolor.AllColors;
+import ch.hsr.eyecam.colormodel.namethatcolor.ColorNamer;
+import ch.hsr.eyecam.colormodel.namethatcolor.NamedColor;
+
+/**
+ * Runs the color recognition and naming on a background thread, so that touch events never have to wait for it.
+ * 
+ * Only the latest request counts: submitting a new request cancels the pending one and the callback will only be invoked for the newest request. The callback is always
+ * invoked on the thread of the Looper given in the constructor.
+ */
+public class AsyncColorRecognizer {
+	private static final int KEEP_ALIVE_SECONDS = 10;
+
+	private final ExecutorService mExecutor;
+	private final Handler mHandler;
+	private final ColorRecognizer mColorRecognizer;
+	private final ColorNamer mColorNamer;
+	private volatile int mGeneration;
+	private Future<Result> mPending;
+
+	/**
+	 * Interface definition for a callback to be invoked when a color has been recognized.
+	 */
+	public interface Callback {
+		void onColorRecognized(Result result);
+	}
+
+	/**
+	 * The result of a recognition request. The coordinates are the screen coordinates passed with the request.
+	 */
+	public static class Result {
+		public final int x;
+		public final int y;
+		public final int r;
+		public final int g;
+		public final int b;
+		public final NamedColor namedColor;
+
+		Result(int x, int y, int[] rgb, NamedColor namedColor) {
+			this.x = x;
+			this.y = y;
+			this.r = rgb[0];
+			this.g = rgb[1];
+			this.b = rgb[2];
+			this.namedColor = namedColor;
+		}
+	}
+
+	/**
+	 * @param looper
+	 *            of the thread the callbacks will be invoked on
+	 * @param locale
+	 *            used for naming the colors
+	 */
+	public AsyncColorRecognizer(Looper looper, Locale locale) {
+		mHandler = new Handler(looper);
+		mColorRecognizer = new ColorRecognizer();
+		mColorNamer = new ColorNamer(new AllColors(), locale);
+		// the worker thread terminates when there is nothing to do.
+		mExecutor = new ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	}
+
+	/**
+	 * Recognizes the color at the given location of the frame. Any request that is still pending will be canceled.
+	 * 
+	 * This method acquires its own reference to the frame, which is released as soon as the recognition has finished or has been canceled.
+	 * 
+	 * @param frame
+	 *            to recognize the color in
+	 * @param x
+	 *            screen coordinate, passed through to the result
+	 * @param y
+	 *            screen coordinate, passed through to the result
+	 * @param frameX
+	 *            x coordinate in the frame
+	 * @param frameY
+	 *            y coordinate in the frame
+	 * @param callback
+	 *            invoked with the result, unless a newer request has been submitted in the meantime
+	 * @return the future of the result
+	 */
+	public synchronized Future<Result> submit(Frame frame, int x, int y, int frameX, int frameY, Callback callback) {
+		cancel();
+		final Recognition recognition = new Recognition(++mGeneration, frame.acquire(), x, y, frameX, frameY, callback);
+		FutureTask<Result> task = new FutureTask<Result>(recognition) {
+			@Override
+			protected void done() {
+				if (isCancelled())
+					recognition.releaseUnclaimed();
+			}
+		};
+		mPending = task;
+		mExecutor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Cancels the pending request, if there is any. Its callback will not be invoked anymore.
+	 */
+	public synchronized void cancel() {
+		mGeneration++;
+		if (mPending != null) {
+			mPending.cancel(true);
+			mPending = null;
+		}
+	}
+
+	private boolean isCurrent(int generation) {
+		return generation == mGeneration;
+	}
+
+	private class Recognition implements Callable<Result> {
+		private final int mRequest;
+		private final Frame mFrame;
+		private final int mX;
+		private final int mY;
+		private final int mFrameX;
+		private final int mFrameY;
+		private final Callback mCallback;
+		private final AtomicBoolean mClaimed = new AtomicBoolean();
+
+		Recognition(int request, Frame frame, int x, int y, int frameX, int frameY, Callback callback) {
+			mRequest = request;
+			mFrame = frame;
+			mX = x;
+			mY = y;
+			mFrameX = frameX;
+			mFrameY = frameY;
+			mCallback = callback;
+		}
+
+		@Override
+		public Result call() {
+			// whoever claims the frame first is responsible for releasing it.
+			if (!mClaimed.compareAndSet(false, true))
+				return null;
+			int[] rgb;
+			try {
+				if (!isCurrent(mRequest))
+					return null;
+				rgb = mColorRecognizer.getRgbAt(mFrame, mFrameX, mFrameY);
+			} finally {
+				mFrame.release();
+			}
+			if (!isCurrent(mRequest))
+				return null;
+
+			String hexRgb = String.format("#%2x%2x%2x", rgb[0], rgb[1], rgb[2]).replaceAll(" ", "0");
+			final Result result = new Result(mX, mY, rgb, mColorNamer.findClosestColor(hexRgb));
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (isCurrent(mRequest))
+						mCallback.onColorRecognized(result);
+				}
+			});
+			return result;
+		}
+
+		/**
+		 * Releases the frame if the recognition has been canceled before it started.
+		 */
+		void releaseUnclaimed() {
+			if (mClaimed.compareAndSet(false, true))
+				mFrame.release();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package ch.hsr.eyecam.colormodel;
+
+import java.util.Arrays;
+
+import ch.hsr.eyecam.colormodel.namethatcolor.ColorNamer;
+
+/**
+ * A grid of named colors over a single frame, used to name colors at touch rate while the user drags over the paused preview.
+ * 
+ * The frame is divided into cells of {@link #CELL_SIZE} pixels. The color of a cell is the average around its center, sampled directly from the NV21 data. Cells are named on
+ * their first lookup and cached for the lifetime of the frame, so binding a frame is free and a lookup costs at most one small sample and one palette search. Moving the
+ * finger within a cell or back to a visited cell costs nothing at all.
+ * 
+ * This class is not thread safe and is meant to be used from the UI thread.
+ */
+public class ColorGrid {
+	public static final int CELL_SIZE = 4;
+	private static final int SAMPLE_RADIUS = 3;
+	private static final int UNKNOWN = -1;
+
+	private final ColorRecognizer mColorRecognizer;
+	private final ColorNamer mColorNamer;
+	private final int[] mPoint = new int[2];
+	private final int[] mRgb = new int[1];
+
+	private Frame mFrame;
+	private int mColumns;
+	private int mRows;
+	private int[] mColorIndices = new int[0];
+	private int[] mCellRgb = new int[0];
+
+	/**
+	 * @param colorNamer
+	 *            used to name the cells
+	 */
+	public ColorGrid(ColorNamer colorNamer) {
+		mColorRecognizer = new ColorRecognizer();
+		mColorNamer = colorNamer;
+	}
+
+	/**
+	 * Binds the grid to a frame. The grid holds a reference to the frame until another frame is bound or {@link #release()} is called.
+	 * 
+	 * @param frame
+	 *            in NV21 format
+	 */
+	public void setFrame(Frame frame) {
+		if (frame == mFrame)
+			return;
+		release();
+		mFrame = frame.acquire();
+		mColumns = (frame.getWidth() + CELL_SIZE - 1) / CELL_SIZE;
+		mRows = (frame.getHeight() + CELL_SIZE - 1) / CELL_SIZE;
+
+		int cells = mColumns * mRows;
+		if (mColorIndices.length < cells) {
+			mColorIndices = new int[cells];
+			mCellRgb = new int[cells];
+		}
+		Arrays.fill(mColorIndices, 0, cells, UNKNOWN);
+	}
+
+	/**
+	 * @return the frame the grid is bound to, or null
+	 */
+	public Frame getFrame() {
+		return mFrame;
+	}
+
+	/**
+	 * Releases the reference to the frame.
+	 */
+	public void release() {
+		if (mFrame == null)
+			return;
+		mFrame.release();
+		mFrame = null;
+	}
+
+	/**
+	 * Returns the palette index of the color at the given location. Locations outside the frame are clamped to its border.
+	 * 
+	 * @param x
+	 *            in frame coordinates
+	 * @param y
+	 *            in frame coordinates
+	 * @return the index for {@link ColorNamer#getColor(int)}
+	 * @throws IllegalStateException
+	 *             if no frame is bound
+	 */
+	public int getColorIndexAt(int x, int y) {
+		int cell = lookup(x, y);
+		return mColorIndices[cell];
+	}
+
+	/**
+	 * Returns the average color of the cell at the given location.
+	 * 
+	 * @return the color packed as 0xRRGGBB
+	 * @see #getColorIndexAt(int, int)
+	 */
+	public int getRgbAt(int x, int y) {
+		int cell = lookup(x, y);
+		return mCellRgb[cell];
+	}
+
+	private int lookup(int x, int y) {
+		if (mFrame == null)
+			throw new IllegalStateException("No frame bound to the grid");
+
+		int column = Math.min(mColumns - 1, Math.max(0, x / CELL_SIZE));
+		int row = Math.min(mRows - 1, Math.max(0, y / CELL_SIZE));
+		int cell = row * mColumns + column;
+		if (mColorIndices[cell] == UNKNOWN) {
+			mPoint[0] = column * CELL_SIZE + CELL_SIZE / 2;
+			mPoint[1] = row * CELL_SIZE + CELL_SIZE / 2;
+			mColorRecognizer.getRgbAt(mFrame, mPoint, 1, SAMPLE_RADIUS, mRgb);
+			int rgb = mRgb[0];
+			mCellRgb[cell] = rgb;
+			mColorIndices[cell] = mColorNamer.findClosestColorIndex((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+		}
+		return cell;
+	}
+}
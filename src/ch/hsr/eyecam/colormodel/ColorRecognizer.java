@@ -9,24 +9,25 @@ import android.graphics.Rect;
 import android.graphics.YuvImage;
 import ch.hsr.eyecam.Debug;
 
+/**
+ * Recognizes the RGB color of an area of a preview frame.
+ * 
+ * The frame passed to the methods of this class needs to be referenced by the caller for the duration of the call.
+ * 
+ * The chroma offset of the white balance the frame has been displayed with is applied to the recognized colors.
+ * 
+ * @see Frame#acquire()
+ * @see Frame#setChromaOffset(int, int)
+ */
 public class ColorRecognizer {
-	private final int mHeight;
-	private final int mWidth;
-	private final byte[] mBuffer;
-
-	public ColorRecognizer(byte[] buffer, int width, int height) {
-		mBuffer = buffer;
-		mWidth = width;
-		mHeight = height;
-	}
 
-	public int[] getRgbAt(int x, int y) {
-		Bitmap theImage = toBitmap();
+	public int[] getRgbAt(Frame frame, int x, int y) {
+		Bitmap theImage = toBitmap(frame);
 		int length = 3;
 		int xStart = Math.max(0, x - length);
-		int xEnd = Math.min(mWidth - 1, x + length);
+		int xEnd = Math.min(frame.getWidth() - 1, x + length);
 		int yStart = Math.max(0, y - length);
-		int yEnd = Math.min(mHeight - 1, y + length);
+		int yEnd = Math.min(frame.getHeight() - 1, y + length);
 
 		int r = 0;
 		int g = 0;
@@ -45,15 +46,99 @@ public class ColorRecognizer {
 		g /= pixelCount;
 		b /= pixelCount;
 
+		int offsetU = frame.getChromaOffsetU();
+		int offsetV = frame.getChromaOffsetV();
+		if (offsetU != 0 || offsetV != 0) {
+			r = clamp(r + ((92250 * offsetV) >> 16));
+			g = clamp(g - ((22644 * offsetU + 46990 * offsetV) >> 16));
+			b = clamp(b + ((116596 * offsetU) >> 16));
+		}
+
 		Debug.msg("RGB from android: R:" + r + " G:" + g + " B:" + b);
 
 		return new int[] { r, g, b };
 	}
 
-	private Bitmap toBitmap() {
+	/**
+	 * Samples the average color around a batch of points directly from the NV21 data of the frame. Unlike {@link #getRgbAt(Frame, int, int)} this neither converts the frame
+	 * nor allocates anything, which makes it cheap enough to be called for every preview frame.
+	 * 
+	 * @param frame
+	 *            in NV21 format
+	 * @param points
+	 *            x and y coordinates of the points, interleaved
+	 * @param count
+	 *            number of points
+	 * @param radius
+	 *            of the square around each point that will be averaged
+	 * @param rgbOut
+	 *            receives the average color for each point packed as 0xRRGGBB
+	 */
+	public void getRgbAt(Frame frame, int[] points, int count, int radius, int[] rgbOut) {
+		byte[] data = frame.getData();
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		int stride = frame.getStride();
+		int uvOffset = stride * height;
+		int offsetU = frame.getChromaOffsetU() - 128;
+		int offsetV = frame.getChromaOffsetV() - 128;
+
+		for (int i = 0; i < count; i++) {
+			int xStart = Math.max(0, points[2 * i] - radius);
+			int xEnd = Math.min(width - 1, points[2 * i] + radius);
+			int yStart = Math.max(0, points[2 * i + 1] - radius);
+			int yEnd = Math.min(height - 1, points[2 * i + 1] + radius);
+
+			int ySum = 0;
+			int uSum = 0;
+			int vSum = 0;
+			for (int y = yStart; y <= yEnd; y++) {
+				int yRow = y * stride;
+				int uvRow = uvOffset + (y >> 1) * stride;
+				for (int x = xStart; x <= xEnd; x++) {
+					int uvIndex = uvRow + (x & ~1);
+					ySum += data[yRow + x] & 0xff;
+					vSum += data[uvIndex] & 0xff;
+					uSum += data[uvIndex + 1] & 0xff;
+				}
+			}
+			int pixelCount = (xEnd - xStart + 1) * (yEnd - yStart + 1);
+			rgbOut[i] = yuvToRgb(ySum / pixelCount, clampChroma(uSum / pixelCount + offsetU), clampChroma(vSum / pixelCount + offsetV));
+		}
+	}
+
+	/**
+	 * Converts a YUV value to RGB using the same coefficients as the native transformation without any effect.
+	 * 
+	 * @param y
+	 *            in the range [0, 255]
+	 * @param u
+	 *            in the range [-128, 127]
+	 * @param v
+	 *            in the range [-128, 127]
+	 * @return the color packed as 0xRRGGBB
+	 */
+	public static int yuvToRgb(int y, int u, int v) {
+		int yMax = 65536 * y;
+		int r = clamp((yMax + 92250 * v) >> 16);
+		int g = clamp((yMax - 22644 * u - 46990 * v) >> 16);
+		int b = clamp((yMax + 116596 * u) >> 16);
+		return (r << 16) | (g << 8) | b;
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : (value > 255 ? 255 : value);
+	}
+
+	static int clampChroma(int value) {
+		return value < -128 ? -128 : (value > 127 ? 127 : value);
+	}
+
+	private Bitmap toBitmap(Frame frame) {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		YuvImage yuvImage = new YuvImage(mBuffer, ImageFormat.NV21, mWidth, mHeight, null);
-		yuvImage.compressToJpeg(new Rect(0, 0, mWidth, mHeight), 100, out);
+		int[] strides = { frame.getStride(), frame.getStride() };
+		YuvImage yuvImage = new YuvImage(frame.getData(), ImageFormat.NV21, frame.getWidth(), frame.getHeight(), strides);
+		yuvImage.compressToJpeg(new Rect(0, 0, frame.getWidth(), frame.getHeight()), 100, out);
 		byte[] imageBytes = out.toByteArray();
 		return BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
 	}
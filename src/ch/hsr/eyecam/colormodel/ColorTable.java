@@ -0,0 +1,224 @@
+package ch.hsr.eyecam.colormodel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.hsr.eyecam.colormodel.namethatcolor.ColorNamer;
+import ch.hsr.eyecam.colormodel.namethatcolor.NamedColor;
+
+/**
+ * A lookup table mapping quantized YUV values to the closest color of the palette of a {@link ColorNamer}. The table allows naming colors per pixel at video rate, since a
+ * lookup is a single array access instead of a search through the palette.
+ * 
+ * Each of Y, U and V is quantized to {@link #BITS} bits, the index of a YUV value is built as follows:
+ * 
+ * <pre>
+ * index = (y &gt;&gt; 3) &lt;&lt; 10 | ((u + 128) &gt;&gt; 3) &lt;&lt; 5 | ((v + 128) &gt;&gt; 3)
+ * </pre>
+ * 
+ * with y in the range [0, 255] and u, v in the range [-128, 127]. The native library uses the same layout, see {@link ColorTransform#setHighlight(int[])}.
+ * 
+ * All shades of the palette sharing the same name form a color family. Besides the palette index, the table also provides the family of each entry, which is what most users
+ * of the table are interested in.
+ * 
+ * A table can also name colors the way they are perceived through an effect, e.g. the way a colorblind person sees them with {@link ColorTransform#COLOR_EFFECT_SIMULATE}.
+ * Every quantized value is then run through the effect before it is named, so a lookup costs the same as with a normal table.
+ * 
+ * Building the table names every quantized value once, so it should be built once per palette and locale and then be kept.
+ */
+public class ColorTable {
+	/**
+	 * Number of bits each of Y, U and V is quantized to.
+	 */
+	public static final int BITS = 5;
+	/**
+	 * Number of entries of the table.
+	 */
+	public static final int SIZE = 1 << (3 * BITS);
+	private static final int SHIFT = 8 - BITS;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private final ColorNamer mColorNamer;
+	private final byte[] mColorIndices;
+	private final byte[] mFamilyIndices;
+	private final int[] mFamilyResIds;
+
+	/**
+	 * Builds the table for the palette of the given ColorNamer.
+	 * 
+	 * @param colorNamer
+	 *            whose palette must not contain more than 256 colors
+	 * @throws IllegalArgumentException
+	 *             if the palette is too big
+	 */
+	public ColorTable(ColorNamer colorNamer) {
+		this(colorNamer, null);
+	}
+
+	/**
+	 * Builds the table for the palette of the given ColorNamer, naming each color the way it looks after the effect of the given transformation.
+	 * 
+	 * @param colorNamer
+	 *            whose palette must not contain more than 256 colors
+	 * @param perception
+	 *            whose current effect is applied to the colors before naming them, or null to name the colors as they are
+	 * @throws IllegalArgumentException
+	 *             if the palette is too big
+	 */
+	public ColorTable(ColorNamer colorNamer, ColorTransform perception) {
+		if (colorNamer.getColorCount() > 256)
+			throw new IllegalArgumentException("Palette too big for the color table: " + colorNamer.getColorCount());
+		mColorNamer = colorNamer;
+		mColorIndices = new byte[SIZE];
+
+		int half = 1 << (SHIFT - 1);
+		int[] rgbColors = new int[SIZE];
+		for (int index = 0; index < SIZE; index++) {
+			int y = ((index >> (2 * BITS)) << SHIFT) + half;
+			int u = (((index >> BITS) & MASK) << SHIFT) + half - 128;
+			int v = ((index & MASK) << SHIFT) + half - 128;
+			rgbColors[index] = perception == null ? ColorRecognizer.yuvToRgb(y, u, v) : (y << 16) | ((u + 128) << 8) | (v + 128);
+		}
+		if (perception != null)
+			perception.transformColors(rgbColors, rgbColors);
+		for (int index = 0; index < SIZE; index++) {
+			int rgb = rgbColors[index];
+			mColorIndices[index] = (byte) colorNamer.findClosestColorIndex((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+		}
+
+		List<Integer> resIds = new ArrayList<Integer>();
+		int[] familyOfColor = new int[colorNamer.getColorCount()];
+		for (int i = 0; i < familyOfColor.length; i++) {
+			Integer resId = colorNamer.getColor(i).getColorNameResId();
+			if (!resIds.contains(resId))
+				resIds.add(resId);
+			familyOfColor[i] = resIds.indexOf(resId);
+		}
+		mFamilyResIds = new int[resIds.size()];
+		for (int i = 0; i < mFamilyResIds.length; i++)
+			mFamilyResIds[i] = resIds.get(i);
+
+		mFamilyIndices = new byte[SIZE];
+		for (int index = 0; index < SIZE; index++)
+			mFamilyIndices[index] = (byte) familyOfColor[mColorIndices[index] & 0xff];
+	}
+
+	/**
+	 * @return the index of the given YUV value in the table
+	 */
+	public static int indexOf(int y, int u, int v) {
+		return (y >> SHIFT) << (2 * BITS) | ((u + 128) >> SHIFT) << BITS | ((v + 128) >> SHIFT);
+	}
+
+	/**
+	 * Returns the index of the given RGB value in the table. The conversion to YUV is the inverse of {@link ColorRecognizer#yuvToRgb(int, int, int)}, up to rounding.
+	 * 
+	 * @return the index of the given RGB value in the table
+	 */
+	public static int indexOfRgb(int r, int g, int b) {
+		int y = (19595 * r + 38470 * g + 7471 * b) >> 16;
+		int u = clampChroma((36837 * (b - y)) >> 16);
+		int v = clampChroma((46558 * (r - y)) >> 16);
+		return indexOf(y, u, v);
+	}
+
+	private static int clampChroma(int value) {
+		return value < -128 ? -128 : (value > 127 ? 127 : value);
+	}
+
+	/**
+	 * @return the family of the color at the given index
+	 * @see #indexOf(int, int, int)
+	 * @see #indexOfRgb(int, int, int)
+	 */
+	public int getFamilyIndex(int index) {
+		return mFamilyIndices[index] & 0xff;
+	}
+
+	/**
+	 * @return the resource id of the name of the given RGB value
+	 * @see #indexOfRgb(int, int, int)
+	 */
+	public int getFamilyResIdOfRgb(int r, int g, int b) {
+		return mFamilyResIds[mFamilyIndices[indexOfRgb(r, g, b)] & 0xff];
+	}
+
+	/**
+	 * @return the palette index for the given YUV value
+	 * @see ColorNamer#getColor(int)
+	 */
+	public int getColorIndex(int y, int u, int v) {
+		return mColorIndices[indexOf(y, u, v)] & 0xff;
+	}
+
+	/**
+	 * @return the color family for the given YUV value
+	 * @see #getFamilyResId(int)
+	 */
+	public int getFamilyIndex(int y, int u, int v) {
+		return mFamilyIndices[indexOf(y, u, v)] & 0xff;
+	}
+
+	/**
+	 * @return the number of color families
+	 */
+	public int getFamilyCount() {
+		return mFamilyResIds.length;
+	}
+
+	/**
+	 * @return the resource id of the name of the given color family
+	 */
+	public int getFamilyResId(int family) {
+		return mFamilyResIds[family];
+	}
+
+	/**
+	 * Returns the palette index for each entry of the table. The returned array is not copied and must not be modified.
+	 * 
+	 * @return the palette indices as unsigned bytes
+	 */
+	public byte[] getColorIndices() {
+		return mColorIndices;
+	}
+
+	/**
+	 * @return the colors of the palette packed as 0xRRGGBB
+	 */
+	public int[] getPaletteRgb() {
+		int[] paletteRgb = new int[mColorNamer.getColorCount()];
+		for (int i = 0; i < paletteRgb.length; i++) {
+			NamedColor color = mColorNamer.getColor(i);
+			paletteRgb[i] = (color.getR() << 16) | (color.getG() << 8) | color.getB();
+		}
+		return paletteRgb;
+	}
+
+	/**
+	 * Returns the distinct color names of the palette in the order of their first appearance, which is the order of the color families.
+	 * 
+	 * @return the resource ids of the names
+	 */
+	public List<Integer> getColorNameResIds() {
+		List<Integer> resIds = new ArrayList<Integer>(mFamilyResIds.length);
+		for (int resId : mFamilyResIds)
+			resIds.add(resId);
+		return resIds;
+	}
+
+	/**
+	 * Creates a bitset with one bit per table entry telling whether the entry belongs to the color family with the given name.
+	 * 
+	 * @param colorNameResId
+	 *            the name of the color family
+	 * @return the bitset, bit (index &amp; 31) of element (index &gt;&gt; 5) is set for the members
+	 */
+	public int[] createMembership(int colorNameResId) {
+		int[] membership = new int[SIZE / 32];
+		for (int index = 0; index < SIZE; index++) {
+			if (mFamilyResIds[mFamilyIndices[index] & 0xff] == colorNameResId)
+				membership[index >> 5] |= 1 << (index & 31);
+		}
+		return membership;
+	}
+}
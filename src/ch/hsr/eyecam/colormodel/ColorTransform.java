@@ -4,6 +4,19 @@ import android.graphics.Bitmap;
 /**
  * A class representing an interface to the colortransform library.
  * 
+ * Each instance is backed by its own native context holding the effect,
+ * its parameters, tables and buffers, so several instances can transform
+ * with different effects at the same time, e.g. the preview and a
+ * calibration running in the background.
+ * 
+ * The setters may be called from any thread. Their changes are taken over
+ * as a whole at the start of the next transformation, a transformation
+ * that is already running finishes with the old parameters. The transform
+ * methods of one instance must not be called from several threads at the
+ * same time.
+ * 
+ * An instance holds native memory until {@link #release()} is called.
+ * 
  * @author Dominik Spengler
  *
  */
@@ -13,6 +26,8 @@ public class ColorTransform {
 		System.loadLibrary("colortransform");
 	}
 
+	private long mContext;
+
 	/**
 	 * Does what it says: Nothing.
 	 */
@@ -38,6 +53,156 @@ public class ColorTransform {
 	 * @see <a href="http://www.vischeck.com/daltonize/"></a>
 	 */
 	public static final int COLOR_EFFECT_DALTONIZE = 4;
+	/**
+	 * Replaces every pixel with the color of its closest named color,
+	 * showing the picture as flat regions of named colors. The palette
+	 * needs to be set using {@link #setPalette(byte[], int[])}, without
+	 * a palette this effect behaves like {@link #COLOR_EFFECT_NONE}.
+	 */
+	public static final int COLOR_EFFECT_POSTERIZE = 5;
+	/**
+	 * Maps every pixel through a 3D lookup table, as used by color grading
+	 * tools to describe color corrections. The table needs to be set using
+	 * {@link #setLut(int, int[])}, without a table this effect behaves like
+	 * {@link #COLOR_EFFECT_NONE}. Colors between the nodes of the table are
+	 * found by tetrahedral interpolation.
+	 * 
+	 * @see CubeLut
+	 */
+	public static final int COLOR_EFFECT_LUT = 6;
+	/**
+	 * Keeps the colors, but covers the colors colorblind people confuse
+	 * with patterns: colors that lose red get a diagonal hatching, colors
+	 * that lose green get dots. The confusable colors are found the same
+	 * way the partial effects find them, so this effect can not be used as
+	 * partial effect itself.
+	 */
+	public static final int COLOR_EFFECT_PATTERN = 7;
+	/**
+	 * Keeps the colors, but outlines the borders between colors that
+	 * colorblind people confuse in black. The borders are found with an
+	 * edge filter on the chroma planes, looking only at the difference
+	 * between red and green that {@link #COLOR_EFFECT_SIMULATE} removes.
+	 * Like {@link #COLOR_EFFECT_PATTERN}, this effect can not be used as
+	 * partial effect.
+	 */
+	public static final int COLOR_EFFECT_OUTLINE = 8;
+
+	/**
+	 * Temporal noise reduction, working on YUV. The noise reduction
+	 * smoothes Y, U and V of each pixel over the frames before the effect is
+	 * applied. Changes between frames that are too big to be noise are taken
+	 * over immediately, so moving objects do not leave trails. This keeps
+	 * noisy pixels from flickering across the threshold of the partial
+	 * effects.
+	 * 
+	 * The noise reduction only applies to full frames. The running state is
+	 * kept in the native context and is only reallocated if the frame size
+	 * changes.
+	 */
+	public static final int STAGE_NOISE_REDUCTION = 0;
+	/**
+	 * Automatic white balance, working on YUV. The average chroma of the
+	 * near-gray pixels of each frame is estimated on a sparse grid (gray
+	 * world assumption) and the resulting offset is applied to the chroma
+	 * of the following frames. The offset adapts over several frames, so a
+	 * sudden change of the light takes about a second to be compensated.
+	 * 
+	 * @see #getChromaOffsetU()
+	 * @see #getChromaOffsetV()
+	 */
+	public static final int STAGE_WHITE_BALANCE = 1;
+	/**
+	 * Adaptive contrast enhancement, working on YUV. The luma of each frame
+	 * is stretched with a tone curve computed from the luma histogram of the
+	 * previous frame, which makes the effects work better on the compressed
+	 * luma range cameras deliver in dim light. The histogram is only
+	 * collected from full frames, regions are transformed with the curve of
+	 * the last frame.
+	 */
+	public static final int STAGE_CONTRAST = 2;
+	/**
+	 * Highlighting of a color family, working on RGB. All pixels not
+	 * belonging to the family set with {@link #setHighlight(int[])} are
+	 * shown desaturated and darkened, while the members keep the current
+	 * effect. The membership is tested with a single lookup per pixel.
+	 */
+	public static final int STAGE_HIGHLIGHT = 3;
+
+	/**
+	 * Semi-planar YUV 4:2:0 with V and U interleaved after the Y plane, the
+	 * default format of the camera preview. The chroma stride is the
+	 * number of bytes of an interleaved chroma row.
+	 */
+	public static final int INPUT_FORMAT_NV21 = 0;
+	/**
+	 * Planar YUV 4:2:0 with the V plane followed by the U plane, as
+	 * delivered by cameras set to android.graphics.ImageFormat.YV12. Note
+	 * that such frames are usually padded, their Y stride is aligned to 16
+	 * bytes and so is the stride of the chroma planes.
+	 */
+	public static final int INPUT_FORMAT_YV12 = 1;
+	/**
+	 * Planar YUV 4:2:0 with the U plane followed by the V plane.
+	 */
+	public static final int INPUT_FORMAT_I420 = 2;
+
+	/**
+	 * 16 bit pixels with 5 bits of red, 6 bits of green and 5 bits of
+	 * blue, as used by RGB_565 bitmaps.
+	 * 
+	 * @see #setDithering(boolean)
+	 */
+	public static final int OUTPUT_FORMAT_RGB_565 = 0;
+	/**
+	 * 4 bytes per pixel in the order red, green, blue and alpha, as used by
+	 * ARGB_8888 bitmaps and by GL_RGBA textures.
+	 */
+	public static final int OUTPUT_FORMAT_RGBA_8888 = 1;
+	/**
+	 * Ints of the form 0xAARRGGBB, like the colors of android.graphics.Color.
+	 * 
+	 * @see #transformImageToPixels(byte[], int, int, int, int, int, int[])
+	 */
+	public static final int OUTPUT_FORMAT_ARGB_8888 = 2;
+
+	/**
+	 * Creates a transformation without any effect.
+	 * 
+	 * @throws OutOfMemoryError if the native context could not be
+	 * allocated
+	 */
+	public ColorTransform() {
+		mContext = nativeCreate();
+		if (mContext == 0)
+			throw new OutOfMemoryError("Unable to allocate the transform context");
+	}
+
+	/**
+	 * Frees the native context. The instance must not be used afterwards
+	 * and must not be transforming while it is released.
+	 */
+	public synchronized void release() {
+		if (mContext == 0)
+			return;
+		nativeDestroy(mContext);
+		mContext = 0;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	private synchronized long getContext() {
+		if (mContext == 0)
+			throw new IllegalStateException("ColorTransform has already been released");
+		return mContext;
+	}
 
 	/**
 	 * Sets the effect to be used for the transformation. The default 
@@ -50,8 +215,14 @@ public class ColorTransform {
 	 * @see #COLOR_EFFECT_FALSE_COLORS
 	 * @see #COLOR_EFFECT_INTENSIFY_DIFFERENCE
 	 * @see #COLOR_EFFECT_DALTONIZE
+	 * @see #COLOR_EFFECT_POSTERIZE
+	 * @see #COLOR_EFFECT_LUT
+	 * @see #COLOR_EFFECT_PATTERN
+	 * @see #COLOR_EFFECT_OUTLINE
 	 */
-	public static native void setEffect(int effect);
+	public void setEffect(int effect) {
+		nativeSetEffect(getContext(), effect, false);
+	}
 
 	/**
 	 * Sets the partial effect to be used for the transformation. This 
@@ -71,29 +242,333 @@ public class ColorTransform {
 	 * 
 	 * @see #setEffect(int)
 	 */
-	public static native void setPartialEffect(int effect);
+	public void setPartialEffect(int effect) {
+		nativeSetEffect(getContext(), effect, true);
+	}
+
+	/**
+	 * Switches {@link #COLOR_EFFECT_SIMULATE} and
+	 * {@link #COLOR_EFFECT_DALTONIZE} between the fast approximation on
+	 * YUV and the model of Vi&eacute;not, Brettel and Mollon, which works
+	 * on linear light. The accurate mode removes the gamma of each pixel
+	 * and reapplies it with lookup tables, so it costs a few table lookups
+	 * more per pixel. The other effects are not affected.
+	 * 
+	 * @param accurate true to use the linear light model
+	 */
+	public void setAccurateSimulation(boolean accurate) {
+		nativeSetAccurate(getContext(), accurate);
+	}
+
+	/**
+	 * Enables ordered dithering of {@link #OUTPUT_FORMAT_RGB_565} output.
+	 * The rounding to 5 and 6 bits per channel is spread over a 4x4 pixel
+	 * pattern, which hides the banding of smooth gradients at no visible
+	 * cost in speed. The other output formats are never dithered.
+	 * 
+	 * @param dither true to dither RGB565 output
+	 */
+	public void setDithering(boolean dither) {
+		nativeSetDithering(getContext(), dither);
+	}
+
+	/**
+	 * Sets the color family highlighted by {@link #STAGE_HIGHLIGHT}.
+	 * 
+	 * @param membership bitset with one bit per quantized YUV value as
+	 * created by {@link ColorTable#createMembership(int)}, or null to
+	 * disable the highlighting
+	 * @throws IllegalArgumentException if the bitset is too small
+	 * 
+	 * @see ColorTable
+	 */
+	public void setHighlight(int[] membership) {
+		nativeSetHighlight(getContext(), membership);
+	}
+
+	/**
+	 * Sets the stages run in addition to the effect. The frames are
+	 * processed in small chunks of pixels, each chunk runs through all
+	 * stages while it is in the cache, so a stage does not need a pass
+	 * over the frame of its own. Stages working on YUV run before the
+	 * effect, stages working on RGB after it, each in the given order.
+	 * 
+	 * A stage that has not been part of the previous stages starts with
+	 * fresh state. By default no stage is used.
+	 * 
+	 * @param stages the STAGE constants, or null for no stages
+	 * @throws IllegalArgumentException if a stage is unknown or used
+	 * twice
+	 * 
+	 * @see #STAGE_NOISE_REDUCTION
+	 * @see #STAGE_WHITE_BALANCE
+	 * @see #STAGE_CONTRAST
+	 * @see #STAGE_HIGHLIGHT
+	 */
+	public void setStages(int[] stages) {
+		nativeSetStages(getContext(), stages);
+	}
+
+	/**
+	 * @return the chroma offset added to U by the white balance, 0 if
+	 * {@link #STAGE_WHITE_BALANCE} is not used
+	 */
+	public int getChromaOffsetU() {
+		return nativeGetChromaOffsetU(getContext());
+	}
+
+	/**
+	 * @return the chroma offset added to V by the white balance, 0 if
+	 * {@link #STAGE_WHITE_BALANCE} is not used
+	 */
+	public int getChromaOffsetV() {
+		return nativeGetChromaOffsetV(getContext());
+	}
+
+	/**
+	 * Applies the current effect to single colors, e.g. to find out how a
+	 * color looks with {@link #COLOR_EFFECT_SIMULATE}. The stages are not
+	 * applied, since they depend on the surrounding frames.
+	 * {@link #COLOR_EFFECT_PATTERN} draws its pattern as if the colors
+	 * were the first row of a frame.
+	 * 
+	 * @param yuvColors the colors packed as 0xYYUUVV, with U and V offset
+	 * by 128 to the range [0, 255]
+	 * @param rgbColors receives the transformed colors packed as 0xRRGGBB
+	 * @throws IllegalArgumentException if rgbColors is smaller than
+	 * yuvColors
+	 */
+	public void transformColors(int[] yuvColors, int[] rgbColors) {
+		nativeTransformColors(getContext(), yuvColors, rgbColors);
+	}
+
+	/**
+	 * Sets the palette used by {@link #COLOR_EFFECT_POSTERIZE}. The data
+	 * is copied, so the palette only needs to be set once.
+	 * 
+	 * @param colorIndices palette index for each quantized YUV value as
+	 * returned by {@link ColorTable#getColorIndices()}
+	 * @param paletteRgb colors of the palette packed as 0xRRGGBB, at
+	 * most 256
+	 * @throws IllegalArgumentException if one of the arrays has the
+	 * wrong size
+	 * 
+	 * @see ColorTable
+	 */
+	public void setPalette(byte[] colorIndices, int[] paletteRgb) {
+		nativeSetPalette(getContext(), colorIndices, paletteRgb);
+	}
+
+	/**
+	 * Sets the lookup table used by {@link #COLOR_EFFECT_LUT}. The table
+	 * has size nodes on each axis and holds the colors in the order of the
+	 * .cube format: red changes fastest, then green, then blue. The data is
+	 * copied. Tables of up to 33 nodes per axis are resampled to a table
+	 * indexed by YUV directly, which saves the conversion to RGB for every
+	 * pixel.
+	 * 
+	 * @param size the number of nodes on each axis, between 2 and 65
+	 * @param rgb size * size * size colors packed as 0xRRGGBB
+	 * @throws IllegalArgumentException if the size is out of range or
+	 * there are not enough colors
+	 * @throws OutOfMemoryError if the table could not be allocated
+	 * 
+	 * @see CubeLut
+	 */
+	public void setLut(int size, int[] rgb) {
+		nativeSetLut(getContext(), size, rgb);
+	}
 	
 	/**
 	 * This method will transform the image data given in the byte array
 	 * according to the effect and write it to the bitmap specified.
+	 * The pixels are written in the format of the bitmap, which needs to
+	 * be either RGB_565 or ARGB_8888. Despite its name, an ARGB_8888 bitmap
+	 * gets its bytes in the order red, green, blue and alpha, as with
+	 * {@link #OUTPUT_FORMAT_RGBA_8888}, not the ints of
+	 * {@link #OUTPUT_FORMAT_ARGB_8888}.
 	 * 
 	 * @param data the source data in yuv420sp
 	 * @param width of the source data
 	 * @param height of the source data
+	 * @param bitmap to write the data to, at least as big as the source
+	 * @throws IllegalArgumentException if the bitmap has another format or
+	 * is too small
+	 */
+	public void transformImageToBitmap(byte[] data, int width,
+			int height, Bitmap bitmap) {
+		transformImageToBitmap(data, width, height, INPUT_FORMAT_NV21, 0, 0, bitmap);
+	}
+
+	/**
+	 * Same as {@link #transformImageToBitmap(byte[], int, int, Bitmap)}
+	 * for source data in any of the INPUT_FORMAT layouts. The data is read
+	 * in place, padded rows do not need to be copied.
+	 * 
+	 * @param data the source data
+	 * @param width of the source data
+	 * @param height of the source data
+	 * @param format one of the INPUT_FORMAT constants
+	 * @param yStride bytes between the rows of the Y plane, 0 for width
+	 * @param uvStride bytes between the rows of the chroma planes, 0 for
+	 * rows without padding
 	 * @param bitmap to write the data to
+	 * @throws IllegalArgumentException if the layout is not supported or
+	 * the data is too small for it
 	 */
-	public static native void transformImageToBitmap(byte[] data, int width,
-			int height, Bitmap bitmap);
+	public void transformImageToBitmap(byte[] data, int width,
+			int height, int format, int yStride, int uvStride, Bitmap bitmap) {
+		nativeTransformImageToBitmap(getContext(), data, width, height, format, yStride, uvStride, bitmap);
+	}
+
+	/**
+	 * This method transforms only a region of the image data given in the
+	 * byte array according to the effect. The region has the size of the
+	 * bitmap and will be moved inside of the image if it exceeds its
+	 * borders. The cost of this method only depends on the size of the
+	 * region, which makes it suitable for magnifying parts of the image
+	 * in addition to the normal transformation.
+	 * 
+	 * @param data the source data in yuv420sp
+	 * @param width of the source data
+	 * @param height of the source data
+	 * @param left x coordinate of the region
+	 * @param top y coordinate of the region
+	 * @param bitmap to write the region to, in RGB_565 or ARGB_8888 format
+	 * and not bigger than the source data
+	 * @throws IllegalArgumentException if the bitmap has another format or
+	 * is bigger than the source data
+	 */
+	public void transformRegionToBitmap(byte[] data, int width,
+			int height, int left, int top, Bitmap bitmap) {
+		transformRegionToBitmap(data, width, height, INPUT_FORMAT_NV21, 0, 0, left, top, bitmap);
+	}
+
+	/**
+	 * Same as {@link #transformRegionToBitmap(byte[], int, int, int, int, Bitmap)}
+	 * for source data in any of the INPUT_FORMAT layouts.
+	 * 
+	 * @see #transformImageToBitmap(byte[], int, int, int, int, int, Bitmap)
+	 */
+	public void transformRegionToBitmap(byte[] data, int width,
+			int height, int format, int yStride, int uvStride, int left, int top, Bitmap bitmap) {
+		nativeTransformRegionToBitmap(getContext(), data, width, height, format, yStride, uvStride, left, top, bitmap);
+	}
+
+	/**
+	 * This method renders the image data given in the byte array with
+	 * several effects at once, so that they can be compared side by side.
+	 * Each effect is shown in a pane of half the width and half the height
+	 * of the image. Four effects fill the bitmap as a 2x2 grid, two effects
+	 * are placed side by side in the middle of the bitmap.
+	 * 
+	 * The image is decoded only once at reduced resolution for all panes,
+	 * so the cost is about the same as for one transformation with
+	 * {@link #transformImageToBitmap(byte[], int, int, Bitmap)}. Partial
+	 * effects and the highlighting are not applied.
+	 * 
+	 * @param data the source data in yuv420sp
+	 * @param width of the source data
+	 * @param height of the source data
+	 * @param effects to be shown, 2 or 4 of the COLOR_EFFECT constants
+	 * @param bitmap to write the data to, of the same size as the source
+	 * @throws IllegalArgumentException if not 2 or 4 effects are given
+	 */
+	public void transformMosaicToBitmap(byte[] data, int width,
+			int height, int[] effects, Bitmap bitmap) {
+		transformMosaicToBitmap(data, width, height, INPUT_FORMAT_NV21, 0, 0, effects, bitmap);
+	}
+
+	/**
+	 * Same as {@link #transformMosaicToBitmap(byte[], int, int, int[], Bitmap)}
+	 * for source data in any of the INPUT_FORMAT layouts.
+	 * 
+	 * @see #transformImageToBitmap(byte[], int, int, int, int, int, Bitmap)
+	 */
+	public void transformMosaicToBitmap(byte[] data, int width,
+			int height, int format, int yStride, int uvStride, int[] effects, Bitmap bitmap) {
+		nativeTransformMosaicToBitmap(getContext(), data, width, height, format, yStride, uvStride, effects, bitmap);
+	}
 
 	/**
 	 * This method will transform the image data given in the byte array
 	 * according to the effect and write it to the buffer specified.
+	 * The buffer will contain the pixels in RGB565 format and must 
+	 * therefore hold at least 2 * width * height bytes.
 	 * 
 	 * @param data the source data in yuv420sp
 	 * @param width of the source data
 	 * @param height of the source data
 	 * @param buffer to write the data to
 	 */
-	public static native void transformImageToBuffer(byte[] data, int width,
-			int height, byte[] buffer);
+	public void transformImageToBuffer(byte[] data, int width,
+			int height, byte[] buffer) {
+		transformImageToBuffer(data, width, height, INPUT_FORMAT_NV21, 0, 0, OUTPUT_FORMAT_RGB_565, buffer);
+	}
+
+	/**
+	 * Same as {@link #transformImageToBuffer(byte[], int, int, byte[])}
+	 * for source data in any of the INPUT_FORMAT layouts. The buffer
+	 * receives the pixels in the given output format, e.g. ready to be
+	 * uploaded as a texture.
+	 * 
+	 * @param outputFormat {@link #OUTPUT_FORMAT_RGB_565} or
+	 * {@link #OUTPUT_FORMAT_RGBA_8888}
+	 * @param buffer to write the data to, 2 or 4 bytes per pixel
+	 * @throws IllegalArgumentException if the output format is not
+	 * supported or the buffer is too small
+	 * @see #transformImageToBitmap(byte[], int, int, int, int, int, Bitmap)
+	 */
+	public void transformImageToBuffer(byte[] data, int width,
+			int height, int format, int yStride, int uvStride, int outputFormat, byte[] buffer) {
+		nativeTransformImageToBuffer(getContext(), data, width, height, format, yStride, uvStride, outputFormat, buffer);
+	}
+
+	/**
+	 * Transforms the image data into colors in the
+	 * {@link #OUTPUT_FORMAT_ARGB_8888} format, as expected by
+	 * Bitmap.setPixels() and Canvas.drawBitmap(int[], ...).
+	 * 
+	 * @param pixels to write the colors to, width * height of them
+	 * @throws IllegalArgumentException if the array is too small
+	 * @see #transformImageToBitmap(byte[], int, int, int, int, int, Bitmap)
+	 */
+	public void transformImageToPixels(byte[] data, int width,
+			int height, int format, int yStride, int uvStride, int[] pixels) {
+		nativeTransformImageToPixels(getContext(), data, width, height, format, yStride, uvStride, pixels);
+	}
+
+	private static native long nativeCreate();
+
+	private static native void nativeDestroy(long context);
+
+	private static native void nativeSetEffect(long context, int effect, boolean partial);
+
+	private static native void nativeSetAccurate(long context, boolean accurate);
+
+	private static native void nativeSetDithering(long context, boolean dither);
+
+	private static native void nativeSetHighlight(long context, int[] membership);
+
+	private static native void nativeSetStages(long context, int[] stages);
+
+	private static native int nativeGetChromaOffsetU(long context);
+
+	private static native int nativeGetChromaOffsetV(long context);
+
+	private static native void nativeTransformColors(long context, int[] yuvColors, int[] rgbColors);
+
+	private static native void nativeSetPalette(long context, byte[] colorIndices, int[] paletteRgb);
+
+	private static native void nativeSetLut(long context, int size, int[] rgb);
+
+	private static native void nativeTransformImageToBitmap(long context, byte[] data, int width, int height, int format, int yStride, int uvStride, Bitmap bitmap);
+
+	private static native void nativeTransformRegionToBitmap(long context, byte[] data, int width, int height, int format, int yStride, int uvStride, int left, int top, Bitmap bitmap);
+
+	private static native void nativeTransformMosaicToBitmap(long context, byte[] data, int width, int height, int format, int yStride, int uvStride, int[] effects, Bitmap bitmap);
+
+	private static native void nativeTransformImageToBuffer(long context, byte[] data, int width, int height, int format, int yStride, int uvStride, int outputFormat, byte[] buffer);
+
+	private static native void nativeTransformImageToPixels(long context, byte[] data, int width, int height, int format, int yStride, int uvStride, int[] pixels);
 }
@@ -0,0 +1,141 @@
+package ch.hsr.eyecam.colormodel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * A 3D lookup table read from a file in the .cube format used by color grading tools. The file is parsed line by line while it is read, so only the table itself is held in
+ * memory. Tables with up to 65 nodes per axis are accepted, the values are quantized to 8 bits per channel as expected by {@link ColorTransform#setLut(int, int[])}.
+ *
+ * Only tables with the default domain [0, 1] are supported, 1D tables are rejected.
+ */
+public class CubeLut {
+	/**
+	 * The smallest number of nodes per axis accepted.
+	 */
+	public static final int MIN_SIZE = 2;
+	/**
+	 * The biggest number of nodes per axis accepted.
+	 */
+	public static final int MAX_SIZE = 65;
+
+	private final int mSize;
+	private final int[] mRgb;
+
+	private CubeLut(int size, int[] rgb) {
+		mSize = size;
+		mRgb = rgb;
+	}
+
+	/**
+	 * Reads a table in the .cube format. The stream is not closed.
+	 *
+	 * @param in
+	 *            the stream to read the table from
+	 * @return the table read
+	 * @throws IOException
+	 *             if the stream could not be read or does not contain a valid table
+	 */
+	public static CubeLut parse(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+		int size = 0;
+		int[] rgb = null;
+		int count = 0;
+		int lineNumber = 0;
+		String line;
+
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.charAt(0) == '#')
+				continue;
+
+			char first = line.charAt(0);
+			if (first == '-' || first == '.' || Character.isDigit(first)) {
+				if (rgb == null)
+					throw new IOException("Line " + lineNumber + ": LUT_3D_SIZE missing before the table");
+				if (count == rgb.length)
+					throw new IOException("Line " + lineNumber + ": too many table entries");
+				rgb[count++] = parseColor(line, lineNumber);
+			} else if (line.startsWith("LUT_3D_SIZE")) {
+				size = parseInt(line.substring("LUT_3D_SIZE".length()).trim(), lineNumber);
+				if (size < MIN_SIZE || size > MAX_SIZE)
+					throw new IOException("Line " + lineNumber + ": unsupported table size " + size);
+				rgb = new int[size * size * size];
+			} else if (line.startsWith("LUT_1D_SIZE")) {
+				throw new IOException("Line " + lineNumber + ": 1D tables are not supported");
+			} else if (line.startsWith("DOMAIN_MIN")) {
+				checkDomain(line, 0, lineNumber);
+			} else if (line.startsWith("DOMAIN_MAX")) {
+				checkDomain(line, 1, lineNumber);
+			}
+			// TITLE and unknown keywords are ignored.
+		}
+
+		if (rgb == null)
+			throw new IOException("LUT_3D_SIZE missing");
+		if (count != rgb.length)
+			throw new IOException("Expected " + rgb.length + " table entries, found " + count);
+		return new CubeLut(size, rgb);
+	}
+
+	private static int parseColor(String line, int lineNumber) throws IOException {
+		String[] values = line.split("\\s+");
+		if (values.length != 3)
+			throw new IOException("Line " + lineNumber + ": expected three values");
+		int color = 0;
+		for (String value : values)
+			color = (color << 8) | toByte(parseFloat(value, lineNumber));
+		return color;
+	}
+
+	/**
+	 * Only the default domain is supported, DOMAIN_MIN 0 0 0 and DOMAIN_MAX 1 1 1.
+	 */
+	private static void checkDomain(String line, int expected, int lineNumber) throws IOException {
+		String[] values = line.split("\\s+");
+		boolean valid = values.length == 4;
+		for (int i = 1; valid && i < values.length; i++)
+			valid = parseFloat(values[i], lineNumber) == expected;
+		if (!valid)
+			throw new IOException("Line " + lineNumber + ": " + values[0] + " must be "
+					+ expected + " " + expected + " " + expected);
+	}
+
+	private static int toByte(float value) {
+		int quantized = Math.round(value * 255f);
+		return quantized < 0 ? 0 : (quantized > 255 ? 255 : quantized);
+	}
+
+	private static float parseFloat(String value, int lineNumber) throws IOException {
+		try {
+			return Float.parseFloat(value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Line " + lineNumber + ": invalid number " + value);
+		}
+	}
+
+	private static int parseInt(String value, int lineNumber) throws IOException {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Line " + lineNumber + ": invalid number " + value);
+		}
+	}
+
+	/**
+	 * @return the number of nodes on each axis
+	 */
+	public int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * @return the colors of the nodes packed as 0xRRGGBB, red changing fastest
+	 */
+	public int[] getRgb() {
+		return mRgb;
+	}
+}
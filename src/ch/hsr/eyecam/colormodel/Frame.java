@@ -0,0 +1,134 @@
+package ch.hsr.eyecam.colormodel;
+
+/**
+ * A class representing a single preview frame together with the information needed to interpret its data.
+ * 
+ * Frames are handed out by a {@link FramePool} and are reference counted. Whoever needs the data of a frame beyond the current call (e.g. for color recognition on a paused
+ * preview) has to {@link #acquire()} it and {@link #release()} it when done. As long as a frame is referenced, its buffer will not be handed back to the camera and hence will
+ * not be overwritten.
+ * 
+ * 
+ * @see FramePool
+ */
+public class Frame {
+	private final FramePool mPool;
+	private final byte[] mData;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mStride;
+	private final int mFormat;
+	private long mTimestamp;
+	private int mRefCount;
+	private int mChromaOffsetU;
+	private int mChromaOffsetV;
+
+	Frame(FramePool pool, byte[] data, int width, int height, int stride, int format) {
+		mPool = pool;
+		mData = data;
+		mWidth = width;
+		mHeight = height;
+		mStride = stride;
+		mFormat = format;
+	}
+
+	/**
+	 * Called by the pool whenever the camera has filled the buffer.
+	 */
+	synchronized void reset(long timestamp) {
+		mTimestamp = timestamp;
+		mRefCount = 1;
+		mChromaOffsetU = 0;
+		mChromaOffsetV = 0;
+	}
+
+	/**
+	 * Adds a reference to this frame.
+	 * 
+	 * @return this frame for convenience
+	 * @throws IllegalStateException
+	 *             if the frame has already been returned to the pool
+	 */
+	public synchronized Frame acquire() {
+		if (mRefCount <= 0)
+			throw new IllegalStateException("Frame has already been recycled");
+		mRefCount++;
+		return this;
+	}
+
+	/**
+	 * Removes a reference from this frame. The frame will be returned to its pool as soon as the last reference has been released. The data of the frame must not be accessed
+	 * after releasing it.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the frame has been released more often than acquired
+	 */
+	public void release() {
+		boolean recycle;
+		synchronized (this) {
+			if (mRefCount <= 0)
+				throw new IllegalStateException("Frame has already been recycled");
+			recycle = --mRefCount == 0;
+		}
+		if (recycle)
+			mPool.recycle(this);
+	}
+
+	/**
+	 * @return the raw image data as delivered by the camera
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return the number of bytes between the beginning of two rows of the Y-plane
+	 */
+	public int getStride() {
+		return mStride;
+	}
+
+	/**
+	 * @return the format of the data as defined in android.graphics.ImageFormat
+	 */
+	public int getFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * Sets the chroma offset the frame has been displayed with, so that the colors recognized on the frame match what the user sees.
+	 * 
+	 * @param offsetU
+	 *            added to U
+	 * @param offsetV
+	 *            added to V
+	 * @see ColorTransform#STAGE_WHITE_BALANCE
+	 */
+	public synchronized void setChromaOffset(int offsetU, int offsetV) {
+		mChromaOffsetU = offsetU;
+		mChromaOffsetV = offsetV;
+	}
+
+	public synchronized int getChromaOffsetU() {
+		return mChromaOffsetU;
+	}
+
+	public synchronized int getChromaOffsetV() {
+		return mChromaOffsetV;
+	}
+
+	/**
+	 * @return the time the frame has been received in nanoseconds
+	 * @see System#nanoTime()
+	 */
+	public synchronized long getTimestamp() {
+		return mTimestamp;
+	}
+}
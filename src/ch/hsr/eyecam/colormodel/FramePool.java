@@ -0,0 +1,113 @@
+package ch.hsr.eyecam.colormodel;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * A fixed set of preview buffers shared between the camera and the consumers of the preview frames.
+ * 
+ * While a camera is attached, every buffer that is not referenced by anybody is queued with {@link Camera#addCallbackBuffer(byte[])}. Buffers delivered by the camera are
+ * wrapped in their {@link Frame} using {@link #obtain(byte[])} and will only be queued again once all references to the frame have been released.
+ * 
+ * All buffers are allocated in the constructor, the pool does not allocate anything afterwards.
+ * 
+ * 
+ * @see Frame
+ */
+public class FramePool {
+	private static final int STATE_FREE = 0;
+	private static final int STATE_QUEUED = 1;
+	private static final int STATE_IN_USE = 2;
+
+	private final Frame[] mFrames;
+	private final int[] mStates;
+	private final int mWidth;
+	private final int mHeight;
+	private Camera mCamera;
+
+	/**
+	 * Allocates the buffers for NV21 preview frames of the given size.
+	 * 
+	 * @param count
+	 *            number of buffers. One buffer is usually held by the view displaying the last frame, so the pool should at least contain two buffers.
+	 * @param width
+	 *            of the preview frames
+	 * @param height
+	 *            of the preview frames
+	 */
+	public FramePool(int count, int width, int height) {
+		int size = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+		mWidth = width;
+		mHeight = height;
+		mFrames = new Frame[count];
+		mStates = new int[count];
+		for (int i = 0; i < count; i++)
+			mFrames[i] = new Frame(this, new byte[size], width, height, width, ImageFormat.NV21);
+	}
+
+	/**
+	 * Queues all unreferenced buffers with the camera. The camera will get every buffer back as soon as it is released until {@link #detach()} is called.
+	 * 
+	 * @param camera
+	 */
+	public synchronized void attach(Camera camera) {
+		mCamera = camera;
+		for (int i = 0; i < mFrames.length; i++) {
+			if (mStates[i] == STATE_FREE) {
+				mStates[i] = STATE_QUEUED;
+				mCamera.addCallbackBuffer(mFrames[i].getData());
+			}
+		}
+	}
+
+	/**
+	 * Marks all queued buffers as free again. This needs to be called after the preview has been stopped, since the camera drops its queue when the preview callback is
+	 * removed.
+	 */
+	public synchronized void detach() {
+		mCamera = null;
+		for (int i = 0; i < mFrames.length; i++) {
+			if (mStates[i] == STATE_QUEUED)
+				mStates[i] = STATE_FREE;
+		}
+	}
+
+	/**
+	 * Returns the frame for the buffer the camera has just filled. The returned frame holds one reference which needs to be released by the caller.
+	 * 
+	 * @param data
+	 *            as delivered by the camera
+	 * @return the frame or null if the buffer has not been queued by this pool, e.g. because the callback arrived after the pool has been detached.
+	 */
+	public synchronized Frame obtain(byte[] data) {
+		for (int i = 0; i < mFrames.length; i++) {
+			if (mFrames[i].getData() == data && mStates[i] == STATE_QUEUED) {
+				mStates[i] = STATE_IN_USE;
+				mFrames[i].reset(System.nanoTime());
+				return mFrames[i];
+			}
+		}
+		return null;
+	}
+
+	synchronized void recycle(Frame frame) {
+		for (int i = 0; i < mFrames.length; i++) {
+			if (mFrames[i] != frame)
+				continue;
+			if (mCamera != null) {
+				mStates[i] = STATE_QUEUED;
+				mCamera.addCallbackBuffer(frame.getData());
+			} else
+				mStates[i] = STATE_FREE;
+			return;
+		}
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+}
@@ -0,0 +1,193 @@
+package ch.hsr.eyecam.colormodel;
+
+/**
+ * Segments a frame into connected regions of the same named color.
+ * 
+ * The segmentation runs at the resolution of the chroma plane, so each cell covers 2x2 pixels of the frame. Every cell is classified with a {@link ColorTable} and
+ * neighbouring cells of the same color family are merged using a union-find structure in a single pass over the frame. A second pass resolves the labels and collects the
+ * area and centroid of each region.
+ * 
+ * The buffers are reused as long as the frame size does not grow, so repeated segmentations do not allocate.
+ */
+public class RegionMap {
+	private final ColorTable mColorTable;
+	private int mWidth;
+	private int mHeight;
+	private int mRegionCount;
+
+	private int[] mParents = new int[0];
+	private byte[] mFamilies = new byte[0];
+	private int[] mLabels = new int[0];
+	private int[] mRegionArea = new int[0];
+	private int[] mRegionSumX = new int[0];
+	private int[] mRegionSumY = new int[0];
+	private int[] mRegionFamily = new int[0];
+
+	/**
+	 * @param colorTable
+	 *            used to classify the cells
+	 */
+	public RegionMap(ColorTable colorTable) {
+		mColorTable = colorTable;
+	}
+
+	/**
+	 * Segments the given frame. The cells are corrected with the chroma offset of the frame, like in {@link ColorRecognizer}.
+	 * 
+	 * @param frame
+	 *            in NV21 format
+	 */
+	public void segment(Frame frame) {
+		byte[] data = frame.getData();
+		int stride = frame.getStride();
+		int uvOffset = stride * frame.getHeight();
+		int offsetU = frame.getChromaOffsetU() - 128;
+		int offsetV = frame.getChromaOffsetV() - 128;
+		mWidth = frame.getWidth() / 2;
+		mHeight = frame.getHeight() / 2;
+		ensureCapacity(mWidth * mHeight);
+
+		int cell = 0;
+		for (int cy = 0; cy < mHeight; cy++) {
+			int yRow = 2 * cy * stride;
+			int uvRow = uvOffset + cy * stride;
+			for (int cx = 0; cx < mWidth; cx++, cell++) {
+				int x = 2 * cx;
+				int luma = (data[yRow + x] & 0xff) + (data[yRow + x + 1] & 0xff) + (data[yRow + stride + x] & 0xff) + (data[yRow + stride + x + 1] & 0xff);
+				int u = ColorRecognizer.clampChroma((data[uvRow + x + 1] & 0xff) + offsetU);
+				int v = ColorRecognizer.clampChroma((data[uvRow + x] & 0xff) + offsetV);
+				byte family = (byte) mColorTable.getFamilyIndex(luma >> 2, u, v);
+
+				mFamilies[cell] = family;
+				// joining the left neighbour's tree directly avoids most unions
+				// since regions usually continue along the row.
+				if (cx > 0 && mFamilies[cell - 1] == family)
+					mParents[cell] = mParents[cell - 1];
+				else
+					mParents[cell] = cell;
+				if (cy > 0 && mFamilies[cell - mWidth] == family)
+					union(cell, cell - mWidth);
+			}
+		}
+
+		// roots are always the smallest cell of their region, so they get
+		// their label before any other cell of the region is visited.
+		mRegionCount = 0;
+		cell = 0;
+		for (int cy = 0; cy < mHeight; cy++) {
+			for (int cx = 0; cx < mWidth; cx++, cell++) {
+				int root = find(cell);
+				int region;
+				if (root == cell) {
+					region = mRegionCount++;
+					mRegionArea[region] = 0;
+					mRegionSumX[region] = 0;
+					mRegionSumY[region] = 0;
+					mRegionFamily[region] = mFamilies[cell] & 0xff;
+				} else
+					region = mLabels[root];
+				mLabels[cell] = region;
+				mRegionArea[region]++;
+				mRegionSumX[region] += cx;
+				mRegionSumY[region] += cy;
+			}
+		}
+	}
+
+	private void ensureCapacity(int cells) {
+		if (mParents.length >= cells)
+			return;
+		mParents = new int[cells];
+		mFamilies = new byte[cells];
+		mLabels = new int[cells];
+		mRegionArea = new int[cells];
+		mRegionSumX = new int[cells];
+		mRegionSumY = new int[cells];
+		mRegionFamily = new int[cells];
+	}
+
+	private int find(int cell) {
+		while (mParents[cell] != cell) {
+			mParents[cell] = mParents[mParents[cell]];
+			cell = mParents[cell];
+		}
+		return cell;
+	}
+
+	private void union(int a, int b) {
+		int rootA = find(a);
+		int rootB = find(b);
+		if (rootA < rootB)
+			mParents[rootB] = rootA;
+		else if (rootB < rootA)
+			mParents[rootA] = rootB;
+	}
+
+	/**
+	 * @return the width of the map, which is half the width of the frame
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return the height of the map, which is half the height of the frame
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return the number of regions found by the last segmentation
+	 */
+	public int getRegionCount() {
+		return mRegionCount;
+	}
+
+	/**
+	 * @return the number of cells of the region
+	 */
+	public int getArea(int region) {
+		return mRegionArea[region];
+	}
+
+	/**
+	 * @return the x coordinate of the centroid of the region in map coordinates
+	 */
+	public int getCenterX(int region) {
+		return mRegionSumX[region] / mRegionArea[region];
+	}
+
+	/**
+	 * @return the y coordinate of the centroid of the region in map coordinates
+	 */
+	public int getCenterY(int region) {
+		return mRegionSumY[region] / mRegionArea[region];
+	}
+
+	/**
+	 * @return the resource id of the color name of the region
+	 */
+	public int getColorNameResId(int region) {
+		return mColorTable.getFamilyResId(mRegionFamily[region]);
+	}
+
+	/**
+	 * Draws the outlines of all regions. A cell is part of an outline if its right or lower neighbour belongs to another region.
+	 * 
+	 * @param pixels
+	 *            of at least {@link #getWidth()} * {@link #getHeight()} elements
+	 * @param color
+	 *            to use for the outlines, all other pixels are set to 0
+	 */
+	public void drawOutlines(int[] pixels, int color) {
+		int cell = 0;
+		for (int cy = 0; cy < mHeight; cy++) {
+			for (int cx = 0; cx < mWidth; cx++, cell++) {
+				int label = mLabels[cell];
+				boolean edge = (cx < mWidth - 1 && mLabels[cell + 1] != label) || (cy < mHeight - 1 && mLabels[cell + mWidth] != label);
+				pixels[cell] = edge ? color : 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package ch.hsr.eyecam.colormodel;
+
+/**
+ * Estimates which named colors cover how much of the scene. Every {@link #SAMPLE_STEP}th pixel of a frame in both directions is classified with a {@link ColorTable} and
+ * counted per color family (all palette colors sharing a name). The coverage of each family is smoothed over the frames, so the summary stays calm while the camera moves.
+ * 
+ * All memory is allocated when the palette is created, updating does not allocate anything.
+ */
+public class ScenePalette {
+	/**
+	 * Distance between two sampled pixels in both directions.
+	 */
+	public static final int SAMPLE_STEP = 8;
+	/**
+	 * Coverage is stored as fixed point with this value representing the whole frame.
+	 */
+	private static final int ONE = 1 << 16;
+	/**
+	 * The coverage of a new frame is weighted with 1 / 2^SMOOTHING_SHIFT.
+	 */
+	private static final int SMOOTHING_SHIFT = 2;
+
+	private final ColorTable mColorTable;
+	private final int[] mCounts;
+	private final int[] mCoverage;
+	private final int[] mRanking;
+	private boolean mEmpty = true;
+
+	/**
+	 * @param colorTable
+	 *            used to classify the pixels
+	 */
+	public ScenePalette(ColorTable colorTable) {
+		mColorTable = colorTable;
+		mCounts = new int[colorTable.getFamilyCount()];
+		mCoverage = new int[mCounts.length];
+		mRanking = new int[mCounts.length];
+		for (int i = 0; i < mRanking.length; i++)
+			mRanking[i] = i;
+	}
+
+	/**
+	 * Samples the given frame and updates the coverage of the color families. The pixels are corrected with the chroma offset of the frame, like in
+	 * {@link ColorRecognizer}.
+	 * 
+	 * @param frame
+	 *            in NV21 format
+	 */
+	public void update(Frame frame) {
+		byte[] data = frame.getData();
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		int stride = frame.getStride();
+		int uvOffset = stride * height;
+		int offsetU = frame.getChromaOffsetU() - 128;
+		int offsetV = frame.getChromaOffsetV() - 128;
+
+		for (int i = 0; i < mCounts.length; i++)
+			mCounts[i] = 0;
+
+		int samples = 0;
+		for (int y = SAMPLE_STEP / 2; y < height; y += SAMPLE_STEP) {
+			int yRow = y * stride;
+			int uvRow = uvOffset + (y >> 1) * stride;
+			for (int x = SAMPLE_STEP / 2; x < width; x += SAMPLE_STEP) {
+				int uvIndex = uvRow + (x & ~1);
+				int u = ColorRecognizer.clampChroma((data[uvIndex + 1] & 0xff) + offsetU);
+				int v = ColorRecognizer.clampChroma((data[uvIndex] & 0xff) + offsetV);
+				mCounts[mColorTable.getFamilyIndex(data[yRow + x] & 0xff, u, v)]++;
+				samples++;
+			}
+		}
+		if (samples == 0)
+			return;
+
+		for (int i = 0; i < mCounts.length; i++) {
+			int coverage = (int) ((long) mCounts[i] * ONE / samples);
+			if (mEmpty)
+				mCoverage[i] = coverage;
+			else
+				mCoverage[i] += (coverage - mCoverage[i]) >> SMOOTHING_SHIFT;
+		}
+		mEmpty = false;
+		rank();
+	}
+
+	/**
+	 * Insertion sort of the families by descending coverage. The ranking of the previous frame is almost sorted already, which makes this cheap.
+	 */
+	private void rank() {
+		for (int i = 1; i < mRanking.length; i++) {
+			int family = mRanking[i];
+			int j = i - 1;
+			while (j >= 0 && mCoverage[mRanking[j]] < mCoverage[family]) {
+				mRanking[j + 1] = mRanking[j];
+				j--;
+			}
+			mRanking[j + 1] = family;
+		}
+	}
+
+	/**
+	 * Forgets the coverage of the previous frames.
+	 */
+	public void reset() {
+		mEmpty = true;
+		for (int i = 0; i < mCoverage.length; i++)
+			mCoverage[i] = 0;
+	}
+
+	/**
+	 * @return whether at least one frame has been sampled since the last reset
+	 */
+	public boolean isEmpty() {
+		return mEmpty;
+	}
+
+	/**
+	 * @return the number of color families
+	 */
+	public int getFamilyCount() {
+		return mCounts.length;
+	}
+
+	/**
+	 * @param rank
+	 *            0 for the family covering most of the scene
+	 * @return the resource id of the name of the family
+	 */
+	public int getColorNameResId(int rank) {
+		return mColorTable.getFamilyResId(mRanking[rank]);
+	}
+
+	/**
+	 * @param rank
+	 *            0 for the family covering most of the scene
+	 * @return the coverage of the family in percent
+	 */
+	public int getCoverage(int rank) {
+		return (mCoverage[mRanking[rank]] * 100 + ONE / 2) / ONE;
+	}
+}
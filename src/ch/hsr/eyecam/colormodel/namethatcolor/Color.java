@@ -52,9 +52,35 @@ public class Color {
 	}
 
 	private void initHsl() {
-		double r = rgb[0] / 255.0;
-		double g = rgb[1] / 255.0;
-		double b = rgb[2] / 255.0;
+		hsl = new int[3];
+		rgbToHsl(rgb[0], rgb[1], rgb[2], hsl);
+	}
+
+	/**
+	 * Converts the RGB values to the HSL values used for the color comparison. All values are in the range [0, 255].
+	 * 
+	 * @param red
+	 * @param green
+	 * @param blue
+	 * @param hslOut
+	 *            array of at least three elements receiving hue, saturation and lightness
+	 */
+	public static void rgbToHsl(int red, int green, int blue, int[] hslOut) {
+		int hsl = rgbToHsl(red, green, blue);
+		hslOut[0] = hsl >> 16;
+		hslOut[1] = (hsl >> 8) & 0xff;
+		hslOut[2] = hsl & 0xff;
+	}
+
+	/**
+	 * Same as {@link #rgbToHsl(int, int, int, int[])} without an output array.
+	 * 
+	 * @return hue, saturation and lightness packed as 0xHHHHSSLL, the hue is signed and needs to be taken with hsl &gt;&gt; 16
+	 */
+	public static int rgbToHsl(int red, int green, int blue) {
+		double r = red / 255.0;
+		double g = green / 255.0;
+		double b = blue / 255.0;
 
 		double min = Math.min(r, Math.min(g, b));
 		double max = Math.max(r, Math.max(g, b));
@@ -79,7 +105,7 @@ public class Color {
 			}
 			h /= 6;
 		}
-		hsl = new int[] { (int) (h * 255.0), (int) (s * 255.0), (int) (l * 255.0) };
+		return (int) (h * 255.0) << 16 | (int) (s * 255.0) << 8 | (int) (l * 255.0);
 	}
 
 	public String getHexColor() {
@@ -17,10 +17,15 @@ package ch.hsr.eyecam.colormodel.namethatcolor;
 import java.util.Collection;
 import java.util.Locale;
 
+/**
+ * Finds the closest named color of a palette. Instances are thread safe, the palette is set up on first use and published through a volatile field.
+ */
 public class ColorNamer {
 
 	private final Colors colors;
-	private Collection<NamedColor> colorsList;
+	private volatile NamedColor[] palette;
+	private int[] paletteRgb;
+	private int[] paletteHsl;
 	private final Locale locale;
 
 	public ColorNamer(Colors allColors, Locale locale) {
@@ -30,43 +35,91 @@ public class ColorNamer {
 
 	public NamedColor findClosestColor(String hexColor) {
 		Color color = new Color(hexColor, locale);
+		return getColor(findClosestColorIndex(color.getR(), color.getG(), color.getB()));
+	}
 
-		NamedColor bestMatch = null;
-		double previousDiff = Double.MAX_VALUE;
+	/**
+	 * Primitive version of {@link #findClosestColor(String)} which does not allocate anything.
+	 * 
+	 * @return the index of the closest color in the palette
+	 * @see #getColor(int)
+	 */
+	public int findClosestColorIndex(int r, int g, int b) {
+		initPalette();
+		int hsl = Color.rgbToHsl(r, g, b);
+		int h = hsl >> 16;
+		int s = (hsl >> 8) & 0xff;
+		int l = hsl & 0xff;
 
-		for (NamedColor candidate : getColors()) {
-			if (color.equals(candidate)) {
-				return candidate;
-			}
-			double diff = getRgbDiff(color, candidate) + getHslDiff(color, candidate) * 2;
+		int bestMatch = 0;
+		long previousDiff = Long.MAX_VALUE;
+		for (int i = 0; i < palette.length; i++) {
+			int rDiff = r - paletteRgb[3 * i];
+			int gDiff = g - paletteRgb[3 * i + 1];
+			int bDiff = b - paletteRgb[3 * i + 2];
+			if (rDiff == 0 && gDiff == 0 && bDiff == 0)
+				return i;
+			int hDiff = h - paletteHsl[3 * i];
+			int sDiff = s - paletteHsl[3 * i + 1];
+			int lDiff = l - paletteHsl[3 * i + 2];
+			long diff = rDiff * rDiff + gDiff * gDiff + bDiff * bDiff + 2 * (hDiff * hDiff + sDiff * sDiff + lDiff * lDiff);
 			if (diff < previousDiff) {
 				previousDiff = diff;
-				bestMatch = candidate;
+				bestMatch = i;
 			}
 		}
 		return bestMatch;
 	}
 
-	private double getHslDiff(Color color, NamedColor candidate) {
-		double hDiff = Math.pow((color.getH() - candidate.getH()), 2);
-		double sDiff = Math.pow((color.getS() - candidate.getS()), 2);
-		double lDiff = Math.pow((color.getL() - candidate.getL()), 2);
-		double ndf2 = hDiff + sDiff + lDiff;
-		return ndf2;
+	/**
+	 * Finds the closest palette colors for a batch of colors.
+	 * 
+	 * @param rgb
+	 *            colors packed as 0xRRGGBB
+	 * @param count
+	 *            number of colors to look up
+	 * @param indicesOut
+	 *            receives the palette index for each color
+	 */
+	public void findClosestColors(int[] rgb, int count, int[] indicesOut) {
+		for (int i = 0; i < count; i++) {
+			int color = rgb[i];
+			indicesOut[i] = findClosestColorIndex((color >> 16) & 0xff, (color >> 8) & 0xff, color & 0xff);
+		}
 	}
 
-	private double getRgbDiff(Color color, NamedColor candidate) {
-		double rDiff = Math.pow((color.getR() - candidate.getR()), 2);
-		double gDiff = Math.pow(color.getG() - candidate.getG(), 2);
-		double bDiff = Math.pow(color.getB() - candidate.getB(), 2);
-		double ndf1 = rDiff + gDiff + bDiff;
-		return ndf1;
+	/**
+	 * @return the palette color at the given index
+	 */
+	public NamedColor getColor(int index) {
+		initPalette();
+		return palette[index];
 	}
 
-	private Collection<NamedColor> getColors() {
-		if (colorsList == null) {
-			colorsList = colors.getColors(locale);
+	/**
+	 * @return the number of colors in the palette
+	 */
+	public int getColorCount() {
+		initPalette();
+		return palette.length;
+	}
+
+	private void initPalette() {
+		if (palette != null) {
+			return;
+		}
+		Collection<NamedColor> colorsList = colors.getColors(locale);
+		NamedColor[] namedColors = colorsList.toArray(new NamedColor[colorsList.size()]);
+		paletteRgb = new int[3 * namedColors.length];
+		paletteHsl = new int[3 * namedColors.length];
+		for (int i = 0; i < namedColors.length; i++) {
+			paletteRgb[3 * i] = namedColors[i].getR();
+			paletteRgb[3 * i + 1] = namedColors[i].getG();
+			paletteRgb[3 * i + 2] = namedColors[i].getB();
+			paletteHsl[3 * i] = namedColors[i].getH();
+			paletteHsl[3 * i + 1] = namedColors[i].getS();
+			paletteHsl[3 * i + 2] = namedColors[i].getL();
 		}
-		return colorsList;
+		palette = namedColors;
 	}
 }
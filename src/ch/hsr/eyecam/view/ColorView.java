@@ -1,19 +1,36 @@
 package ch.hsr.eyecam.view;
 
+import java.util.List;
+import java.util.Locale;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.PixelFormat;
 import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
+import android.os.AsyncTask;
 import android.os.Handler;
 import android.util.AttributeSet;
+import android.util.TypedValue;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.WindowManager;
 import ch.hsr.eyecam.Debug;
 import ch.hsr.eyecam.EyeCamActivity;
 import ch.hsr.eyecam.Orientation;
-import ch.hsr.eyecam.colormodel.ColorRecognizer;
+import ch.hsr.eyecam.colormodel.AsyncColorRecognizer;
+import ch.hsr.eyecam.colormodel.ColorGrid;
+import ch.hsr.eyecam.colormodel.ColorTable;
 import ch.hsr.eyecam.colormodel.ColorTransform;
+import ch.hsr.eyecam.colormodel.CubeLut;
+import ch.hsr.eyecam.colormodel.Frame;
+import ch.hsr.eyecam.colormodel.FramePool;
+import ch.hsr.eyecam.colormodel.RegionMap;
+import ch.hsr.eyecam.colormodel.ScenePalette;
+import ch.hsr.eyecam.colormodel.namethatcolor.AllColors;
+import ch.hsr.eyecam.colormodel.namethatcolor.ColorNamer;
 import ch.hsr.eyecam.widget.BubbleView;
 import ch.hsr.eyecam.widget.FloatingColorBubble;
 
@@ -31,21 +48,73 @@ public class ColorView extends View implements PreviewCallback {
 	private int mPreviewHeight;
 	private int mPreviewWidth;
 	private boolean mPartialEnabled;
-	private byte[] mDataBuffer;
+	private ColorTransform mColorTransform;
+	private FramePool mFramePool;
+	private Frame mCurrentFrame;
+	private boolean mWaitingForFirstFrame;
+	private boolean mPreviewRunning;
+	private ProbeOverlay mProbeOverlay;
+	private ColorNamer mColorNamer;
+	private ColorGrid mColorGrid;
+	private ColorTable mColorTable;
+	private boolean mPaletteSet;
+	private ColorTable mPerceivedTable;
+	private PerceivedTableTask mPerceivedTableTask;
+	private boolean mNamePerceived;
+	private boolean mAccurateSimulation;
+	private boolean mSmoothGradients;
+	private SummaryOverlay mSummaryOverlay;
+	private boolean mShowSummary;
+	private RegionOverlay mRegionOverlay;
+	private boolean mShowRegions;
+	private Orientation mOrientation = Orientation.LANDSCAPE_LEFT;
+	private float mLabelTextSize;
+	private int mEffect = ColorTransform.COLOR_EFFECT_NONE;
+	private int mMosaicPanes;
+	private Loupe mLoupe;
+	private boolean mShowLoupe;
+	private boolean mNoiseReduction;
+	private boolean mWhiteBalance;
+	private boolean mContrastEnhancement;
+	private boolean mHighlight;
+	private final int[] mStages = new int[4];
+	private final int[] mTwoPaneEffects = new int[MOSAIC_TWO_PANES];
 
 	private FloatingColorBubble mPopup;
+	private AsyncColorRecognizer mColorRecognizer;
 	private Handler mActivityHandler;
 	private boolean mIsScaled = false;
 	private float mScaleFactor;
 
 	private final OnTouchListener mOnTouchListener = new EyeCamViewTouchListener();
 	private final OnLongClickListener mOnLongClickListener = new EyeCamViewLongClickListener();
+	private final AsyncColorRecognizer.Callback mOnColorRecognized = new AsyncColorRecognizer.Callback() {
+		@Override
+		public void onColorRecognized(AsyncColorRecognizer.Result result) {
+			mPopup.showColorBubble(result, getPerceivedResId(result.r, result.g, result.b));
+		}
+	};
 
 	private int mScreenWidth;
 	private int mScreenHeight;
 
 	private static String LOG_TAG = "ch.hsr.eyecam.view.ColorView";
 
+	/**
+	 * Mosaic showing the current effect next to the original picture.
+	 * 
+	 * @see #setMosaic(int)
+	 */
+	public static final int MOSAIC_TWO_PANES = 2;
+	/**
+	 * Mosaic showing the original picture, the colorblind simulation, daltonize and false colors.
+	 * 
+	 * @see #setMosaic(int)
+	 */
+	public static final int MOSAIC_FOUR_PANES = 4;
+	private static final int[] FOUR_PANE_EFFECTS = { ColorTransform.COLOR_EFFECT_NONE, ColorTransform.COLOR_EFFECT_SIMULATE, ColorTransform.COLOR_EFFECT_DALTONIZE,
+			ColorTransform.COLOR_EFFECT_FALSE_COLORS };
+
 	public ColorView(Context context) {
 		super(context);
 		init();
@@ -58,6 +127,12 @@ public class ColorView extends View implements PreviewCallback {
 
 	private void init() {
 		mPopup = new FloatingColorBubble(getContext(), this);
+		Locale locale = getResources().getConfiguration().locale;
+		mColorRecognizer = new AsyncColorRecognizer(getContext().getMainLooper(), locale);
+		mColorNamer = new ColorNamer(new AllColors(), locale);
+		mProbeOverlay = new ProbeOverlay(getResources(), mColorNamer);
+		mColorGrid = new ColorGrid(mColorNamer);
+		mColorTransform = new ColorTransform();
 
 		setOnTouchListener(mOnTouchListener);
 		setOnLongClickListener(mOnLongClickListener);
@@ -65,8 +140,23 @@ public class ColorView extends View implements PreviewCallback {
 	}
 
 	private void initBitmap() {
-		mBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight, Bitmap.Config.RGB_565);
-		Debug.msg(LOG_TAG, "Bitmap size: W: " + mPreviewWidth + " H: " + mPreviewHeight);
+		Bitmap.Config config = getBitmapConfig();
+		mBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight, config);
+		mColorTransform.setDithering(mSmoothGradients && config == Bitmap.Config.RGB_565);
+		Debug.msg(LOG_TAG, "Bitmap size: W: " + mPreviewWidth + " H: " + mPreviewHeight + " " + config);
+	}
+
+	/**
+	 * RGB_565 is the cheapest to transform and draw. Smooth gradients use ARGB_8888 if the display is able to show more than 16 bits per pixel, otherwise RGB_565 gets
+	 * dithered.
+	 */
+	private Bitmap.Config getBitmapConfig() {
+		if (!mSmoothGradients)
+			return Bitmap.Config.RGB_565;
+		WindowManager windowManager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
+		PixelFormat pixelFormat = new PixelFormat();
+		PixelFormat.getPixelFormatInfo(windowManager.getDefaultDisplay().getPixelFormat(), pixelFormat);
+		return pixelFormat.bitsPerPixel > 16 ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
 	}
 
 	/**
@@ -92,7 +182,7 @@ public class ColorView extends View implements PreviewCallback {
 	/**
 	 * {@inheritDoc}
 	 * 
-	 * Redraws the Bitmap containing the transformed picture on each call.
+	 * Redraws the Bitmap containing the transformed picture on each call. The live color names are drawn on top if enabled.
 	 */
 	@Override
 	protected void onDraw(Canvas canvas) {
@@ -102,6 +192,18 @@ public class ColorView extends View implements PreviewCallback {
 			canvas.drawBitmap(scaledBitmap, 0, 0, null);
 		} else
 			canvas.drawBitmap(mBitmap, 0, 0, null);
+
+		// the overlays are placed in frame coordinates, which do not apply to the panes of the mosaic.
+		if (mMosaicPanes != 0)
+			return;
+		if (mProbeOverlay.isEnabled())
+			mProbeOverlay.draw(canvas, mIsScaled ? mScaleFactor : 1.0f);
+		if (mShowLoupe)
+			mLoupe.draw(canvas, mIsScaled ? mScaleFactor : 1.0f);
+		if (mShowRegions)
+			mRegionOverlay.draw(canvas, mIsScaled ? mScaleFactor : 1.0f);
+		if (mShowSummary)
+			mSummaryOverlay.draw(canvas, mIsScaled ? mScreenWidth : mPreviewWidth, mIsScaled ? mScreenHeight : mPreviewHeight);
 	}
 
 	/**
@@ -113,26 +215,75 @@ public class ColorView extends View implements PreviewCallback {
 	 */
 	@Override
 	public void onPreviewFrame(byte[] data, Camera cam) {
-		ColorTransform.transformImageToBitmap(data, mPreviewWidth, mPreviewHeight, mBitmap);
-		cam.addCallbackBuffer(data);
+		Frame frame = mFramePool.obtain(data);
+		if (frame == null)
+			return;
+
+		transform(data);
+		if (mWhiteBalance)
+			frame.setChromaOffset(mColorTransform.getChromaOffsetU(), mColorTransform.getChromaOffsetV());
+		setCurrentFrame(frame);
+		if (mProbeOverlay.isEnabled())
+			mProbeOverlay.update(frame);
+		if (mShowSummary)
+			mSummaryOverlay.update(frame);
 		invalidate();
+
+		if (mWaitingForFirstFrame) {
+			mWaitingForFirstFrame = false;
+			mActivityHandler.sendEmptyMessage(EyeCamActivity.CAMERA_FIRST_FRAME);
+		}
+	}
+
+	private void transform(byte[] data) {
+		if (mMosaicPanes == 0) {
+			mColorTransform.transformImageToBitmap(data, mPreviewWidth, mPreviewHeight, mBitmap);
+			if (mShowLoupe)
+				mLoupe.update(data);
+			return;
+		}
+		int[] effects = FOUR_PANE_EFFECTS;
+		if (mMosaicPanes == MOSAIC_TWO_PANES) {
+			mTwoPaneEffects[0] = ColorTransform.COLOR_EFFECT_NONE;
+			mTwoPaneEffects[1] = mEffect;
+			effects = mTwoPaneEffects;
+		}
+		mColorTransform.transformMosaicToBitmap(data, mPreviewWidth, mPreviewHeight, effects, mBitmap);
+	}
+
+	/**
+	 * Replaces the frame currently displayed. The ColorView holds a reference to the displayed frame until it gets replaced, so that the paused preview can still be
+	 * transformed and recognized.
+	 */
+	private void setCurrentFrame(Frame frame) {
+		Frame oldFrame = mCurrentFrame;
+		mCurrentFrame = frame;
+		if (oldFrame != null)
+			oldFrame.release();
 	}
 
 	/**
-	 * This method is used to set the data buffer used for the camera preview.
+	 * This method is used to set the pool of buffers used for the camera preview. The Activity will be notified with {@link EyeCamActivity#CAMERA_FIRST_FRAME} as soon as the
+	 * first frame has been transformed.
 	 * 
-	 * @param callBackBuffer
-	 * @param width
-	 *            of the preview size
-	 * @param height
-	 *            of the preview size
+	 * @param framePool
+	 *            containing the buffers of the preview size
 	 */
-	public void setDataBuffer(byte[] callBackBuffer, int width, int height) {
-		mDataBuffer = callBackBuffer;
-		mPreviewHeight = height;
-		mPreviewWidth = width;
-		mPopup.setColorRecognizer(new ColorRecognizer(mDataBuffer, mPreviewWidth, mPreviewHeight));
+	public void setFramePool(FramePool framePool) {
+		mColorGrid.release();
+		setCurrentFrame(null);
+		mFramePool = framePool;
+		mPreviewHeight = framePool.getHeight();
+		mPreviewWidth = framePool.getWidth();
 		initBitmap();
+		mProbeOverlay.setFrameSize(mPreviewWidth, mPreviewHeight);
+		if (mLoupe != null) {
+			mLoupe.setBitmapConfig(mBitmap.getConfig());
+			mLoupe.setFrameSize(mPreviewWidth, mPreviewHeight);
+		}
+		if (mSummaryOverlay != null)
+			mSummaryOverlay.reset();
+		mWaitingForFirstFrame = true;
 	}
 
 	/**
@@ -145,17 +296,25 @@ public class ColorView extends View implements PreviewCallback {
 	 */
 	public void setOrientation(Orientation orientation) {
 		mPopup.setOrientation(orientation);
+		mProbeOverlay.setOrientation(orientation);
+		mOrientation = orientation;
+		if (mSummaryOverlay != null)
+			mSummaryOverlay.setOrientation(orientation);
+		if (mRegionOverlay != null)
+			mRegionOverlay.setOrientation(orientation);
+		invalidate();
 	}
 
 	/**
-	 * If the Popup is showing, it will be dismissed. Nothing happens if the Popup is not showing.
+	 * If the Popup is showing, it will be dismissed. Nothing happens if the Popup is not showing. A pending color recognition will be canceled.
 	 */
 	public void dismissPopup() {
+		mColorRecognizer.cancel();
 		mPopup.dismiss();
 	}
 
 	/**
-	 * Sets the size of the text displayed in the Popup.
+	 * Sets the size of the text displayed in the Popup and of the live color names.
 	 * 
 	 * @see FloatingColorBubble#setTextSize(int)
 	 * @param size
@@ -164,6 +323,290 @@ public class ColorView extends View implements PreviewCallback {
 	public void setPopupTextSize(int size) {
 		mPopup.dismiss();
 		mPopup.setTextSize(size);
+		mLabelTextSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_PT, size, getResources().getDisplayMetrics());
+		mProbeOverlay.setTextSize(mLabelTextSize);
+		if (mSummaryOverlay != null)
+			mSummaryOverlay.setTextSize(mLabelTextSize);
+		if (mRegionOverlay != null)
+			mRegionOverlay.setTextSize(mLabelTextSize);
+	}
+
+	/**
+	 * Enables or disables the temporal noise reduction of the preview.
+	 * 
+	 * @see ColorTransform#STAGE_NOISE_REDUCTION
+	 * @param enabled
+	 */
+	public void setNoiseReduction(boolean enabled) {
+		mNoiseReduction = enabled;
+		updateStages();
+	}
+
+	/**
+	 * Enables or disables the adaptive contrast enhancement of the preview.
+	 * 
+	 * @see ColorTransform#STAGE_CONTRAST
+	 * @param enabled
+	 */
+	public void setContrastEnhancement(boolean enabled) {
+		mContrastEnhancement = enabled;
+		updateStages();
+	}
+
+	/**
+	 * Enables or disables the automatic white balance of the preview. The colors recognized on a frame are corrected with the same offset the frame has been displayed
+	 * with.
+	 * 
+	 * @see ColorTransform#STAGE_WHITE_BALANCE
+	 * @param enabled
+	 */
+	public void setWhiteBalance(boolean enabled) {
+		mWhiteBalance = enabled;
+		updateStages();
+	}
+
+	/**
+	 * Switches the simulation and daltonize effects between the fast approximation and the accurate model working on linear light.
+	 * 
+	 * @see ColorTransform#setAccurateSimulation(boolean)
+	 * @param accurate
+	 */
+	public void setAccurateSimulation(boolean accurate) {
+		mColorTransform.setAccurateSimulation(accurate);
+		if (accurate == mAccurateSimulation)
+			return;
+		mAccurateSimulation = accurate;
+		mPerceivedTable = null;
+		if (mPerceivedTableTask != null) {
+			mPerceivedTableTask.cancel(false);
+			mPerceivedTableTask = null;
+		}
+		if (mNamePerceived)
+			buildPerceivedTable();
+	}
+
+	/**
+	 * Enables or disables smooth gradients. They hide the banding of the 16 bit preview, either with a 32 bit bitmap or by dithering, depending on the display. Needs
+	 * {@link #refreshBitmap()} to show up while the preview is paused.
+	 * 
+	 * @see ColorTransform#setDithering(boolean)
+	 * @param smooth
+	 */
+	public void setSmoothGradients(boolean smooth) {
+		if (smooth == mSmoothGradients)
+			return;
+		mSmoothGradients = smooth;
+		if (mBitmap == null)
+			return;
+		initBitmap();
+		if (mLoupe != null)
+			mLoupe.setBitmapConfig(mBitmap.getConfig());
+	}
+
+	/**
+	 * Enables or disables naming colors the way a colorblind person perceives them. If enabled, the color bubble additionally shows the name of the color as seen through
+	 * {@link ColorTransform#COLOR_EFFECT_SIMULATE}, if it differs from the actual name. The table used for naming is built in the background, until it is ready only the
+	 * actual name is shown.
+	 * 
+	 * @param enabled
+	 */
+	public void setNamePerceived(boolean enabled) {
+		mNamePerceived = enabled;
+		if (enabled && mPerceivedTable == null && mPerceivedTableTask == null)
+			buildPerceivedTable();
+	}
+
+	/**
+	 * @return the resource id of the name the given color has when seen through the simulation, or 0 if perceived names are disabled or not available yet
+	 */
+	private int getPerceivedResId(int r, int g, int b) {
+		if (!mNamePerceived || mPerceivedTable == null)
+			return 0;
+		return mPerceivedTable.getFamilyResIdOfRgb(r, g, b);
+	}
+
+	private void buildPerceivedTable() {
+		mPerceivedTableTask = new PerceivedTableTask(mAccurateSimulation, getResources().getConfiguration().locale);
+		mPerceivedTableTask.execute();
+	}
+
+	/**
+	 * Builds the table naming the colors the way they look through the simulation. It has its own ColorNamer, since the one of the view is used on the UI thread meanwhile.
+	 */
+	private class PerceivedTableTask extends AsyncTask<Void, Void, ColorTable> {
+		private final boolean mAccurate;
+		private final Locale mLocale;
+
+		private PerceivedTableTask(boolean accurate, Locale locale) {
+			mAccurate = accurate;
+			mLocale = locale;
+		}
+
+		@Override
+		protected ColorTable doInBackground(Void... params) {
+			ColorTransform simulation = new ColorTransform();
+			try {
+				simulation.setEffect(ColorTransform.COLOR_EFFECT_SIMULATE);
+				simulation.setAccurateSimulation(mAccurate);
+				return new ColorTable(new ColorNamer(new AllColors(), mLocale), simulation);
+			} finally {
+				simulation.release();
+			}
+		}
+
+		@Override
+		protected void onPostExecute(ColorTable table) {
+			// before Honeycomb a cancelled task still gets here.
+			if (isCancelled())
+				return;
+			mPerceivedTableTask = null;
+			mPerceivedTable = table;
+		}
+	}
+
+	private void updateStages() {
+		int count = 0;
+		if (mNoiseReduction)
+			mStages[count++] = ColorTransform.STAGE_NOISE_REDUCTION;
+		if (mWhiteBalance)
+			mStages[count++] = ColorTransform.STAGE_WHITE_BALANCE;
+		if (mContrastEnhancement)
+			mStages[count++] = ColorTransform.STAGE_CONTRAST;
+		if (mHighlight)
+			mStages[count++] = ColorTransform.STAGE_HIGHLIGHT;
+
+		int[] stages = new int[count];
+		System.arraycopy(mStages, 0, stages, 0, count);
+		mColorTransform.setStages(stages);
+	}
+
+	/**
+	 * Shows several effects side by side instead of the current effect. The live color names, the dominant colors and the color map are hidden while the mosaic is shown.
+	 * 
+	 * @see ColorTransform#transformMosaicToBitmap(byte[], int, int, int[], Bitmap)
+	 * @param panes
+	 *            {@link #MOSAIC_TWO_PANES}, {@link #MOSAIC_FOUR_PANES} or 0 to show the current effect only
+	 */
+	public void setMosaic(int panes) {
+		if (panes != MOSAIC_TWO_PANES && panes != MOSAIC_FOUR_PANES)
+			panes = 0;
+		mMosaicPanes = panes;
+	}
+
+	/**
+	 * Whether or not to show a loupe magnifying part of the preview. The loupe can be moved by dragging it.
+	 * 
+	 * @param showLoupe
+	 */
+	public void setShowLoupe(boolean showLoupe) {
+		if (showLoupe && mLoupe == null) {
+			mLoupe = new Loupe(mColorTransform);
+			if (mBitmap != null) {
+				mLoupe.setBitmapConfig(mBitmap.getConfig());
+				mLoupe.setFrameSize(mPreviewWidth, mPreviewHeight);
+			}
+		}
+		mShowLoupe = showLoupe;
+		if (showLoupe && mCurrentFrame != null)
+			mLoupe.update(mCurrentFrame.getData());
+		invalidate();
+	}
+
+	/**
+	 * Whether or not to show the dominant colors of the preview and their coverage.
+	 * 
+	 * @see ScenePalette
+	 * @param showSummary
+	 */
+	public void setShowSummary(boolean showSummary) {
+		if (showSummary && mSummaryOverlay == null) {
+			mSummaryOverlay = new SummaryOverlay(getResources(), getColorTable());
+			mSummaryOverlay.setOrientation(mOrientation);
+			mSummaryOverlay.setTextSize(mLabelTextSize);
+		}
+		if (showSummary && !mShowSummary)
+			mSummaryOverlay.reset();
+		mShowSummary = showSummary;
+		invalidate();
+	}
+
+	/**
+	 * Sets how often the live color names get updated while the preview is running. While the live color names are enabled, a tap on the running preview pins or unpins a probe
+	 * instead of stopping the preview.
+	 * 
+	 * @param updatesPerSecond
+	 *            0 to disable the live color names
+	 */
+	public void setLiveRate(int updatesPerSecond) {
+		mProbeOverlay.setRate(updatesPerSecond);
+		invalidate();
+	}
+
+	/**
+	 * Whether or not to show a map of the regions of the same named color while the preview is paused.
+	 * 
+	 * @see RegionMap
+	 * @param showRegions
+	 */
+	public void setShowRegions(boolean showRegions) {
+		if (showRegions && mRegionOverlay == null) {
+			mRegionOverlay = new RegionOverlay(getResources(), getColorTable());
+			mRegionOverlay.setOrientation(mOrientation);
+			mRegionOverlay.setTextSize(mLabelTextSize);
+		}
+		mShowRegions = showRegions;
+		updateRegions();
+		invalidate();
+	}
+
+	private void updateRegions() {
+		if (!mShowRegions)
+			return;
+		if (mPreviewRunning || mCurrentFrame == null)
+			mRegionOverlay.clear();
+		else
+			mRegionOverlay.update(mCurrentFrame);
+	}
+
+	/**
+	 * @return the resource ids of the color names that can be searched for
+	 * @see #setSearchColor(int)
+	 */
+	public List<Integer> getSearchableColors() {
+		return getColorTable().getColorNameResIds();
+	}
+
+	/**
+	 * Highlights all pixels of the preview that are named with the given color name. The highlighting is applied by the transformation, so a paused preview needs to be
+	 * refreshed manually.
+	 * 
+	 * @see ColorTransform#setHighlight(int[])
+	 * @param colorNameResId
+	 *            the name of the color family to search for, 0 to disable the highlighting
+	 */
+	public void setSearchColor(int colorNameResId) {
+		mHighlight = colorNameResId != 0;
+		mColorTransform.setHighlight(mHighlight ? getColorTable().createMembership(colorNameResId) : null);
+		updateStages();
+	}
+
+	private ColorTable getColorTable() {
+		if (mColorTable == null)
+			mColorTable = new ColorTable(mColorNamer);
+		return mColorTable;
+	}
+
+	/**
+	 * Used by the Activity to tell the ColorView whether the camera preview is running.
+	 * 
+	 * @param previewRunning
+	 */
+	public void setPreviewRunning(boolean previewRunning) {
+		mPreviewRunning = previewRunning;
+		if (previewRunning)
+			mColorGrid.release();
+		updateRegions();
+		invalidate();
 	}
 
 	/**
@@ -188,15 +631,42 @@ public class ColorView extends View implements PreviewCallback {
 	 * @see ColorTransform#COLOR_EFFECT_INTENSIFY_DIFFERENCE
 	 * @see ColorTransform#COLOR_EFFECT_NONE
 	 * @see ColorTransform#COLOR_EFFECT_SIMULATE
+	 * @see ColorTransform#COLOR_EFFECT_POSTERIZE
+	 * @see ColorTransform#COLOR_EFFECT_LUT
+	 * @see ColorTransform#COLOR_EFFECT_PATTERN
+	 * @see ColorTransform#COLOR_EFFECT_OUTLINE
 	 * 
 	 * @param effect
 	 *            to be set.
 	 */
 	public void setEffect(int effect) {
+		mEffect = effect;
+		if (effect == ColorTransform.COLOR_EFFECT_POSTERIZE && !mPaletteSet) {
+			ColorTable colorTable = getColorTable();
+			mColorTransform.setPalette(colorTable.getColorIndices(), colorTable.getPaletteRgb());
+			mPaletteSet = true;
+		}
 		if (mPartialEnabled)
-			ColorTransform.setPartialEffect(effect);
+			mColorTransform.setPartialEffect(effect);
 		else
-			ColorTransform.setEffect(effect);
+			mColorTransform.setEffect(effect);
+	}
+
+	/**
+	 * Sets the lookup table used by {@link ColorTransform#COLOR_EFFECT_LUT}. The table replaces the previous one and is used from the next frame on.
+	 * 
+	 * @param lut
+	 *            the table to use
+	 */
+	public void setLut(CubeLut lut) {
+		mColorTransform.setLut(lut.getSize(), lut.getRgb());
+	}
+
+	/**
+	 * Frees the native resources of the transformation. The ColorView must not receive any preview frames afterwards.
+	 */
+	public void release() {
+		mColorTransform.release();
 	}
 
 	/**
@@ -204,7 +674,9 @@ public class ColorView extends View implements PreviewCallback {
 	 */
 	public void refreshBitmap() {
 		Debug.msg(LOG_TAG, "Effect on Previewimage");
-		ColorTransform.transformImageToBitmap(mDataBuffer, mPreviewWidth, mPreviewHeight, mBitmap);
+		if (mCurrentFrame == null)
+			return;
+		transform(mCurrentFrame.getData());
 		invalidate();
 	}
 
@@ -245,23 +717,81 @@ public class ColorView extends View implements PreviewCallback {
 		}
 	}
 
+	/**
+	 * Shows the color bubble on a tap. If the user keeps dragging, the bubble follows the finger and names the colors using a {@link ColorGrid} over the frame that was visible
+	 * when the finger went down.
+	 */
 	class EyeCamViewTouchListener implements OnTouchListener {
+		private final int mTouchSlop = ViewConfiguration.get(getContext()).getScaledTouchSlop();
+		private int mDownX;
+		private int mDownY;
+		private boolean mScanning;
+		private boolean mDraggingLoupe;
+		private int mLoupeOffsetX;
+		private int mLoupeOffsetY;
 
 		@Override
 		public boolean onTouch(View v, MotionEvent event) {
+			int x = Math.max(0, (int) event.getX());
+			int y = Math.max(0, (int) event.getY());
+
+			switch (event.getAction()) {
+			case MotionEvent.ACTION_DOWN:
+				mScanning = false;
+				mDraggingLoupe = false;
+				if (mShowLoupe && mMosaicPanes == 0 && mLoupe.contains(toFrameX(x), toFrameY(y))) {
+					mDraggingLoupe = true;
+					mLoupeOffsetX = mLoupe.getCenterX() - toFrameX(x);
+					mLoupeOffsetY = mLoupe.getCenterY() - toFrameY(y);
+					return true;
+				}
+				if (mPreviewRunning && mProbeOverlay.isEnabled()) {
+					mProbeOverlay.toggleProbe(toFrameX(x), toFrameY(y));
+					invalidate();
+					return false;
+				}
 
-			if (event.getAction() == MotionEvent.ACTION_DOWN) {
 				mActivityHandler.sendEmptyMessage(EyeCamActivity.CAMERA_STOP_PREVIEW);
 				mPopup.dismiss();
 
-				int x = Math.max(0, (int) event.getX());
-				int y = Math.max(0, (int) event.getY());
-				int scaleX = scale(x);
-				int scaleY = scale(y);
+				int scaleX = toFrameX(x);
+				int scaleY = toFrameY(y);
 				mPopup.showColorBubbleAt(x, y, scaleX, scaleY);
-				mPopup.showColorBubbleAtNew(x, y, scaleX, scaleY);
+				// the frame the user sees stays valid even though the
+				// camera keeps delivering frames until the preview stops.
+				if (mCurrentFrame != null) {
+					mColorRecognizer.submit(mCurrentFrame, x, y, scaleX, scaleY, mOnColorRecognized);
+					mColorGrid.setFrame(mCurrentFrame);
+				}
+				mDownX = x;
+				mDownY = y;
 				Debug.msg(LOG_TAG, "Popup Location on Screen: x: " + x + " y: " + y);
 				return false;
+			case MotionEvent.ACTION_MOVE:
+				if (mDraggingLoupe) {
+					mLoupe.moveTo(toFrameX(x) + mLoupeOffsetX, toFrameY(y) + mLoupeOffsetY);
+					// the running preview updates the loupe with the next frame.
+					if (!mPreviewRunning && mCurrentFrame != null)
+						mLoupe.update(mCurrentFrame.getData());
+					invalidate();
+					return true;
+				}
+				if (mColorGrid.getFrame() == null)
+					return false;
+				if (!mScanning) {
+					if (Math.abs(x - mDownX) <= mTouchSlop && Math.abs(y - mDownY) <= mTouchSlop)
+						return false;
+					// the grid takes over, a late recognition result must not move the bubble back.
+					mScanning = true;
+					mColorRecognizer.cancel();
+				}
+				int frameX = toFrameX(x);
+				int frameY = toFrameY(y);
+				int colorIndex = mColorGrid.getColorIndexAt(frameX, frameY);
+				int resId = mColorNamer.getColor(colorIndex).getColorNameResId();
+				int rgb = mColorGrid.getRgbAt(frameX, frameY);
+				mPopup.moveColorBubble(resId, getPerceivedResId((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff), rgb, x, y);
+				return false;
 			}
 			return false;
 		}
@@ -269,5 +799,25 @@ public class ColorView extends View implements PreviewCallback {
 		private int scale(int x) {
 			return mIsScaled ? (int) (x / mScaleFactor) : x;
 		}
+
+		/**
+		 * Converts a screen coordinate to the frame, taking into account that each pane of the mosaic shows the whole frame at half resolution.
+		 */
+		private int toFrameX(int x) {
+			x = scale(x);
+			if (mMosaicPanes == 0)
+				return x;
+			return (x % (mPreviewWidth / 2)) * 2;
+		}
+
+		private int toFrameY(int y) {
+			y = scale(y);
+			if (mMosaicPanes == 0)
+				return y;
+			int paneHeight = mPreviewHeight / 2;
+			if (mMosaicPanes == MOSAIC_TWO_PANES)
+				y = Math.max(0, Math.min(paneHeight - 1, y - paneHeight / 2));
+			return (y % paneHeight) * 2;
+		}
 	}
 }
@@ -0,0 +1,91 @@
+package ch.hsr.eyecam.view;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import ch.hsr.eyecam.Orientation;
+
+/**
+ * Draws short text labels on top of the preview. Since the application is forced into landscape mode, the labels are rotated according to the orientation of the device the
+ * same way the BubbleView does.
+ * 
+ * 
+ * @see ch.hsr.eyecam.widget.BubbleView
+ */
+class LabelPainter {
+	private static final int BACKGROUND_ALPHA = 160;
+	private final Paint mTextPaint;
+	private final Paint mBackgroundPaint;
+	private final RectF mBackground;
+	private Orientation mOrientation = Orientation.LANDSCAPE_LEFT;
+	private float mRotation;
+
+	LabelPainter() {
+		mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mTextPaint.setColor(Color.WHITE);
+		mTextPaint.setTextAlign(Paint.Align.CENTER);
+
+		mBackgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mBackgroundPaint.setColor(Color.BLACK);
+		mBackgroundPaint.setAlpha(BACKGROUND_ALPHA);
+
+		mBackground = new RectF();
+	}
+
+	void setTextSize(float size) {
+		mTextPaint.setTextSize(size);
+	}
+
+	float getTextSize() {
+		return mTextPaint.getTextSize();
+	}
+
+	void setOrientation(Orientation orientation) {
+		mOrientation = orientation;
+		switch (orientation) {
+		case PORTRAIT:
+			mRotation = -90;
+			break;
+		case LANDSCAPE_RIGHT:
+			mRotation = 180;
+			break;
+		default:
+			mRotation = 0;
+		}
+	}
+
+	/**
+	 * Draws the text centered at the upper edge of the given area, as seen by the user holding the device in the current orientation.
+	 */
+	void drawAtTop(Canvas canvas, String text, float width, float height) {
+		float margin = mTextPaint.getTextSize();
+		switch (mOrientation) {
+		case PORTRAIT:
+			draw(canvas, text, margin, height / 2);
+			break;
+		case LANDSCAPE_RIGHT:
+			draw(canvas, text, width / 2, height - margin);
+			break;
+		default:
+			draw(canvas, text, width / 2, margin);
+		}
+	}
+
+	/**
+	 * Draws the text centered on the given location.
+	 */
+	void draw(Canvas canvas, String text, float x, float y) {
+		float halfWidth = mTextPaint.measureText(text) / 2 + mTextPaint.getTextSize() / 4;
+		float ascent = mTextPaint.ascent();
+		float descent = mTextPaint.descent();
+		float baseline = y - (ascent + descent) / 2;
+
+		canvas.save();
+		canvas.rotate(mRotation, x, y);
+		mBackground.set(x - halfWidth, baseline + ascent - 2, x + halfWidth, baseline + descent + 2);
+		canvas.drawRoundRect(mBackground, 4, 4, mBackgroundPaint);
+		canvas.drawText(text, x, baseline, mTextPaint);
+		canvas.restore();
+	}
+}
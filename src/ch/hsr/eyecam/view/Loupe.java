@@ -0,0 +1,134 @@
+package ch.hsr.eyecam.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import ch.hsr.eyecam.colormodel.ColorTransform;
+
+/**
+ * A magnifying glass showing a small region of the preview frame enlarged by {@link #MAGNIFICATION}. The region is transformed on its own with the current effect, so the
+ * loupe shows the full resolution of the frame even if the preview is scaled, and costs only as much as the region is big.
+ * 
+ * The loupe shows the region beneath its center and can be moved by dragging it.
+ * 
+ * 
+ * @see ColorTransform#transformRegionToBitmap(byte[], int, int, int, int, Bitmap)
+ */
+class Loupe {
+	static final int MAGNIFICATION = 3;
+	/**
+	 * Size of the magnified region in frame pixels.
+	 */
+	private static final int REGION_SIZE = 40;
+	private static final int BORDER_WIDTH = 3;
+
+	private final ColorTransform mColorTransform;
+	private final Paint mBorderPaint;
+	private final Rect mSource;
+	private final RectF mDestination;
+	private Bitmap mBitmap;
+	private Bitmap.Config mConfig = Bitmap.Config.RGB_565;
+	private int mFrameWidth;
+	private int mFrameHeight;
+	private int mRegionSize;
+	private int mCenterX;
+	private int mCenterY;
+
+	/**
+	 * @param colorTransform
+	 *            used for the preview, so that the loupe shows the same effect
+	 */
+	Loupe(ColorTransform colorTransform) {
+		mColorTransform = colorTransform;
+		mBorderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mBorderPaint.setColor(Color.WHITE);
+		mBorderPaint.setStyle(Paint.Style.STROKE);
+		mBorderPaint.setStrokeWidth(BORDER_WIDTH);
+		mBorderPaint.setShadowLayer(2, 0, 0, Color.BLACK);
+
+		mSource = new Rect();
+		mDestination = new RectF();
+	}
+
+	/**
+	 * Sets the format of the loupe bitmap, which should match the one of the preview. The loupe needs to be updated afterwards.
+	 */
+	void setBitmapConfig(Bitmap.Config config) {
+		mConfig = config;
+		if (mBitmap != null && mBitmap.getConfig() != config)
+			mBitmap = Bitmap.createBitmap(mRegionSize, mRegionSize, config);
+	}
+
+	/**
+	 * Sets the size of the preview frames and moves the loupe to the center.
+	 */
+	void setFrameSize(int width, int height) {
+		mFrameWidth = width;
+		mFrameHeight = height;
+		mRegionSize = Math.min(REGION_SIZE, Math.min(width, height));
+		if (mBitmap == null || mBitmap.getWidth() != mRegionSize || mBitmap.getConfig() != mConfig)
+			mBitmap = Bitmap.createBitmap(mRegionSize, mRegionSize, mConfig);
+		mSource.set(0, 0, mRegionSize, mRegionSize);
+		moveTo(width / 2, height / 2);
+	}
+
+	/**
+	 * Moves the center of the loupe. The loupe needs to be updated afterwards.
+	 * 
+	 * @param x
+	 *            in frame coordinates
+	 * @param y
+	 *            in frame coordinates
+	 */
+	void moveTo(int x, int y) {
+		mCenterX = Math.max(0, Math.min(mFrameWidth - 1, x));
+		mCenterY = Math.max(0, Math.min(mFrameHeight - 1, y));
+	}
+
+	int getCenterX() {
+		return mCenterX;
+	}
+
+	int getCenterY() {
+		return mCenterY;
+	}
+
+	/**
+	 * @return true if the given location lies on the loupe as it is drawn
+	 */
+	boolean contains(int x, int y) {
+		int half = mRegionSize * MAGNIFICATION / 2;
+		return Math.abs(x - mCenterX) <= half && Math.abs(y - mCenterY) <= half;
+	}
+
+	/**
+	 * Transforms the region beneath the loupe.
+	 * 
+	 * @param data
+	 *            of the frame in NV21 format
+	 */
+	void update(byte[] data) {
+		if (mBitmap == null)
+			return;
+		int half = mRegionSize / 2;
+		mColorTransform.transformRegionToBitmap(data, mFrameWidth, mFrameHeight, mCenterX - half, mCenterY - half, mBitmap);
+	}
+
+	/**
+	 * @param scale
+	 *            factor from frame to screen coordinates
+	 */
+	void draw(Canvas canvas, float scale) {
+		if (mBitmap == null)
+			return;
+		float half = mRegionSize * MAGNIFICATION * scale / 2;
+		float x = mCenterX * scale;
+		float y = mCenterY * scale;
+		mDestination.set(x - half, y - half, x + half, y + half);
+		canvas.drawBitmap(mBitmap, mSource, mDestination, null);
+		canvas.drawRect(mDestination, mBorderPaint);
+	}
+}
@@ -0,0 +1,158 @@
+package ch.hsr.eyecam.view;
+
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import ch.hsr.eyecam.Orientation;
+import ch.hsr.eyecam.colormodel.ColorRecognizer;
+import ch.hsr.eyecam.colormodel.Frame;
+import ch.hsr.eyecam.colormodel.namethatcolor.ColorNamer;
+
+/**
+ * Continuously names the colors at a few probe points while the preview is running. The center of the preview is always probed, additionally the user can pin up to
+ * {@link #MAX_PINNED_PROBES} probes.
+ * 
+ * All probes are sampled in one batch directly from the preview frame. The overlay allocates nothing per frame, so it can stay enabled on any device.
+ */
+class ProbeOverlay {
+	static final int MAX_PINNED_PROBES = 4;
+	private static final int SAMPLE_RADIUS = 3;
+	private static final int CROSSHAIR_SIZE = 12;
+	private static final int PROBE_RADIUS = 8;
+
+	private final ColorRecognizer mColorRecognizer;
+	private final ColorNamer mColorNamer;
+	private final Resources mResources;
+	private final LabelPainter mLabelPainter;
+	private final Paint mMarkerPaint;
+
+	// probe 0 is the center of the frame.
+	private final int[] mPoints = new int[2 * (MAX_PINNED_PROBES + 1)];
+	private final int[] mRgb = new int[MAX_PINNED_PROBES + 1];
+	private final int[] mColorIndices = new int[MAX_PINNED_PROBES + 1];
+	private int mCount;
+	private boolean mHasResults;
+	private int mTouchSlop;
+
+	private long mIntervalNanos;
+	private long mLastUpdate;
+
+	ProbeOverlay(Resources resources, ColorNamer colorNamer) {
+		mResources = resources;
+		mColorRecognizer = new ColorRecognizer();
+		mColorNamer = colorNamer;
+		mLabelPainter = new LabelPainter();
+
+		mMarkerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mMarkerPaint.setColor(Color.WHITE);
+		mMarkerPaint.setStyle(Paint.Style.STROKE);
+		mMarkerPaint.setStrokeWidth(2);
+		mMarkerPaint.setShadowLayer(1, 0, 0, Color.BLACK);
+	}
+
+	/**
+	 * Sets how often the probes will be updated.
+	 * 
+	 * @param updatesPerSecond
+	 *            0 to disable the probes
+	 */
+	void setRate(int updatesPerSecond) {
+		mIntervalNanos = updatesPerSecond > 0 ? 1000000000L / updatesPerSecond : 0;
+		mHasResults = false;
+	}
+
+	boolean isEnabled() {
+		return mIntervalNanos > 0;
+	}
+
+	/**
+	 * Sets the size of the preview frames. This will remove all pinned probes.
+	 */
+	void setFrameSize(int width, int height) {
+		mPoints[0] = width / 2;
+		mPoints[1] = height / 2;
+		mCount = 1;
+		mTouchSlop = Math.max(width, height) / 20;
+		mHasResults = false;
+	}
+
+	void setOrientation(Orientation orientation) {
+		mLabelPainter.setOrientation(orientation);
+	}
+
+	void setTextSize(float size) {
+		mLabelPainter.setTextSize(size);
+	}
+
+	/**
+	 * Removes the pinned probe close to the given location or pins a new one if there is none.
+	 * 
+	 * @param x
+	 *            in frame coordinates
+	 * @param y
+	 *            in frame coordinates
+	 */
+	void toggleProbe(int x, int y) {
+		for (int i = 1; i < mCount; i++) {
+			if (Math.abs(mPoints[2 * i] - x) <= mTouchSlop && Math.abs(mPoints[2 * i + 1] - y) <= mTouchSlop) {
+				removeProbe(i);
+				return;
+			}
+		}
+		if (mCount > MAX_PINNED_PROBES)
+			removeProbe(1);
+
+		mPoints[2 * mCount] = x;
+		mPoints[2 * mCount + 1] = y;
+		mCount++;
+		mHasResults = false;
+	}
+
+	private void removeProbe(int index) {
+		System.arraycopy(mPoints, 2 * (index + 1), mPoints, 2 * index, 2 * (mCount - index - 1));
+		System.arraycopy(mColorIndices, index + 1, mColorIndices, index, mCount - index - 1);
+		mCount--;
+	}
+
+	/**
+	 * Samples and names the probes in the given frame if the update interval has passed.
+	 * 
+	 * @return true if the probes have been updated and need to be redrawn
+	 */
+	boolean update(Frame frame) {
+		long timestamp = frame.getTimestamp();
+		if (mHasResults && timestamp - mLastUpdate < mIntervalNanos)
+			return false;
+
+		mColorRecognizer.getRgbAt(frame, mPoints, mCount, SAMPLE_RADIUS, mRgb);
+		mColorNamer.findClosestColors(mRgb, mCount, mColorIndices);
+		mLastUpdate = timestamp;
+		mHasResults = true;
+		return true;
+	}
+
+	/**
+	 * Draws the markers and color names of all probes.
+	 * 
+	 * @param scale
+	 *            factor from frame to screen coordinates
+	 */
+	void draw(Canvas canvas, float scale) {
+		float x = mPoints[0] * scale;
+		float y = mPoints[1] * scale;
+		canvas.drawLine(x - CROSSHAIR_SIZE, y, x + CROSSHAIR_SIZE, y, mMarkerPaint);
+		canvas.drawLine(x, y - CROSSHAIR_SIZE, x, y + CROSSHAIR_SIZE, mMarkerPaint);
+		for (int i = 1; i < mCount; i++)
+			canvas.drawCircle(mPoints[2 * i] * scale, mPoints[2 * i + 1] * scale, PROBE_RADIUS, mMarkerPaint);
+
+		if (!mHasResults)
+			return;
+
+		float offset = PROBE_RADIUS + mLabelPainter.getTextSize();
+		for (int i = 0; i < mCount; i++) {
+			String name = mResources.getString(mColorNamer.getColor(mColorIndices[i]).getColorNameResId());
+			mLabelPainter.draw(canvas, name, mPoints[2 * i] * scale, mPoints[2 * i + 1] * scale + offset);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package ch.hsr.eyecam.view;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import ch.hsr.eyecam.Debug;
+import ch.hsr.eyecam.Orientation;
+import ch.hsr.eyecam.colormodel.ColorTable;
+import ch.hsr.eyecam.colormodel.Frame;
+import ch.hsr.eyecam.colormodel.RegionMap;
+
+/**
+ * Shows the regions of the same named color of a paused preview frame. The outlines of all regions are drawn, and the large regions are labelled with their color name at
+ * their centroid.
+ * 
+ * 
+ * @see RegionMap
+ */
+class RegionOverlay {
+	/**
+	 * Regions covering less than 1 / MIN_LABEL_SHARE of the frame will not be labelled.
+	 */
+	private static final int MIN_LABEL_SHARE = 50;
+	private static final int OUTLINE_COLOR = Color.WHITE;
+	private static final String LOG_TAG = "ch.hsr.eyecam.view.RegionOverlay";
+
+	private final Resources mResources;
+	private final RegionMap mRegionMap;
+	private final LabelPainter mLabelPainter;
+	private Bitmap mOutlines;
+	private int[] mPixels = new int[0];
+	private boolean mHasMap;
+
+	RegionOverlay(Resources resources, ColorTable colorTable) {
+		mResources = resources;
+		mRegionMap = new RegionMap(colorTable);
+		mLabelPainter = new LabelPainter();
+	}
+
+	void setOrientation(Orientation orientation) {
+		mLabelPainter.setOrientation(orientation);
+	}
+
+	void setTextSize(float size) {
+		mLabelPainter.setTextSize(size);
+	}
+
+	/**
+	 * Segments the given frame and prepares the outlines for drawing.
+	 */
+	void update(Frame frame) {
+		long start = System.nanoTime();
+		mRegionMap.segment(frame);
+
+		int width = mRegionMap.getWidth();
+		int height = mRegionMap.getHeight();
+		if (mPixels.length < width * height)
+			mPixels = new int[width * height];
+		if (mOutlines == null || mOutlines.getWidth() != width || mOutlines.getHeight() != height)
+			mOutlines = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+		mRegionMap.drawOutlines(mPixels, OUTLINE_COLOR);
+		mOutlines.setPixels(mPixels, 0, width, 0, 0, width, height);
+		mHasMap = true;
+		Debug.msg(LOG_TAG, mRegionMap.getRegionCount() + " regions found in " + (System.nanoTime() - start) / 1000000 + "ms");
+	}
+
+	void clear() {
+		mHasMap = false;
+	}
+
+	/**
+	 * @param scale
+	 *            factor from frame to screen coordinates
+	 */
+	void draw(Canvas canvas, float scale) {
+		if (!mHasMap)
+			return;
+
+		// the map has half the resolution of the frame.
+		float mapScale = 2 * scale;
+		canvas.save();
+		canvas.scale(mapScale, mapScale);
+		canvas.drawBitmap(mOutlines, 0, 0, null);
+		canvas.restore();
+
+		int minArea = mRegionMap.getWidth() * mRegionMap.getHeight() / MIN_LABEL_SHARE;
+		for (int region = 0; region < mRegionMap.getRegionCount(); region++) {
+			if (mRegionMap.getArea(region) < minArea)
+				continue;
+			String name = mResources.getString(mRegionMap.getColorNameResId(region));
+			mLabelPainter.draw(canvas, name, mRegionMap.getCenterX(region) * mapScale, mRegionMap.getCenterY(region) * mapScale);
+		}
+	}
+}
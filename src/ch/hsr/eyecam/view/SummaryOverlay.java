@@ -0,0 +1,100 @@
+package ch.hsr.eyecam.view;
+
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import ch.hsr.eyecam.Orientation;
+import ch.hsr.eyecam.colormodel.ColorTable;
+import ch.hsr.eyecam.colormodel.Frame;
+import ch.hsr.eyecam.colormodel.ScenePalette;
+
+/**
+ * Shows the dominant named colors of the preview together with their approximate coverage, e.g. "45% green, 20% brown, 5% red".
+ * 
+ * 
+ * @see ScenePalette
+ */
+class SummaryOverlay {
+	private static final long UPDATE_INTERVAL_NANOS = 250000000L;
+	private static final int MAX_ENTRIES = 3;
+	private static final int MIN_COVERAGE = 5;
+
+	private final Resources mResources;
+	private final ScenePalette mScenePalette;
+	private final LabelPainter mLabelPainter;
+	private final StringBuilder mBuilder = new StringBuilder();
+	private final int[] mShownCoverage = new int[MAX_ENTRIES];
+	private final int[] mShownResIds = new int[MAX_ENTRIES];
+	private int mShownEntries;
+	private String mText;
+	private long mLastUpdate;
+
+	SummaryOverlay(Resources resources, ColorTable colorTable) {
+		mResources = resources;
+		mScenePalette = new ScenePalette(colorTable);
+		mLabelPainter = new LabelPainter();
+	}
+
+	void setOrientation(Orientation orientation) {
+		mLabelPainter.setOrientation(orientation);
+	}
+
+	void setTextSize(float size) {
+		mLabelPainter.setTextSize(size);
+	}
+
+	/**
+	 * Forgets the scene seen so far, e.g. because the preview size changed.
+	 */
+	void reset() {
+		mScenePalette.reset();
+		mShownEntries = 0;
+		mText = null;
+	}
+
+	/**
+	 * Samples the given frame if the update interval has passed.
+	 * 
+	 * @return true if the summary has changed and needs to be redrawn
+	 */
+	boolean update(Frame frame) {
+		long timestamp = frame.getTimestamp();
+		if (!mScenePalette.isEmpty() && timestamp - mLastUpdate < UPDATE_INTERVAL_NANOS)
+			return false;
+
+		mScenePalette.update(frame);
+		mLastUpdate = timestamp;
+
+		int entries = Math.min(MAX_ENTRIES, mScenePalette.getFamilyCount());
+		boolean changed = false;
+		int rank;
+		for (rank = 0; rank < entries; rank++) {
+			int coverage = mScenePalette.getCoverage(rank);
+			if (coverage < MIN_COVERAGE)
+				break;
+			int resId = mScenePalette.getColorNameResId(rank);
+			if (rank >= mShownEntries || coverage != mShownCoverage[rank] || resId != mShownResIds[rank])
+				changed = true;
+			mShownCoverage[rank] = coverage;
+			mShownResIds[rank] = resId;
+		}
+		if (!changed && rank == mShownEntries && mText != null)
+			return false;
+		mShownEntries = rank;
+
+		// the text is only built when the summary changes, most updates show the same colors.
+		mBuilder.setLength(0);
+		for (rank = 0; rank < mShownEntries; rank++) {
+			if (rank > 0)
+				mBuilder.append(", ");
+			mBuilder.append(mShownCoverage[rank]).append("% ").append(mResources.getString(mShownResIds[rank]));
+		}
+		mText = mBuilder.toString();
+		return true;
+	}
+
+	void draw(Canvas canvas, float width, float height) {
+		if (mText == null || mText.length() == 0)
+			return;
+		mLabelPainter.drawAtTop(canvas, mText, width, height);
+	}
+}
@@ -13,10 +13,8 @@ import android.widget.PopupWindow;
 import android.widget.TextView;
 import ch.hsr.eyecam.Debug;
 import ch.hsr.eyecam.Orientation;
-import ch.hsr.eyecam.colormodel.ColorRecognizer;
-import ch.hsr.eyecam.colormodel.namethatcolor.AllColors;
-import ch.hsr.eyecam.colormodel.namethatcolor.ColorNamer;
-import ch.hsr.eyecam.colormodel.namethatcolor.NamedColor;
+import ch.hsr.eyecam.R;
+import ch.hsr.eyecam.colormodel.AsyncColorRecognizer;
 
 /**
  * This class provides the functionality of showing a floating bubble at any location on the screen. This is necessary for displaying the color of the area touched on the paused
@@ -38,8 +36,15 @@ public class FloatingColorBubble extends PopupWindow {
 	private int OFFSET_Y = -1;
 	private boolean showHSV;
 	private boolean showRGB;
-	private ColorRecognizer colorRecognizer;
-	private final ColorNamer colorNamer;
+	private int mShownResId;
+	private final StringBuilder mAdditionalBuilder = new StringBuilder();
+	private final float[] mHsv = new float[3];
+	private boolean mAdditionalBuilt;
+	private int mBuiltRgb;
+	private int mBuiltResId;
+	private int mBuiltPerceivedResId;
+	private int mTransX;
+	private int mTransY;
 
 	public FloatingColorBubble(Context context, View parent) {
 		super(context);
@@ -55,9 +60,6 @@ public class FloatingColorBubble extends PopupWindow {
 		setBackgroundDrawable(null);
 		setWidth(WindowManager.LayoutParams.WRAP_CONTENT);
 		setHeight(WindowManager.LayoutParams.WRAP_CONTENT);
-
-		Locale locale = context.getResources().getConfiguration().locale;
-		colorNamer = new ColorNamer(new AllColors(), locale);
 	}
 
 	private void initContentView(Context context) {
@@ -91,29 +93,34 @@ public class FloatingColorBubble extends PopupWindow {
 		if (OFFSET_X == -1)
 			getParentLocationOnScreen();
 
-		int transX = 0;
-		int transY = 0;
+		updateTranslation();
+		mTextView.setText(res);
+		mShownResId = res;
+		showAtLocation(mViewParent, Gravity.NO_GRAVITY, (x - mTransX) + OFFSET_X, (y - mTransY) + OFFSET_Y);
+	}
+
+	/**
+	 * Measures the bubble and calculates the translation needed to point the arrow of the bubble at the given location.
+	 */
+	private void updateTranslation() {
 		int offset = 0;
 
 		mBubbleView.updateView();
 		switch (mOrientation) {
 		case LANDSCAPE_LEFT:
-			transX = mBubbleView.getMeasuredWidth() / 2;
-			transY = mBubbleView.getMeasuredHeight() + offset;
+			mTransX = mBubbleView.getMeasuredWidth() / 2;
+			mTransY = mBubbleView.getMeasuredHeight() + offset;
 			break;
 		case LANDSCAPE_RIGHT:
-			transX = mBubbleView.getMeasuredWidth() / 2;
-			transY = -offset;
+			mTransX = mBubbleView.getMeasuredWidth() / 2;
+			mTransY = -offset;
 			break;
 		case PORTRAIT:
 		case UNKNOW:
-			transX = mBubbleView.getMeasuredWidth() + offset;
-			transY = mBubbleView.getMeasuredHeight() / 2;
+			mTransX = mBubbleView.getMeasuredWidth() + offset;
+			mTransY = mBubbleView.getMeasuredHeight() / 2;
 			break;
 		}
-
-		mTextView.setText(res);
-		showAtLocation(mViewParent, Gravity.NO_GRAVITY, (x - transX) + OFFSET_X, (y - transY) + OFFSET_Y);
 	}
 
 	public void showColorBubbleAt(int x, int y, int scaleX, int scaleY) {
@@ -144,35 +151,106 @@ public class FloatingColorBubble extends PopupWindow {
 		// showStringResAt(res, x, y);
 	}
 
-	public void showColorBubbleAtNew(int x, int y, int scaleX, int scaleY) {
+	/**
+	 * This method shows a bubble at the screen location of the recognition result displaying the name of the recognized color.
+	 * 
+	 * @param result
+	 *            of the color recognition
+	 * @param perceivedResId
+	 *            of the name of the color the way a colorblind person sees it, or 0. It is only shown if it differs from the recognized name.
+	 * @see AsyncColorRecognizer
+	 */
+	public void showColorBubble(AsyncColorRecognizer.Result result, int perceivedResId) {
 		dismiss();
 
-		int[] rgb = colorRecognizer.getRgbAt(scaleX, scaleY);
-		int r = rgb[0];
-		int g = rgb[1];
-		int b = rgb[2];
+		int resId = result.namedColor.getColorNameResId();
+		updateAdditionalText(result.r, result.g, result.b, resId, perceivedResId);
+		setAdditionalText(mAdditionalBuilder);
+		Debug.msg("colorName: " + getContentView().getContext().getString(resId));
+		showStringResAt(resId, result.x, result.y);
+	}
+
+	/**
+	 * This method moves the bubble to the given location and updates the displayed color. It is meant to be called for every move event while the user drags over the paused
+	 * preview. The bubble will only be measured again if the displayed text changes, otherwise only the window position is updated.
+	 * 
+	 * If the bubble is not showing yet, it will be shown.
+	 * 
+	 * @param resId
+	 *            of the color name
+	 * @param perceivedResId
+	 *            of the name of the color the way a colorblind person sees it, or 0
+	 * @param rgb
+	 *            the color packed as 0xRRGGBB
+	 * @param x
+	 *            The x position on the screen.
+	 * @param y
+	 *            The y position on the screen.
+	 */
+	public void moveColorBubble(int resId, int perceivedResId, int rgb, int x, int y) {
+		int r = (rgb >> 16) & 0xff;
+		int g = (rgb >> 8) & 0xff;
+		int b = rgb & 0xff;
+		if (!isShowing()) {
+			updateAdditionalText(r, g, b, resId, perceivedResId);
+			setAdditionalText(mAdditionalBuilder);
+			showStringResAt(resId, x, y);
+			return;
+		}
+
+		boolean changed = false;
+		if (updateAdditionalText(r, g, b, resId, perceivedResId)) {
+			mAdditionalText.setText(mAdditionalBuilder);
+			changed = true;
+		}
+		if (resId != mShownResId) {
+			mTextView.setText(resId);
+			mShownResId = resId;
+			changed = true;
+		}
+		if (changed)
+			updateTranslation();
+
+		update((x - mTransX) + OFFSET_X, (y - mTransY) + OFFSET_Y, -1, -1);
+	}
 
-		StringBuilder addString = new StringBuilder();
+	/**
+	 * Builds the additional text into mAdditionalBuilder. The text is only rebuilt if something it shows has changed, which saves the formatting on most move events.
+	 * 
+	 * @return true if the text has been rebuilt
+	 */
+	private boolean updateAdditionalText(int r, int g, int b, int resId, int perceivedResId) {
+		int rgb = (showRGB || showHSV) ? (r << 16 | g << 8 | b) : 0;
+		if (mAdditionalBuilt && rgb == mBuiltRgb && resId == mBuiltResId && perceivedResId == mBuiltPerceivedResId)
+			return false;
+		mAdditionalBuilt = true;
+		mBuiltRgb = rgb;
+		mBuiltResId = resId;
+		mBuiltPerceivedResId = perceivedResId;
+
+		StringBuilder addString = mAdditionalBuilder;
+		addString.setLength(0);
+		if (perceivedResId != 0 && perceivedResId != resId) {
+			Context context = getContentView().getContext();
+			addString.append(context.getString(R.string.perceived_as, context.getString(perceivedResId)));
+			if (showRGB || showHSV)
+				addString.append('\n');
+		}
 		if (showRGB) {
-			addString.append("R: " + r + " G: " + g + " B: " + b);
+			addString.append("R: ").append(r).append(" G: ").append(g).append(" B: ").append(b);
 			if (showHSV)
 				addString.append('\n');
 		}
 		if (showHSV) {
-			float[] hsv = new float[3];
+			float[] hsv = mHsv;
 			Color.RGBToHSV(r, g, b, hsv);
 			Locale locale = getContentView().getContext().getResources().getConfiguration().locale;
 			String hStr = String.format(locale, "%.2f", hsv[0]);
 			String sStr = String.format(locale, "%.2f", hsv[1]);
 			String vStr = String.format(locale, "%.2f", hsv[2]);
-			addString.append("H: " + hStr + " S: " + sStr + " V: " + vStr);
+			addString.append("H: ").append(hStr).append(" S: ").append(sStr).append(" V: ").append(vStr);
 		}
-		setAdditionalText(addString);
-		String hexRgb = String.format("#%2x%2x%2x", r, g, b).replaceAll(" ", "0");
-		NamedColor namedColor = colorNamer.findClosestColor(hexRgb);
-		int resId = namedColor.getColorNameResId();
-		Debug.msg("colorName: " + getContentView().getContext().getString(resId));
-		showStringResAt(resId, x, y);
+		return true;
 	}
 
 	public void setText(CharSequence text) {
@@ -222,6 +300,8 @@ public class FloatingColorBubble extends PopupWindow {
 	 * @param string
 	 */
 	public void setAdditionalText(StringBuilder string) {
+		if (string != mAdditionalBuilder)
+			mAdditionalBuilt = false;
 		mAdditionalText.setText(string);
 		prepareAdditionalText();
 	}
@@ -261,14 +341,12 @@ public class FloatingColorBubble extends PopupWindow {
 
 	public void setShowRGB(boolean showRGB) {
 		this.showRGB = showRGB;
+		mAdditionalBuilt = false;
 	}
 
 	public void setShowHSV(boolean showHSV) {
 		this.showHSV = showHSV;
-	}
-
-	public void setColorRecognizer(ColorRecognizer colorRecognizer) {
-		this.colorRecognizer = colorRecognizer;
+		mAdditionalBuilt = false;
 	}
 
 	@Override
@@ -1,13 +1,20 @@
 package ch.hsr.eyecam.test;
 
+import java.util.Arrays;
+import java.util.Locale;
+
 import junit.framework.TestCase;
 import android.graphics.Bitmap;
+import ch.hsr.eyecam.colormodel.ColorTable;
 import ch.hsr.eyecam.colormodel.ColorTransform;
+import ch.hsr.eyecam.colormodel.namethatcolor.AllColors;
+import ch.hsr.eyecam.colormodel.namethatcolor.ColorNamer;
 
 public class ColorTransformTest extends TestCase {
 	private final int samplePictureWidth = 4;
 	private final int samplePictureHeight = 4;
 	private Bitmap mBitmap;
+	private ColorTransform mColorTransform;
 	
 	/**
 	 * represents the euclidean color difference
@@ -61,7 +68,7 @@ public class ColorTransformTest extends TestCase {
 	@Override
 	protected void setUp() throws Exception {
 		super.setUp();
-		ColorTransform.setEffect(ColorTransform.COLOR_EFFECT_NONE);
+		mColorTransform = new ColorTransform();
 		mBitmap = Bitmap.createBitmap(samplePictureWidth, 
 				samplePictureHeight, 
 				Bitmap.Config.RGB_565);
@@ -69,6 +76,7 @@ public class ColorTransformTest extends TestCase {
 
 	@Override
 	protected void tearDown() throws Exception {
+		mColorTransform.release();
 		super.tearDown();
 	}
 
@@ -76,31 +84,281 @@ public class ColorTransformTest extends TestCase {
 		int width = samplePictureWidth/2;
 		int height = samplePictureHeight/2;
 		
-		ColorTransform.transformImageToBitmap(yuvRed, 
+		mColorTransform.transformImageToBitmap(yuvRed, 
 				samplePictureWidth, samplePictureHeight, mBitmap);
 		assertColorSimilar(CorrectedColor.RED, mBitmap.getPixel(width, height));
 		
-		ColorTransform.transformImageToBitmap(yuvGreen, 
+		mColorTransform.transformImageToBitmap(yuvGreen, 
 				samplePictureWidth, samplePictureHeight, mBitmap);
 		assertColorSimilar(CorrectedColor.GREEN, mBitmap.getPixel(width, height));
 		
-		ColorTransform.transformImageToBitmap(yuvBlue, 
+		mColorTransform.transformImageToBitmap(yuvBlue, 
 				samplePictureWidth, samplePictureHeight, mBitmap);
 		assertColorSimilar(CorrectedColor.BLUE, mBitmap.getPixel(width, height));
 		
-		ColorTransform.transformImageToBitmap(yuvBlack, 
+		mColorTransform.transformImageToBitmap(yuvBlack, 
 				samplePictureWidth, samplePictureHeight, mBitmap);
 		assertColorSimilar(android.graphics.Color.BLACK, mBitmap.getPixel(width, height));
 		
-		ColorTransform.transformImageToBitmap(yuvWhite, 
+		mColorTransform.transformImageToBitmap(yuvWhite, 
 				samplePictureWidth, samplePictureHeight, mBitmap);
 		assertColorSimilar(android.graphics.Color.WHITE, mBitmap.getPixel(width, height));
 		
-		ColorTransform.transformImageToBitmap(yuvYellow, 
+		mColorTransform.transformImageToBitmap(yuvYellow, 
 				samplePictureWidth, samplePictureHeight, mBitmap);
 		assertColorSimilar(CorrectedColor.YELLOW, mBitmap.getPixel(width, height));
 	}
 
+	public void testPlanarFormats() {
+		int width = samplePictureWidth/2;
+		int height = samplePictureHeight/2;
+		// red in I420 without padding: Y plane, U plane, V plane.
+		byte[] i420 = new byte[samplePictureWidth * samplePictureHeight * 3 / 2];
+		Arrays.fill(i420, 20, 24, (byte) -1);
+		
+		mColorTransform.transformImageToBitmap(i420, samplePictureWidth, samplePictureHeight,
+				ColorTransform.INPUT_FORMAT_I420, 0, 0, mBitmap);
+		assertColorSimilar(CorrectedColor.RED, mBitmap.getPixel(width, height));
+		
+		// red in YV12 with 8 bytes per row: Y plane, V plane, U plane.
+		int stride = 8;
+		byte[] yv12 = new byte[stride * samplePictureHeight + 2 * stride * samplePictureHeight / 2];
+		Arrays.fill(yv12, (byte) 77);
+		Arrays.fill(yv12, 0, stride * samplePictureHeight, (byte) 0);
+		for (int i = 0; i < samplePictureHeight / 2; i++) {
+			Arrays.fill(yv12, stride * samplePictureHeight + i * stride, stride * samplePictureHeight + i * stride + 2, (byte) -1);
+			Arrays.fill(yv12, stride * samplePictureHeight * 3 / 2 + i * stride, stride * samplePictureHeight * 3 / 2 + i * stride + 2, (byte) 0);
+		}
+		
+		mColorTransform.transformImageToBitmap(yv12, samplePictureWidth, samplePictureHeight,
+				ColorTransform.INPUT_FORMAT_YV12, stride, stride, mBitmap);
+		assertColorSimilar(CorrectedColor.RED, mBitmap.getPixel(width, height));
+		
+		try {
+			mColorTransform.transformImageToBitmap(yuvRed, samplePictureWidth, samplePictureHeight,
+					ColorTransform.INPUT_FORMAT_YV12, stride, stride, mBitmap);
+			fail("frame data too small for its layout");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testOutputFormats() {
+		int width = samplePictureWidth/2;
+		int height = samplePictureHeight/2;
+		Bitmap bitmap = Bitmap.createBitmap(samplePictureWidth, samplePictureHeight, Bitmap.Config.ARGB_8888);
+		mColorTransform.transformImageToBitmap(yuvRed, samplePictureWidth, samplePictureHeight, bitmap);
+		assertColorSimilar(CorrectedColor.RED, bitmap.getPixel(width, height));
+		
+		int[] pixels = new int[samplePictureWidth * samplePictureHeight];
+		mColorTransform.transformImageToPixels(yuvRed, samplePictureWidth, samplePictureHeight,
+				ColorTransform.INPUT_FORMAT_NV21, 0, 0, pixels);
+		byte[] rgba = new byte[samplePictureWidth * samplePictureHeight * 4];
+		mColorTransform.transformImageToBuffer(yuvRed, samplePictureWidth, samplePictureHeight,
+				ColorTransform.INPUT_FORMAT_NV21, 0, 0, ColorTransform.OUTPUT_FORMAT_RGBA_8888, rgba);
+		for (int i = 0; i < pixels.length; i++) {
+			int pixel = bitmap.getPixel(i % samplePictureWidth, i / samplePictureWidth);
+			assertEquals(pixel, pixels[i]);
+			assertEquals(android.graphics.Color.red(pixel), rgba[4 * i] & 0xff);
+			assertEquals(android.graphics.Color.green(pixel), rgba[4 * i + 1] & 0xff);
+			assertEquals(android.graphics.Color.blue(pixel), rgba[4 * i + 2] & 0xff);
+			assertEquals(-1, rgba[4 * i + 3]);
+		}
+		
+		// a gray between two RGB565 steps is flat when rounded, dithering
+		// mixes both steps.
+		byte[] yuvGray = new byte[samplePictureWidth * samplePictureHeight * 3 / 2];
+		Arrays.fill(yuvGray, (byte) 100);
+		Arrays.fill(yuvGray, samplePictureWidth * samplePictureHeight, yuvGray.length, (byte) -128);
+		mColorTransform.transformImageToBitmap(yuvGray, samplePictureWidth, samplePictureHeight, mBitmap);
+		int rounded = mBitmap.getPixel(0, 0);
+		mColorTransform.setDithering(true);
+		mColorTransform.transformImageToBitmap(yuvGray, samplePictureWidth, samplePictureHeight, mBitmap);
+		mColorTransform.setDithering(false);
+		boolean mixed = false;
+		for (int y = 0; y < samplePictureHeight; y++) {
+			for (int x = 0; x < samplePictureWidth; x++) {
+				int pixel = mBitmap.getPixel(x, y);
+				assertColorSimilar(rounded, pixel);
+				mixed |= pixel != rounded;
+			}
+		}
+		assertTrue("dithering left the gray flat", mixed);
+		
+		try {
+			mColorTransform.transformImageToPixels(yuvRed, samplePictureWidth, samplePictureHeight,
+					ColorTransform.INPUT_FORMAT_NV21, 0, 0, new int[1]);
+			fail("pixel array too small");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testPosterize() {
+		int width = samplePictureWidth/2;
+		int height = samplePictureHeight/2;
+		byte[] colorIndices = new byte[ColorTable.SIZE];
+		Arrays.fill(colorIndices, (byte) 1);
+		int[] palette = { android.graphics.Color.BLACK & 0xffffff, 0xff0000 };
+		
+		mColorTransform.setPalette(colorIndices, palette);
+		mColorTransform.setEffect(ColorTransform.COLOR_EFFECT_POSTERIZE);
+		
+		mColorTransform.transformImageToBitmap(yuvWhite, 
+				samplePictureWidth, samplePictureHeight, mBitmap);
+		assertColorSimilar(0xff0000, mBitmap.getPixel(width, height));
+		
+		mColorTransform.transformImageToBitmap(yuvBlue, 
+				samplePictureWidth, samplePictureHeight, mBitmap);
+		assertColorSimilar(0xff0000, mBitmap.getPixel(width, height));
+	}
+	
+	public void testPatternColors() {
+		// red packed as 0xYYUUVV, one tile wide.
+		int[] yuvColors = new int[8];
+		Arrays.fill(yuvColors, 0x4c55ff);
+		int[] plain = new int[yuvColors.length];
+		int[] patterned = new int[yuvColors.length];
+		mColorTransform.transformColors(yuvColors, plain);
+		
+		// the colors are patterned like the first row of a frame.
+		mColorTransform.setEffect(ColorTransform.COLOR_EFFECT_PATTERN);
+		mColorTransform.transformColors(yuvColors, patterned);
+		assertTrue(patterned[0] != plain[0]);
+		assertTrue(patterned[1] != plain[1]);
+		for (int i = 2; i < yuvColors.length; i++)
+			assertEquals(plain[i], patterned[i]);
+		
+		int[] again = new int[yuvColors.length];
+		mColorTransform.transformColors(yuvColors, again);
+		assertTrue(Arrays.equals(patterned, again));
+	}
+
+	public void testLut() {
+		int width = samplePictureWidth/2;
+		int height = samplePictureHeight/2;
+		int[] inverted = new int[8];
+		for (int i = 0; i < inverted.length; i++)
+			inverted[i] = ((i & 1) == 0 ? 0xff0000 : 0) | ((i & 2) == 0 ? 0xff00 : 0) | ((i & 4) == 0 ? 0xff : 0);
+		
+		mColorTransform.setLut(2, inverted);
+		mColorTransform.setEffect(ColorTransform.COLOR_EFFECT_LUT);
+		
+		mColorTransform.transformImageToBitmap(yuvWhite, 
+				samplePictureWidth, samplePictureHeight, mBitmap);
+		assertColorSimilar(0x000000, mBitmap.getPixel(width, height));
+		
+		mColorTransform.transformImageToBitmap(yuvBlack, 
+				samplePictureWidth, samplePictureHeight, mBitmap);
+		assertColorSimilar(0xffffff, mBitmap.getPixel(width, height));
+
+		// tables of up to 33 nodes are resampled into the yuv grid, bigger
+		// ones are used at full resolution. Both swap red and blue here.
+		for (int size : new int[] { 17, 35 }) {
+			int[] swapped = new int[size * size * size];
+			for (int i = 0; i < swapped.length; i++) {
+				int r = (i % size) * 255 / (size - 1);
+				int g = (i / size % size) * 255 / (size - 1);
+				int b = (i / size / size) * 255 / (size - 1);
+				swapped[i] = b << 16 | g << 8 | r;
+			}
+			mColorTransform.setLut(size, swapped);
+
+			mColorTransform.transformImageToBitmap(yuvRed,
+					samplePictureWidth, samplePictureHeight, mBitmap);
+			assertColorSimilar(CorrectedColor.RED >> 16, mBitmap.getPixel(width, height));
+
+			mColorTransform.transformImageToBitmap(yuvWhite,
+					samplePictureWidth, samplePictureHeight, mBitmap);
+			assertColorSimilar(0xffffff, mBitmap.getPixel(width, height));
+		}
+	}
+
+	public void testInstancesAreIndependent() {
+		int width = samplePictureWidth/2;
+		int height = samplePictureHeight/2;
+		ColorTransform other = new ColorTransform();
+		try {
+			other.setEffect(ColorTransform.COLOR_EFFECT_FALSE_COLORS);
+			
+			mColorTransform.transformImageToBitmap(yuvRed, 
+					samplePictureWidth, samplePictureHeight, mBitmap);
+			assertColorSimilar(CorrectedColor.RED, mBitmap.getPixel(width, height));
+			
+			other.transformImageToBitmap(yuvRed, 
+					samplePictureWidth, samplePictureHeight, mBitmap);
+			int pixel = mBitmap.getPixel(width, height);
+			assertTrue(android.graphics.Color.blue(pixel) > android.graphics.Color.red(pixel));
+		} finally {
+			other.release();
+		}
+	}
+	
+	public void testStages() {
+		int width = samplePictureWidth/2;
+		int height = samplePictureHeight/2;
+
+		// the highlighting works on RGB, so it runs after the effect even
+		// when it is listed before a YUV stage. Without any member every
+		// pixel is shown gray.
+		mColorTransform.setEffect(ColorTransform.COLOR_EFFECT_FALSE_COLORS);
+		mColorTransform.setHighlight(new int[ColorTable.SIZE / 32]);
+		mColorTransform.setStages(new int[] { ColorTransform.STAGE_HIGHLIGHT, ColorTransform.STAGE_CONTRAST });
+		mColorTransform.transformImageToBitmap(yuvRed,
+				samplePictureWidth, samplePictureHeight, mBitmap);
+		int pixel = mBitmap.getPixel(width, height);
+		assertTrue(Math.abs(android.graphics.Color.blue(pixel) - android.graphics.Color.red(pixel)) < COLOR_DELTA);
+
+		mColorTransform.setStages(null);
+		mColorTransform.transformImageToBitmap(yuvRed,
+				samplePictureWidth, samplePictureHeight, mBitmap);
+		pixel = mBitmap.getPixel(width, height);
+		assertTrue(android.graphics.Color.blue(pixel) > android.graphics.Color.red(pixel));
+
+		try {
+			mColorTransform.setStages(new int[] { ColorTransform.STAGE_CONTRAST, ColorTransform.STAGE_CONTRAST });
+			fail("stage used twice");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			mColorTransform.setStages(new int[] { 42 });
+			fail("unknown stage");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testAccurateSimulation() {
+		int width = samplePictureWidth/2;
+		int height = samplePictureHeight/2;
+		
+		mColorTransform.setEffect(ColorTransform.COLOR_EFFECT_SIMULATE);
+		mColorTransform.setAccurateSimulation(true);
+		
+		mColorTransform.transformImageToBitmap(yuvRed, 
+				samplePictureWidth, samplePictureHeight, mBitmap);
+		int pixel = mBitmap.getPixel(width, height);
+		assertTrue(Math.abs(android.graphics.Color.red(pixel) - android.graphics.Color.green(pixel)) < COLOR_DELTA);
+		
+		mColorTransform.transformImageToBitmap(yuvWhite, 
+				samplePictureWidth, samplePictureHeight, mBitmap);
+		assertColorSimilar(0xffffff, mBitmap.getPixel(width, height));
+	}
+
+	public void testPerceivedNames() {
+		ColorNamer colorNamer = new ColorNamer(new AllColors(), Locale.ENGLISH);
+		ColorTable colorTable = new ColorTable(colorNamer);
+		int[][] redGreen = { { 184, 0, 0 }, { 0, 143, 0 } };
+		
+		// a colorblind person sees neither red nor green as what they are.
+		mColorTransform.setEffect(ColorTransform.COLOR_EFFECT_SIMULATE);
+		for (boolean accurate : new boolean[] { false, true }) {
+			mColorTransform.setAccurateSimulation(accurate);
+			ColorTable perceivedTable = new ColorTable(colorNamer, mColorTransform);
+			for (int[] rgb : redGreen) {
+				int resId = colorTable.getFamilyResIdOfRgb(rgb[0], rgb[1], rgb[2]);
+				assertFalse(resId == perceivedTable.getFamilyResIdOfRgb(rgb[0], rgb[1], rgb[2]));
+			}
+		}
+	}
+
 	private void assertColorSimilar(int expected, int actual) {
 		int rExp, gExp, bExp;
 		int rAct, gAct, bAct;